@@ -29,8 +29,10 @@ import com.google.gson.Gson;
 
 import tv.hd3g.divergentframework.taskjob.broker.InMemoryBroker;
 import tv.hd3g.divergentframework.taskjob.broker.Job;
+import tv.hd3g.divergentframework.taskjob.broker.StoreLockMode;
 import tv.hd3g.divergentframework.taskjob.broker.TaskStatus;
 import tv.hd3g.divergentframework.taskjob.events.EngineEventObserver;
+import tv.hd3g.divergentframework.taskjob.events.OverflowPolicy;
 import tv.hd3g.divergentframework.taskjob.queue.LocalQueue;
 import tv.hd3g.divergentframework.taskjob.queue.Queue;
 import tv.hd3g.divergentframework.taskjob.worker.Engine;
@@ -50,6 +52,11 @@ public class InMemoryLocalTaskJob extends InMemoryBroker implements Queue {
 		queue = new LocalQueue(this);
 	}
 	
+	public InMemoryLocalTaskJob(int max_job_count, long abandoned_jobs_retention_time, long done_jobs_retention_time, long error_jobs_retention_time, TimeUnit unit, StoreLockMode store_lock_mode) {
+		super(max_job_count, abandoned_jobs_retention_time, done_jobs_retention_time, error_jobs_retention_time, unit, store_lock_mode);
+		queue = new LocalQueue(this);
+	}
+	
 	/**
 	 * @return this
 	 */
@@ -59,6 +66,16 @@ public class InMemoryLocalTaskJob extends InMemoryBroker implements Queue {
 		return this;
 	}
 	
+	/**
+	 * The observer will be called by a dedicated thread, and never in the queue or engines operations.
+	 * @return this
+	 */
+	public InMemoryLocalTaskJob addEngineObserver(EngineEventObserver engine_observer, int queue_capacity, OverflowPolicy overflow_policy) {
+		log.debug("Register async engine observer in queue: " + engine_observer);
+		queue.addEngineObserver(engine_observer, queue_capacity, overflow_policy);
+		return this;
+	}
+	
 	public void registerEngine(Engine engine) {
 		log.info("Register " + engine);
 		queue.registerEngine(engine);
@@ -92,6 +109,15 @@ public class InMemoryLocalTaskJob extends InMemoryBroker implements Queue {
 		return queue.prepareToStop(executor);
 	}
 	
+	/**
+	 * Like prepareToStop(executor), but interrupt the jobs still running after the timeout.
+	 */
+	public CompletableFuture<Void> prepareToStop(Executor executor, long timeout, TimeUnit unit) {
+		log.debug("Prepare to stop, with a " + timeout + " " + unit.name().toLowerCase() + " timeout");
+		cancelCleanUpTask();
+		return queue.prepareToStop(executor, timeout, unit);
+	}
+	
 	public boolean isRunning() {
 		return queue.isRunning();
 	}
@@ -110,7 +136,7 @@ public class InMemoryLocalTaskJob extends InMemoryBroker implements Queue {
 		super.switchStatus(job, new_status);
 		
 		if (TaskStatus.WAITING.equals(new_status)) {
-			queue.searchAndStartNewActions();
+			queue.requestSearchAndStartNewActions();
 		}
 	}
 }
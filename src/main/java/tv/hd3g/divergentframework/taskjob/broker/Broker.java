@@ -22,6 +22,7 @@ import java.util.UUID;
 import java.util.function.BiPredicate;
 import java.util.function.IntSupplier;
 import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 import com.google.gson.JsonObject;
 
@@ -36,6 +37,35 @@ public interface Broker {
 	
 	public Job addSubJob(Job reference, String description, String external_reference, String context_type, JsonObject context_content, Collection<String> context_requirement_tags);
 	
+	/**
+	 * Like createJob, with all the JobSpec options (like priority, if this broker handle it).
+	 */
+	public default Job createJob(JobSpec spec) {
+		return createJobs(List.of(spec)).get(0);
+	}
+	
+	/**
+	 * Create all jobs in one operation: only one capacity check, one activity callback and one observer event.
+	 * By default, it just calls createJob for each spec.
+	 * @return created jobs, in specs order
+	 */
+	public default List<Job> createJobs(List<JobSpec> specs) {
+		return specs.stream().map(spec -> {
+			return createJob(spec.getDescription(), spec.getExternalReference(), spec.getContextType(), spec.getContextContent(), spec.getContextRequirementTags());
+		}).collect(Collectors.toList());
+	}
+	
+	/**
+	 * Add all sub jobs in one operation: only one capacity check, one activity callback and one observer event.
+	 * By default, it just calls addSubJob for each spec.
+	 * @return created sub jobs, in specs order
+	 */
+	public default List<Job> addSubJobs(Job reference, List<JobSpec> specs) {
+		return specs.stream().map(spec -> {
+			return addSubJob(reference, spec.getDescription(), spec.getExternalReference(), spec.getContextType(), spec.getContextContent(), spec.getContextRequirementTags());
+		}).collect(Collectors.toList());
+	}
+	
 	public List<Job> getAllJobs();
 	
 	public void updateProgression(Job job, int actual_value, int max_value);
@@ -44,6 +74,49 @@ public interface Broker {
 	
 	public void switchStatus(Job job, TaskStatus new_status);
 	
+	/**
+	 * Like switchToError, for a worker: refused with an IllegalStateException if the job was claimed again, or reclaimed after a lease expiry, since lease_epoch.
+	 * @param lease_epoch the job getLeaseEpoch() when the worker got it
+	 */
+	public default void switchToError(Job job, Throwable e, long lease_epoch) {
+		job.checkLeaseEpoch(lease_epoch);
+		switchToError(job, e);
+	}
+	
+	/**
+	 * Like switchStatus, for a worker: refused with an IllegalStateException if the job was claimed again, or reclaimed after a lease expiry, since lease_epoch.
+	 * @param lease_epoch the job getLeaseEpoch() when the worker got it
+	 */
+	public default void switchStatus(Job job, TaskStatus new_status, long lease_epoch) {
+		job.checkLeaseEpoch(lease_epoch);
+		switchStatus(job, new_status);
+	}
+	
+	/**
+	 * Like updateProgression, for a worker: it's also a heartbeat, like renewLease.
+	 * Refused with an IllegalStateException if the job was claimed again, or reclaimed after a lease expiry, since lease_epoch.
+	 * @param lease_epoch the job getLeaseEpoch() when the worker got it
+	 */
+	public default void updateProgression(Job job, int actual_value, int max_value, long lease_epoch) {
+		job.checkLeaseEpoch(lease_epoch);
+		updateProgression(job, actual_value, max_value);
+	}
+	
+	/**
+	 * Worker heartbeat, without progression change: extend the lease of a PREPARING or PROCESSING job.
+	 * @param lease_epoch the job getLeaseEpoch() when the worker got it
+	 */
+	public default void renewLease(Job job, long lease_epoch) {
+		job.checkLeaseEpoch(lease_epoch);
+	}
+	
+	/**
+	 * @return in msec, 0 if this broker don't use leases: the workers don't need to renew them.
+	 */
+	public default long getLeaseDuration() {
+		return 0;
+	}
+	
 	/**
 	 * Must be atomic.
 	 * Use current pending Actions list, and starts, if needed, waiting jobs for create new pending Actions.
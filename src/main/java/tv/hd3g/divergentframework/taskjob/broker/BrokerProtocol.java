@@ -0,0 +1,368 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+
+/**
+ * Frames between BrokerServer and RemoteBroker.
+ * A frame: int payload_size, payload (byte type, int request_id, type datas).
+ * Strings are int size (-1 for null) + UTF-8 bytes, UUIDs are 2 longs, and jobs are their JSON serialization, like in the journal.
+ */
+final class BrokerProtocol {
+	
+	/**
+	 * Client requests
+	 */
+	static final byte GET_JOBS = 1;
+	static final byte GET_ALL_JOBS = 2;
+	static final byte CREATE_JOBS = 3;
+	static final byte ADD_SUB_JOBS = 4;
+	/**
+	 * Without response, only an ERROR frame if it fails.
+	 */
+	static final byte UPDATE_PROGRESSION = 5;
+	static final byte SWITCH_TO_ERROR = 6;
+	static final byte SWITCH_STATUS = 7;
+	/**
+	 * Context types, capacity, and the client ContextTagsFilter (can be null). The response is the claimed jobs, and the server lease duration.
+	 */
+	static final byte CLAIM_JOBS = 8;
+	/**
+	 * Only the jobs claimed by this connection are released.
+	 */
+	static final byte RELEASE_JOBS = 9;
+	static final byte SUBSCRIBE_ACTIVITY = 10;
+	static final byte SUBSCRIBE_EVENTS = 11;
+	/**
+	 * Without response, only an ERROR frame if it fails.
+	 */
+	static final byte RENEW_LEASE = 12;
+	
+	/**
+	 * Server responses and pushes (with a 0 request_id)
+	 */
+	static final byte RESPONSE = 64;
+	static final byte ERROR = 65;
+	static final byte ACTIVITY = 66;
+	static final byte EVENT = 67;
+	
+	/**
+	 * EVENT types
+	 */
+	static final byte EVENT_JOB_UPDATE = 1;
+	static final byte EVENT_PROGRESSION = 2;
+	static final byte EVENT_FLUSH = 3;
+	static final byte EVENT_CREATE_JOBS = 4;
+	static final byte EVENT_CREATE_SUB_JOBS = 5;
+	
+	static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+	
+	private static final JsonParser JSON_PARSER = new JsonParser();
+	
+	private BrokerProtocol() {
+	}
+	
+	@FunctionalInterface
+	interface FrameWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+	
+	/**
+	 * @return a flipped frame, ready to write
+	 */
+	static ByteBuffer encode(byte type, int request_id, FrameWriter writer) {
+		try {
+			ByteArrayOutputStream frame = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(frame);
+			out.writeInt(0);
+			out.writeByte(type);
+			out.writeInt(request_id);
+			writer.write(out);
+			out.flush();
+			
+			ByteBuffer result = ByteBuffer.wrap(frame.toByteArray());
+			result.putInt(0, result.capacity() - 4);
+			return result;
+		} catch (IOException e) {
+			throw new RuntimeException("Can't encode broker frame", e);
+		}
+	}
+	
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	static String readString(ByteBuffer payload) {
+		int size = payload.getInt();
+		if (size == -1) {
+			return null;
+		}
+		byte[] bytes = new byte[size];
+		payload.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @param values can be null
+	 */
+	static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.size());
+		for (String value : values) {
+			writeString(out, value);
+		}
+	}
+	
+	/**
+	 * @return can be null
+	 */
+	static ArrayList<String> readStrings(ByteBuffer payload) {
+		int size = payload.getInt();
+		if (size == -1) {
+			return null;
+		}
+		ArrayList<String> values = new ArrayList<>(size);
+		for (int pos = 0; pos < size; pos++) {
+			values.add(readString(payload));
+		}
+		return values;
+	}
+	
+	/**
+	 * @param filter can be null
+	 */
+	static void writeTagsFilter(DataOutputStream out, ContextTagsFilter filter) throws IOException {
+		if (filter == null) {
+			out.writeInt(-1);
+			return;
+		}
+		Map<String, List<TagSet>> tag_sets_by_context_type = filter.getTagSetsByContextType();
+		out.writeInt(tag_sets_by_context_type.size());
+		for (Map.Entry<String, List<TagSet>> entry : tag_sets_by_context_type.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue().size());
+			for (TagSet tag_set : entry.getValue()) {
+				writeStrings(out, tag_set);
+			}
+		}
+	}
+	
+	/**
+	 * @return can be null
+	 */
+	static ContextTagsFilter readTagsFilter(ByteBuffer payload) {
+		int size = payload.getInt();
+		if (size == -1) {
+			return null;
+		}
+		ContextTagsFilter filter = new ContextTagsFilter();
+		for (int pos = 0; pos < size; pos++) {
+			String context_type = readString(payload);
+			int tag_sets_count = payload.getInt();
+			for (int t_pos = 0; t_pos < tag_sets_count; t_pos++) {
+				filter.add(context_type, readStrings(payload));
+			}
+		}
+		return filter;
+	}
+	
+	static void writeUUID(DataOutputStream out, UUID value) throws IOException {
+		out.writeLong(value.getMostSignificantBits());
+		out.writeLong(value.getLeastSignificantBits());
+	}
+	
+	static UUID readUUID(ByteBuffer payload) {
+		return new UUID(payload.getLong(), payload.getLong());
+	}
+	
+	static void writeUUIDs(DataOutputStream out, Collection<UUID> values) throws IOException {
+		out.writeInt(values.size());
+		for (UUID value : values) {
+			writeUUID(out, value);
+		}
+	}
+	
+	static List<UUID> readUUIDs(ByteBuffer payload) {
+		int size = payload.getInt();
+		ArrayList<UUID> values = new ArrayList<>(size);
+		for (int pos = 0; pos < size; pos++) {
+			values.add(readUUID(payload));
+		}
+		return values;
+	}
+	
+	static void writeJob(DataOutputStream out, Job job, Gson gson) throws IOException {
+		byte[] json = job.toJson(gson).getBytes(StandardCharsets.UTF_8);
+		out.writeInt(json.length);
+		out.write(json);
+	}
+	
+	/**
+	 * @return a job without observer
+	 */
+	static Job readJob(ByteBuffer payload, Gson gson) {
+		byte[] json = new byte[payload.getInt()];
+		payload.get(json);
+		return Job.fromJson(gson, new String(json, StandardCharsets.UTF_8));
+	}
+	
+	static void writeJobs(DataOutputStream out, Collection<Job> jobs, Gson gson) throws IOException {
+		out.writeInt(jobs.size());
+		for (Job job : jobs) {
+			writeJob(out, job, gson);
+		}
+	}
+	
+	static List<Job> readJobs(ByteBuffer payload, Gson gson) {
+		int size = payload.getInt();
+		ArrayList<Job> jobs = new ArrayList<>(size);
+		for (int pos = 0; pos < size; pos++) {
+			jobs.add(readJob(payload, gson));
+		}
+		return jobs;
+	}
+	
+	/**
+	 * Status, dates and last error, like a journal status record.
+	 */
+	static void writeJobStatus(DataOutputStream out, Job job) throws IOException {
+		synchronized (job) {
+			out.writeByte(job.getStatus().ordinal());
+			out.writeLong(job.getStartDate());
+			out.writeLong(job.getEndDate());
+			writeString(out, job.getLastErrorMessage());
+		}
+	}
+	
+	static void readJobStatus(ByteBuffer payload, Job job) {
+		job.restoreStatus(TaskStatus.values()[payload.get()], payload.getLong(), payload.getLong(), readString(payload));
+	}
+	
+	/**
+	 * Batch dependencies are written as spec positions in specs.
+	 */
+	static void writeSpecs(DataOutputStream out, List<JobSpec> specs) throws IOException {
+		IdentityHashMap<JobSpec, Integer> positions = new IdentityHashMap<>(specs.size());
+		for (int pos = 0; pos < specs.size(); pos++) {
+			positions.put(specs.get(pos), pos);
+		}
+		
+		out.writeInt(specs.size());
+		for (JobSpec spec : specs) {
+			writeString(out, spec.getDescription());
+			writeString(out, spec.getContextType());
+			writeString(out, spec.getContextContent() == null ? null : spec.getContextContent().toString());
+			writeString(out, spec.getExternalReference());
+			writeStrings(out, spec.getContextRequirementTags());
+			out.writeInt(spec.getPriority());
+			out.writeLong(spec.getNotBefore());
+			writeUUIDs(out, spec.getDependencies());
+			
+			List<JobSpec> batch_dependencies = spec.getBatchDependencies();
+			out.writeInt(batch_dependencies.size());
+			for (JobSpec batch_dependency : batch_dependencies) {
+				Integer position = positions.get(batch_dependency);
+				if (position == null) {
+					throw new IllegalArgumentException("Dependency spec " + batch_dependency.getDescription() + " is not in this batch");
+				}
+				out.writeInt(position);
+			}
+		}
+	}
+	
+	static List<JobSpec> readSpecs(ByteBuffer payload) {
+		int size = payload.getInt();
+		ArrayList<JobSpec> specs = new ArrayList<>(size);
+		ArrayList<int[]> batch_dependencies = new ArrayList<>(size);
+		
+		for (int pos = 0; pos < size; pos++) {
+			String description = readString(payload);
+			String context_type = readString(payload);
+			String context_content = readString(payload);
+			JobSpec spec = new JobSpec(description, context_type, context_content == null ? null : JSON_PARSER.parse(context_content).getAsJsonObject());
+			spec.setExternalReference(readString(payload));
+			spec.setContextRequirementTags(readStrings(payload));
+			spec.setPriority(payload.getInt());
+			spec.setNotBefore(payload.getLong());
+			readUUIDs(payload).forEach(spec::addDependency);
+			
+			int[] spec_batch_dependencies = new int[payload.getInt()];
+			for (int d_pos = 0; d_pos < spec_batch_dependencies.length; d_pos++) {
+				spec_batch_dependencies[d_pos] = payload.getInt();
+			}
+			batch_dependencies.add(spec_batch_dependencies);
+			specs.add(spec);
+		}
+		
+		for (int pos = 0; pos < size; pos++) {
+			for (int d_pos : batch_dependencies.get(pos)) {
+				specs.get(pos).addDependency(specs.get(d_pos));
+			}
+		}
+		return specs;
+	}
+	
+	static void writeError(DataOutputStream out, RuntimeException e) throws IOException {
+		writeString(out, e.getClass().getName());
+		writeString(out, e.getMessage());
+	}
+	
+	/**
+	 * @return the same exception type for the common unchecked exceptions, else a RuntimeException with the remote exception class name.
+	 */
+	static RuntimeException readError(ByteBuffer payload) {
+		String class_name = readString(payload);
+		String message = readString(payload);
+		
+		if (IllegalArgumentException.class.getName().equals(class_name)) {
+			return new IllegalArgumentException(message);
+		} else if (IllegalStateException.class.getName().equals(class_name)) {
+			return new IllegalStateException(message);
+		} else if (NullPointerException.class.getName().equals(class_name)) {
+			return new NullPointerException(message);
+		} else if (IndexOutOfBoundsException.class.getName().equals(class_name)) {
+			return new IndexOutOfBoundsException(message);
+		} else if (FullJobStoreException.class.getName().equals(class_name)) {
+			return new FullJobStoreException();
+		}
+		return new RuntimeException(class_name + ": " + message);
+	}
+	
+}
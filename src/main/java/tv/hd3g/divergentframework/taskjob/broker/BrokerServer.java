@@ -0,0 +1,634 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+
+import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
+
+/**
+ * Expose a Broker to RemoteBrokers, over TCP with BrokerProtocol frames.
+ * One selector thread for all the connections, and a request pool: the requests of a connection are processed one after the other, in reception order.
+ * Jobs claimed by a connection and still PREPARING are switched back to WAITING when it's closed, after its pending requests.
+ * A client too slow to read its frames (like with an event subscription) is disconnected.
+ * The connection is the lease owner of its claimed jobs: with an InMemoryBroker lease duration, the PROCESSING jobs of a lost worker are reclaimed
+ * on lease expiry, and the late updates of this worker are refused.
+ */
+public class BrokerServer implements Closeable {
+	private static final Logger log = LogManager.getLogger();
+	
+	/**
+	 * Max frames written by one gathering write.
+	 */
+	private static final int MAX_WRITE_BATCH = 256;
+	
+	/**
+	 * Max frames waiting to be written, by connection.
+	 */
+	private static final int MAX_PENDING_FRAMES = 16 * 1024;
+	
+	/**
+	 * Queued after the pending requests of a closed connection, for release its claimed jobs.
+	 */
+	private static final ByteBuffer RELEASE_MARKER = ByteBuffer.allocate(0);
+	
+	private final Broker broker;
+	private final Gson gson;
+	private final Selector selector;
+	private final ServerSocketChannel server_channel;
+	private final Thread selector_thread;
+	private final ThreadPoolExecutor request_executor;
+	private final Set<Connection> connections;
+	private final ConcurrentLinkedQueue<Connection> pending_writes;
+	private final EventStreamer event_streamer;
+	private volatile boolean closed;
+	
+	/**
+	 * @param bind_address like new InetSocketAddress(InetAddress.getLoopbackAddress(), 0) for a random local port.
+	 * @param request_threads for the blocking broker calls, like the JournalBroker ones.
+	 */
+	public BrokerServer(Broker broker, InetSocketAddress bind_address, int request_threads) throws IOException {
+		this.broker = broker;
+		if (broker == null) {
+			throw new NullPointerException("\"broker\" can't to be null");
+		}
+		if (bind_address == null) {
+			throw new NullPointerException("\"bind_address\" can't to be null");
+		}
+		if (request_threads < 1) {
+			throw new IndexOutOfBoundsException("\"request_threads\" must be > 0");
+		}
+		gson = new Gson();
+		connections = ConcurrentHashMap.newKeySet();
+		pending_writes = new ConcurrentLinkedQueue<>();
+		event_streamer = new EventStreamer();
+		
+		request_executor = new ThreadPoolExecutor(request_threads, request_threads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.setName("BrokerServerRequest");
+			return t;
+		});
+		
+		selector = Selector.open();
+		server_channel = ServerSocketChannel.open();
+		server_channel.bind(bind_address);
+		server_channel.configureBlocking(false);
+		server_channel.register(selector, SelectionKey.OP_ACCEPT);
+		
+		broker.registerCallbackOnNewLocalJobsActivity(() -> {
+			connections.stream().filter(c -> c.activity_subscriber).forEach(c -> c.send(BrokerProtocol.encode(BrokerProtocol.ACTIVITY, 0, out -> {
+			})));
+		});
+		
+		selector_thread = new Thread(this::selectorLoop);
+		selector_thread.setName("BrokerServer " + getLocalAddress().getPort());
+		selector_thread.setDaemon(true);
+		selector_thread.start();
+		log.info("Start broker server on " + getLocalAddress());
+	}
+	
+	public InetSocketAddress getLocalAddress() {
+		try {
+			return (InetSocketAddress) server_channel.getLocalAddress();
+		} catch (IOException e) {
+			throw new RuntimeException("Can't get server address", e);
+		}
+	}
+	
+	/**
+	 * Add it to the broker job observers for stream the job events to the RemoteBrokers job observers.
+	 */
+	public JobEventObserver getEventStreamer() {
+		return event_streamer;
+	}
+	
+	public int getConnectionCount() {
+		return connections.size();
+	}
+	
+	/**
+	 * Close all connections, and switch back to WAITING their claimed jobs.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		selector.wakeup();
+		try {
+			selector_thread.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			throw new IOException("Can't wait broker server selector", e);
+		}
+		new ArrayList<>(connections).forEach(Connection::close);
+		request_executor.shutdown();
+		try {
+			request_executor.awaitTermination(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			throw new IOException("Can't wait broker server requests", e);
+		}
+		server_channel.close();
+		selector.close();
+	}
+	
+	private void selectorLoop() {
+		while (closed == false) {
+			try {
+				selector.select();
+				
+				Connection to_write;
+				while ((to_write = pending_writes.poll()) != null) {
+					SelectionKey key = to_write.channel.keyFor(selector);
+					if (key != null && key.isValid()) {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+				
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (key.isValid() == false) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+					
+					Connection connection = (Connection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							connection.read();
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.write(key);
+						}
+					} catch (IOException e) {
+						log.debug("Broker client disconnected " + connection, e);
+						connection.close();
+					}
+				}
+			} catch (IOException e) {
+				log.error("Broker server selector error", e);
+			}
+		}
+	}
+	
+	private void accept() throws IOException {
+		SocketChannel channel = server_channel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		Connection connection = new Connection(channel);
+		channel.register(selector, SelectionKey.OP_READ, connection);
+		connections.add(connection);
+		log.debug("Broker client connected " + connection);
+	}
+	
+	private class Connection {
+		private final SocketChannel channel;
+		private final String remote_address;
+		private ByteBuffer read_buffer;
+		private final ArrayDeque<ByteBuffer> writing;
+		
+		private final ConcurrentLinkedQueue<ByteBuffer> pending_requests;
+		private final AtomicBoolean processing;
+		private final LinkedBlockingQueue<ByteBuffer> pending_frames;
+		/**
+		 * PREPARING and PROCESSING jobs -> their lease epoch at claim
+		 */
+		private final ConcurrentHashMap<UUID, Long> claimed_jobs;
+		
+		private volatile boolean activity_subscriber;
+		private volatile boolean event_subscriber;
+		
+		Connection(SocketChannel channel) throws IOException {
+			this.channel = channel;
+			remote_address = String.valueOf(channel.getRemoteAddress());
+			read_buffer = ByteBuffer.allocate(64 * 1024);
+			writing = new ArrayDeque<>();
+			pending_requests = new ConcurrentLinkedQueue<>();
+			processing = new AtomicBoolean(false);
+			pending_frames = new LinkedBlockingQueue<>(MAX_PENDING_FRAMES);
+			claimed_jobs = new ConcurrentHashMap<>();
+		}
+		
+		public String toString() {
+			return remote_address;
+		}
+		
+		/**
+		 * In selector thread.
+		 */
+		void read() throws IOException {
+			if (channel.read(read_buffer) == -1) {
+				throw new IOException("Closed by client");
+			}
+			read_buffer.flip();
+			boolean added = false;
+			
+			while (read_buffer.remaining() >= 4) {
+				int size = read_buffer.getInt(read_buffer.position());
+				if (size < 5 || size > BrokerProtocol.MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame size: " + size);
+				}
+				if (read_buffer.remaining() < 4 + size) {
+					if (read_buffer.capacity() < 4 + size) {
+						read_buffer = ByteBuffer.allocate(4 + size).put(read_buffer);
+						read_buffer.flip();
+					}
+					break;
+				}
+				read_buffer.position(read_buffer.position() + 4);
+				ByteBuffer payload = ByteBuffer.allocate(size);
+				ByteBuffer frame = read_buffer.slice();
+				frame.limit(size);
+				payload.put(frame).flip();
+				read_buffer.position(read_buffer.position() + size);
+				pending_requests.add(payload);
+				added = true;
+			}
+			read_buffer.compact();
+			
+			if (added) {
+				scheduleRequests();
+			}
+		}
+		
+		private void scheduleRequests() {
+			if (processing.compareAndSet(false, true)) {
+				request_executor.execute(this::processRequests);
+			}
+		}
+		
+		/**
+		 * One request executor thread at a time, by connection.
+		 */
+		private void processRequests() {
+			do {
+				ByteBuffer payload;
+				while ((payload = pending_requests.poll()) != null) {
+					if (payload == RELEASE_MARKER) {
+						releaseClaimedJobs(this, new ArrayList<>(claimed_jobs.keySet()));
+					} else {
+						process(this, payload);
+					}
+				}
+				processing.set(false);
+			} while (pending_requests.isEmpty() == false && processing.compareAndSet(false, true));
+		}
+		
+		/**
+		 * Thread safe. Close this connection if it has too many pending frames.
+		 */
+		void send(ByteBuffer frame) {
+			if (pending_frames.offer(frame) == false) {
+				log.warn("Too many pending frames (" + MAX_PENDING_FRAMES + ") for the broker client " + this + ", disconnect it");
+				close();
+				return;
+			}
+			pending_writes.add(this);
+			selector.wakeup();
+		}
+		
+		/**
+		 * In selector thread. A gathering write of all the pending frames.
+		 */
+		void write(SelectionKey key) throws IOException {
+			ByteBuffer frame;
+			while (writing.size() < MAX_WRITE_BATCH && (frame = pending_frames.poll()) != null) {
+				writing.add(frame);
+			}
+			channel.write(writing.toArray(new ByteBuffer[writing.size()]));
+			while (writing.isEmpty() == false && writing.peek().hasRemaining() == false) {
+				writing.poll();
+			}
+			
+			if (writing.isEmpty()) {
+				key.interestOps(SelectionKey.OP_READ);
+				if (pending_frames.isEmpty() == false) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+		}
+		
+		/**
+		 * Thread safe. The claimed jobs are released by the request executor, after the pending requests of this connection.
+		 */
+		void close() {
+			if (connections.remove(this) == false) {
+				return;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				log.warn("Can't close broker client connection " + this, e);
+			}
+			pending_frames.clear();
+			
+			pending_requests.add(RELEASE_MARKER);
+			try {
+				scheduleRequests();
+			} catch (RejectedExecutionException e) {
+				log.warn("Can't release the jobs claimed by the closed connection " + this + ": " + claimed_jobs.keySet(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Switch back to WAITING the PREPARING jobs still claimed and leased by this connection, with their claim lease epoch. The others keys are ignored.
+	 */
+	private void releaseClaimedJobs(Connection connection, Collection<UUID> keys) {
+		HashMap<UUID, Long> lease_epochs = new HashMap<>();
+		keys.forEach(key -> {
+			Long lease_epoch = connection.claimed_jobs.remove(key);
+			if (lease_epoch != null) {
+				lease_epochs.put(key, lease_epoch);
+			}
+		});
+		try {
+			broker.getJobsByUUID(new ArrayList<>(lease_epochs.keySet())).stream().filter(job -> job.getStatus() == TaskStatus.PREPARING).forEach(job -> {
+				try {
+					broker.switchStatus(job, TaskStatus.WAITING, lease_epochs.get(job.getKey()));
+					log.info("Release job " + job + " claimed by " + connection);
+				} catch (IllegalStateException e) {
+					log.debug("Don't release job " + job + ", claimed again since its claim by " + connection, e);
+				}
+			});
+		} catch (RuntimeException e) {
+			log.error("Can't release the jobs claimed by " + connection, e);
+		}
+	}
+	
+	private Job getJob(UUID key) {
+		List<Job> jobs = broker.getJobsByUUID(List.of(key));
+		if (jobs.isEmpty()) {
+			throw new IllegalArgumentException("Can't found job " + key);
+		}
+		return jobs.get(0);
+	}
+	
+	/**
+	 * A job claimed by this connection, but reclaimed since by the broker after a lease expiry, can't be updated any more by this connection.
+	 * A PREPARING or PROCESSING job leased by another connection can't be updated by this connection.
+	 * It's only a fast check: the updates on a claimed job are fenced by the broker with its claim lease epoch, see switchStatus and switchToError.
+	 */
+	private Job getOwnedJob(Connection connection, UUID key) {
+		Job job = getJob(key);
+		Long lease_epoch = connection.claimed_jobs.get(key);
+		if (lease_epoch != null) {
+			checkLeaseEpoch(connection, job, lease_epoch);
+		} else if (job.getLeaseOwner() != null && (job.getStatus() == TaskStatus.PREPARING || job.getStatus() == TaskStatus.PROCESSING)) {
+			throw new IllegalStateException("Job " + job + " is leased by " + job.getLeaseOwner() + ", not by " + connection);
+		}
+		return job;
+	}
+	
+	/**
+	 * @throws IllegalStateException and forget the claim, if the job was claimed again since this claim
+	 */
+	private static void checkLeaseEpoch(Connection connection, Job job, long lease_epoch) {
+		if (job.getLeaseEpoch() != lease_epoch) {
+			connection.claimed_jobs.remove(job.getKey(), lease_epoch);
+			throw new IllegalStateException("Lease lost for job " + job + " by " + connection);
+		}
+	}
+	
+	/**
+	 * With the claim lease epoch for a job claimed by this connection: the broker refuses the switch if the job was claimed again since, even after getOwnedJob.
+	 */
+	private void switchStatus(Connection connection, Job job, TaskStatus new_status) {
+		Long lease_epoch = connection.claimed_jobs.get(job.getKey());
+		if (lease_epoch == null) {
+			broker.switchStatus(job, new_status);
+			return;
+		}
+		try {
+			broker.switchStatus(job, new_status, lease_epoch);
+		} catch (IllegalStateException e) {
+			checkLeaseEpoch(connection, job, lease_epoch);
+			throw e;
+		}
+	}
+	
+	/**
+	 * @see #switchStatus(Connection, Job, TaskStatus)
+	 */
+	private void switchToError(Connection connection, Job job, Throwable error) {
+		Long lease_epoch = connection.claimed_jobs.get(job.getKey());
+		if (lease_epoch == null) {
+			broker.switchToError(job, error);
+			return;
+		}
+		try {
+			broker.switchToError(job, error, lease_epoch);
+		} catch (IllegalStateException e) {
+			checkLeaseEpoch(connection, job, lease_epoch);
+			throw e;
+		}
+	}
+	
+	private void process(Connection connection, ByteBuffer payload) {
+		byte type = payload.get();
+		int request_id = payload.getInt();
+		
+		try {
+			switch (type) {
+			case BrokerProtocol.GET_JOBS:
+				List<Job> jobs = broker.getJobsByUUID(BrokerProtocol.readUUIDs(payload));
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> BrokerProtocol.writeJobs(out, jobs, gson)));
+				break;
+			case BrokerProtocol.GET_ALL_JOBS:
+				List<Job> all_jobs = broker.getAllJobs();
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> BrokerProtocol.writeJobs(out, all_jobs, gson)));
+				break;
+			case BrokerProtocol.CREATE_JOBS:
+				List<Job> created_jobs = broker.createJobs(BrokerProtocol.readSpecs(payload));
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> BrokerProtocol.writeJobs(out, created_jobs, gson)));
+				break;
+			case BrokerProtocol.ADD_SUB_JOBS:
+				Job reference = getJob(BrokerProtocol.readUUID(payload));
+				List<Job> sub_jobs = broker.addSubJobs(reference, BrokerProtocol.readSpecs(payload));
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> BrokerProtocol.writeJobs(out, sub_jobs, gson)));
+				break;
+			case BrokerProtocol.UPDATE_PROGRESSION:
+				Job updated_job = getOwnedJob(connection, BrokerProtocol.readUUID(payload));
+				int actual_value = payload.getInt();
+				int max_value = payload.getInt();
+				Long claim_lease_epoch = connection.claimed_jobs.get(updated_job.getKey());
+				if (claim_lease_epoch != null) {
+					broker.updateProgression(updated_job, actual_value, max_value, claim_lease_epoch);
+				} else {
+					broker.updateProgression(updated_job, actual_value, max_value);
+				}
+				break;
+			case BrokerProtocol.SWITCH_TO_ERROR:
+				Job error_job = getOwnedJob(connection, BrokerProtocol.readUUID(payload));
+				switchToError(connection, error_job, new Exception(BrokerProtocol.readString(payload)));
+				connection.claimed_jobs.remove(error_job.getKey());
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> BrokerProtocol.writeJobStatus(out, error_job)));
+				break;
+			case BrokerProtocol.SWITCH_STATUS:
+				Job switched_job = getOwnedJob(connection, BrokerProtocol.readUUID(payload));
+				TaskStatus new_status = TaskStatus.values()[payload.get()];
+				switchStatus(connection, switched_job, new_status);
+				if (new_status != TaskStatus.PREPARING && new_status != TaskStatus.PROCESSING) {
+					connection.claimed_jobs.remove(switched_job.getKey());
+				}
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> BrokerProtocol.writeJobStatus(out, switched_job)));
+				break;
+			case BrokerProtocol.CLAIM_JOBS:
+				ArrayList<String> context_types = BrokerProtocol.readStrings(payload);
+				int capacity = payload.getInt();
+				ContextTagsFilter tags_filter = BrokerProtocol.readTagsFilter(payload);
+				ArrayList<Job> claimed_jobs = new ArrayList<>();
+				broker.getNextJobs(context_types, () -> capacity - claimed_jobs.size(), tags_filter != null ? tags_filter : (context_type, tags) -> true, job -> {
+					job.setLeaseOwner(connection.toString());
+					connection.claimed_jobs.put(job.getKey(), job.getLeaseEpoch());
+					return claimed_jobs.add(job);
+				});
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> {
+					BrokerProtocol.writeJobs(out, claimed_jobs, gson);
+					out.writeLong(broker.getLeaseDuration());
+				}));
+				break;
+			case BrokerProtocol.RELEASE_JOBS:
+				releaseClaimedJobs(connection, BrokerProtocol.readUUIDs(payload));
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> {
+				}));
+				break;
+			case BrokerProtocol.RENEW_LEASE:
+				Job leased_job = getOwnedJob(connection, BrokerProtocol.readUUID(payload));
+				Long lease_epoch = connection.claimed_jobs.get(leased_job.getKey());
+				if (lease_epoch == null) {
+					throw new IllegalStateException("Job " + leased_job + " is not claimed by " + connection);
+				}
+				broker.renewLease(leased_job, lease_epoch);
+				break;
+			case BrokerProtocol.SUBSCRIBE_ACTIVITY:
+				connection.activity_subscriber = true;
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> {
+				}));
+				break;
+			case BrokerProtocol.SUBSCRIBE_EVENTS:
+				connection.event_subscriber = true;
+				connection.send(BrokerProtocol.encode(BrokerProtocol.RESPONSE, request_id, out -> {
+				}));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown request type " + type);
+			}
+		} catch (RuntimeException e) {
+			log.debug("Can't process request " + type + " from " + connection, e);
+			connection.send(BrokerProtocol.encode(BrokerProtocol.ERROR, request_id, out -> BrokerProtocol.writeError(out, e)));
+		}
+	}
+	
+	/**
+	 * Encode one time each event, for all the subscribers.
+	 */
+	private class EventStreamer implements JobEventObserver {
+		
+		private void push(BrokerProtocol.FrameWriter writer) {
+			ByteBuffer frame = null;
+			for (Connection connection : connections) {
+				if (connection.event_subscriber == false) {
+					continue;
+				}
+				if (frame == null) {
+					frame = BrokerProtocol.encode(BrokerProtocol.EVENT, 0, writer);
+				}
+				connection.send(frame.duplicate());
+			}
+		}
+		
+		public void onJobUpdate(Job job, JobUpdateSubject cause) {
+			push(out -> {
+				out.writeByte(BrokerProtocol.EVENT_JOB_UPDATE);
+				out.writeByte(cause.ordinal());
+				BrokerProtocol.writeJob(out, job, gson);
+			});
+		}
+		
+		public void onJobUpdateProgression(Job job) {
+			push(out -> {
+				out.writeByte(BrokerProtocol.EVENT_PROGRESSION);
+				BrokerProtocol.writeJob(out, job, gson);
+			});
+		}
+		
+		public void brokerOnAfterFlush(List<UUID> deleted_jobs_uuid) {
+			push(out -> {
+				out.writeByte(BrokerProtocol.EVENT_FLUSH);
+				BrokerProtocol.writeUUIDs(out, deleted_jobs_uuid);
+			});
+		}
+		
+		public void brokerOnCreateJob(Job job) {
+			brokerOnCreateJobs(List.of(job));
+		}
+		
+		public void brokerOnCreateJobs(List<Job> jobs) {
+			push(out -> {
+				out.writeByte(BrokerProtocol.EVENT_CREATE_JOBS);
+				BrokerProtocol.writeJobs(out, jobs, gson);
+			});
+		}
+		
+		public void brokerOnCreateSubJob(Job reference, Job sub_job) {
+			brokerOnCreateSubJobs(reference, List.of(sub_job));
+		}
+		
+		public void brokerOnCreateSubJobs(Job reference, List<Job> sub_jobs) {
+			push(out -> {
+				out.writeByte(BrokerProtocol.EVENT_CREATE_SUB_JOBS);
+				BrokerProtocol.writeJob(out, reference, gson);
+				BrokerProtocol.writeJobs(out, sub_jobs, gson);
+			});
+		}
+	}
+	
+}
@@ -0,0 +1,77 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * A getNextJobs filterByContextTypeAndTags that can be sent to a BrokerServer, so the server skip the jobs this client can't start, before claim them.
+ * For a context type, a job is selectable only if one of the added tag sets contains all its context requirement tags, like the tags of one of the free engines. Without tag sets for a context type, all its jobs are selectable.
+ */
+public final class ContextTagsFilter implements BiPredicate<String, List<String>> {
+	
+	private final LinkedHashMap<String, List<TagSet>> tag_sets_by_context_type;
+	
+	public ContextTagsFilter() {
+		tag_sets_by_context_type = new LinkedHashMap<>();
+	}
+	
+	/**
+	 * @param tags like the tags of an engine with free workers for this context type
+	 * @return this
+	 */
+	public ContextTagsFilter add(String context_type, Collection<String> tags) {
+		if (context_type == null) {
+			throw new NullPointerException("\"context_type\" can't to be null");
+		}
+		tag_sets_by_context_type.computeIfAbsent(context_type, c_t -> new ArrayList<>()).add(TagSet.of(tags));
+		return this;
+	}
+	
+	/**
+	 * @return context_type -> tag sets, in add order
+	 */
+	Map<String, List<TagSet>> getTagSetsByContextType() {
+		return Collections.unmodifiableMap(tag_sets_by_context_type);
+	}
+	
+	public boolean test(String context_type, List<String> context_requirement_tags) {
+		List<TagSet> tag_sets = tag_sets_by_context_type.get(context_type);
+		if (tag_sets == null) {
+			return true;
+		}
+		TagSet required_tags = TagSet.of(context_requirement_tags);
+		for (TagSet tag_set : tag_sets) {
+			if (tag_set.containsAll(required_tags)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public String toString() {
+		return tag_sets_by_context_type.toString();
+	}
+	
+}
@@ -16,14 +16,19 @@
 */
 package tv.hd3g.divergentframework.taskjob.broker;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -33,6 +38,7 @@ import java.util.function.BiPredicate;
 import java.util.function.IntSupplier;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -40,7 +46,9 @@ import org.apache.logging.log4j.Logger;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
+import tv.hd3g.divergentframework.taskjob.events.AsyncJobEventObserver;
 import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
+import tv.hd3g.divergentframework.taskjob.events.OverflowPolicy;
 
 /**
  * Store and retrieve jobs, localy in this instance, with JobStore.
@@ -48,29 +56,78 @@ import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
 public class InMemoryBroker implements Broker {
 	private static final Logger log = LogManager.getLogger();
 	
+	/**
+	 * Max delay, in msec, between a postponed job not_before date and its switch to WAITING.
+	 */
+	public static final long POSTPONED_JOBS_TICK_DURATION = 100;
+	private static final int POSTPONED_JOBS_WHEEL_SIZE = 256;
+	
+	/**
+	 * Max delay, in msec, between a lease deadline and its expiry.
+	 */
+	public static final long LEASES_TICK_DURATION = 100;
+	private static final int LEASES_WHEEL_SIZE = 256;
+	/**
+	 * For the switches without lease check.
+	 */
+	private static final long ANY_LEASE_EPOCH = -1;
+	
 	private int max_job_count;
 	private long abandoned_jobs_retention_time;
 	private long done_jobs_retention_time;
 	private long error_jobs_retention_time;
 	private final InMemoryJobStore store;
+	private volatile int flush_slice_size;
+	private volatile boolean compact_context_content;
 	private final ArrayList<Runnable> on_new_local_jobs_activity_callbacks;
 	
 	private final ThreadPoolExecutor executor;
 	private final ScheduledThreadPoolExecutor sch_maintenance_exec;
 	private final ScheduledFuture<?> cleanup_task;
+	private final ScheduledFuture<?> postponed_jobs_task;
+	private ScheduledFuture<?> progression_publish_task;
+	private volatile long progression_publish_interval;
+	private final LinkedBlockingQueue<Job> pending_progressions;
+	
+	/**
+	 * POSTPONED jobs and ERROR jobs to retry keys, with a not_before date. Synchronized.
+	 */
+	private final TimingWheel<UUID> postponed_jobs;
+	
+	/**
+	 * PREPARING and PROCESSING job keys, by lease deadline, and the keys actually in it. Synchronized on leased_jobs.
+	 * A renewed lease is moved in the wheel only when its previous deadline is passed.
+	 */
+	private final TimingWheel<UUID> leased_jobs;
+	private final HashSet<UUID> scheduled_leases;
+	private volatile long lease_duration;
+	private ScheduledFuture<?> lease_task;
+	
+	private final ConcurrentHashMap<String, SchedulingLatency> scheduling_latencies;
+	private final ConcurrentHashMap<String, RetryPolicy> retry_policies;
 	
 	private final InternalDispatcherJobEventObserver job_observer;
-	private final ArrayList<JobEventObserver> job_observer_list;
+	private final CopyOnWriteArrayList<JobEventObserver> job_observer_list;
 	
 	public InMemoryBroker(int max_job_count, long abandoned_jobs_retention_time, long done_jobs_retention_time, long error_jobs_retention_time, TimeUnit unit) {
+		this(max_job_count, abandoned_jobs_retention_time, done_jobs_retention_time, error_jobs_retention_time, unit, StoreLockMode.EXCLUSIVE);
+	}
+	
+	/**
+	 * @param store_lock_mode use CONCURRENT_READS for let getJobsByUUID/storeSize/getAllJobs callers don't wait each others.
+	 */
+	public InMemoryBroker(int max_job_count, long abandoned_jobs_retention_time, long done_jobs_retention_time, long error_jobs_retention_time, TimeUnit unit, StoreLockMode store_lock_mode) {
 		this.max_job_count = max_job_count;
 		this.abandoned_jobs_retention_time = unit.toMillis(abandoned_jobs_retention_time);
 		this.done_jobs_retention_time = unit.toMillis(done_jobs_retention_time);
 		this.error_jobs_retention_time = unit.toMillis(error_jobs_retention_time);
 		on_new_local_jobs_activity_callbacks = new ArrayList<>(1);
+		scheduling_latencies = new ConcurrentHashMap<>();
+		retry_policies = new ConcurrentHashMap<>();
+		pending_progressions = new LinkedBlockingQueue<>();
 		
 		job_observer = new InternalDispatcherJobEventObserver();
-		job_observer_list = new ArrayList<>();
+		job_observer_list = new CopyOnWriteArrayList<>();
 		
 		executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
 			Thread t = new Thread(runnable);
@@ -79,7 +136,11 @@ public class InMemoryBroker implements Broker {
 			t.setDaemon(true);
 			return t;
 		});
-		store = new InMemoryJobStore();
+		store = new InMemoryJobStore(store_lock_mode, this::getExpiryDate);
+		flush_slice_size = 10_000;
+		postponed_jobs = new TimingWheel<>(POSTPONED_JOBS_TICK_DURATION, POSTPONED_JOBS_WHEEL_SIZE, System.currentTimeMillis());
+		leased_jobs = new TimingWheel<>(LEASES_TICK_DURATION, LEASES_WHEEL_SIZE, System.currentTimeMillis());
+		scheduled_leases = new HashSet<>();
 		
 		long min_delay_to_update = Math.min(Math.min(abandoned_jobs_retention_time, done_jobs_retention_time), error_jobs_retention_time);
 		log.debug("Set regular flush task every " + min_delay_to_update + " " + unit.name().toLowerCase());
@@ -100,35 +161,58 @@ public class InMemoryBroker implements Broker {
 				});
 			}
 		}, min_delay_to_update, min_delay_to_update, unit);
+		
+		postponed_jobs_task = sch_maintenance_exec.scheduleWithFixedDelay(() -> {
+			try {
+				promoteDuePostponedJobs();
+			} catch (Exception e) {
+				log.error("Can't switch the due postponed jobs to waiting", e);
+			}
+		}, POSTPONED_JOBS_TICK_DURATION, POSTPONED_JOBS_TICK_DURATION, TimeUnit.MILLISECONDS);
 	}
 	
+	/**
+	 * Observers are called in the caller thread, often in a Job or store lock: use AsyncJobEventObserver for the slow ones.
+	 */
 	private class InternalDispatcherJobEventObserver implements JobEventObserver {
 		public void brokerOnAfterFlush(List<UUID> deleted_jobs_uuid) {
-			job_observer_list.parallelStream().forEach(o -> {
+			job_observer_list.forEach(o -> {
 				o.brokerOnAfterFlush(deleted_jobs_uuid);
 			});
 		}
 		
 		public void brokerOnCreateJob(Job job) {
-			job_observer_list.parallelStream().forEach(o -> {
+			job_observer_list.forEach(o -> {
 				o.brokerOnCreateJob(job);
 			});
 		}
 		
 		public void brokerOnCreateSubJob(Job reference, Job sub_job) {
-			job_observer_list.parallelStream().forEach(o -> {
+			job_observer_list.forEach(o -> {
 				o.brokerOnCreateSubJob(reference, sub_job);
 			});
 		}
 		
+		public void brokerOnCreateJobs(List<Job> jobs) {
+			job_observer_list.forEach(o -> {
+				o.brokerOnCreateJobs(jobs);
+			});
+		}
+		
+		public void brokerOnCreateSubJobs(Job reference, List<Job> sub_jobs) {
+			job_observer_list.forEach(o -> {
+				o.brokerOnCreateSubJobs(reference, sub_jobs);
+			});
+		}
+		
 		public void onJobUpdate(Job job, JobUpdateSubject cause) {
-			job_observer_list.parallelStream().forEach(o -> {
+			job_observer_list.forEach(o -> {
 				o.onJobUpdate(job, cause);
 			});
 		}
 		
 		public void onJobUpdateProgression(Job job) {
-			job_observer_list.parallelStream().forEach(o -> {
+			job_observer_list.forEach(o -> {
 				o.onJobUpdateProgression(job);
 			});
 		}
@@ -146,6 +230,16 @@ public class InMemoryBroker implements Broker {
 		return this;
 	}
 	
+	/**
+	 * The POSTPONED jobs with a not_before date will not be switched to WAITING after that.
+	 * @return this
+	 */
+	public InMemoryBroker cancelPostponedJobsTask() {
+		log.info("Cancel postponed jobs regular task");
+		postponed_jobs_task.cancel(false);
+		return this;
+	}
+	
 	public int storeSize() {
 		return store.size();
 	}
@@ -165,63 +259,110 @@ public class InMemoryBroker implements Broker {
 	}
 	
 	/**
+	 * The observer will be called by a dedicated thread, and never in the broker operations.
+	 * @param queue_capacity max pending events
+	 * @return this
+	 */
+	public InMemoryBroker addJobObserver(JobEventObserver job_observer, int queue_capacity, OverflowPolicy overflow_policy) {
+		return addJobObserver(new AsyncJobEventObserver(job_observer, queue_capacity, overflow_policy));
+	}
+	
+	/**
+	 * Max jobs visited by flush before release the store lock and let the others operations run.
+	 * @return this
+	 */
+	public InMemoryBroker setFlushSliceSize(int flush_slice_size) {
+		if (flush_slice_size < 1) {
+			throw new IndexOutOfBoundsException("\"flush_slice_size\" must be > 0");
+		}
+		this.flush_slice_size = flush_slice_size;
+		return this;
+	}
+	
+	/**
+	 * For the next created or restored jobs: keep their context content as UTF-8 JSON bytes, and not as a JsonObject tree.
+	 * Smaller in memory, but each getContextContent() will parse it.
+	 * @return this
+	 */
+	public InMemoryBroker setCompactContextContent(boolean compact_context_content) {
+		this.compact_context_content = compact_context_content;
+		return this;
+	}
+	
+	public boolean isCompactContextContent() {
+		return compact_context_content;
+	}
+	
+	private Job applyContextContentStorage(Job job) {
+		if (compact_context_content) {
+			job.compactContextContent();
+		}
+		return job;
+	}
+	
+	/**
+	 * Call by the store, in its lock, on each job put/update, and on each flush of an expired job.
+	 * @return the date after the job can be deleted by flush, or Long.MAX_VALUE
+	 */
+	private long getExpiryDate(Job job) {
+		switch (job.getStatus()) {
+		case PROCESSING:
+			/**
+			 * Processing tasks will never expire.
+			 */
+			return Long.MAX_VALUE;
+		case POSTPONED:
+			/**
+			 * Postponed tasks will never expire.
+			 */
+			return Long.MAX_VALUE;
+		case DONE:
+			/**
+			 * Count all dependant linked job, and the jobs with a dependency on it.
+			 */
+			if (store.getUnfinishedDependentsCount(job.getKey()) > 0) {
+				/**
+				 * If some sub-tasks are not yet done, keep main task, and check it later.
+				 */
+				return Math.max(job.getExpiryDate(done_jobs_retention_time), System.currentTimeMillis() + done_jobs_retention_time);
+			}
+			return job.getExpiryDate(done_jobs_retention_time);
+		case ERROR:
+			if (job.getNotBefore() != 0) {
+				/**
+				 * Will be retried: it don't expire before.
+				 */
+				return Long.MAX_VALUE;
+			}
+			return job.getExpiryDate(error_jobs_retention_time);
+		case WAITING:
+			/**
+			 * Search the dependant linked job, and the dependencies.
+			 */
+			if (job.getPredecessors().stream().anyMatch(predecessor -> store.getByUUID(predecessor) == null)) {
+				/**
+				 * Main task was deleted... delete this sub task.
+				 */
+				return Long.MIN_VALUE;
+			}
+			return job.getExpiryDate(abandoned_jobs_retention_time);
+		default:
+			return job.getExpiryDate(abandoned_jobs_retention_time);
+		}
+	}
+	
+	/**
+	 * Only visit the expired jobs, slice by slice.
 	 * @return this
 	 */
 	public InMemoryBroker flush() {
 		log.trace("Start flush");
 		
-		List<UUID> deleted_jobs_uuid = store.computeAllAndRemove((stream, uuid_resolver) -> {
-			return stream.filter(job -> {
-				if (job.getStatus().equals(TaskStatus.PROCESSING)) {
-					/**
-					 * Processing tasks will never expire.
-					 */
-					return false;
-				} else if (job.getStatus().isDone()) {
-					if (job.getStatus().equals(TaskStatus.DONE)) {
-						/**
-						 * Search all dependant linked job.
-						 */
-						List<UUID> relatives = job.getRelativesJobsUUID();
-						if (relatives.isEmpty() == false) {
-							if (relatives.stream().map(sub_job_uuid -> {
-								return uuid_resolver.apply(sub_job_uuid);
-							}).filter(sub_job -> sub_job != null).anyMatch(sub_job -> {
-								return sub_job.getStatus().isDone() == false;
-							})) {
-								/**
-								 * If some sub-tasks are not yet done, keep main task.
-								 */
-								return false;
-							}
-						}
-						
-						return job.isTooOld(done_jobs_retention_time);
-					} else if (job.getStatus().equals(TaskStatus.ERROR)) {
-						return job.isTooOld(error_jobs_retention_time);
-					}
-				} else if (job.getStatus().equals(TaskStatus.POSTPONED)) {
-					/**
-					 * Postponed tasks will never expire.
-					 */
-					return false;
-				} else if (job.getStatus().equals(TaskStatus.WAITING)) {
-					/**
-					 * Search the dependant linked job.
-					 */
-					if (job.getLinkedJob() != null) {
-						Job linked_job = uuid_resolver.apply(job.getLinkedJob());
-						if (linked_job == null) {
-							/**
-							 * Main task was deleted... delete this sub task.
-							 */
-							return true;
-						}
-					}
-				}
-				return job.isTooOld(abandoned_jobs_retention_time);
-			});
-		});
+		long now = System.currentTimeMillis();
+		ArrayList<UUID> deleted_jobs_uuid = new ArrayList<>();
+		do {
+			deleted_jobs_uuid.addAll(store.removeExpired(now, flush_slice_size));
+		} while (store.hasExpiredJobs(now));
 		
 		if (log.isDebugEnabled() && deleted_jobs_uuid.isEmpty() == false) {
 			if (log.isTraceEnabled()) {
@@ -238,6 +379,315 @@ public class InMemoryBroker implements Broker {
 		return this;
 	}
 	
+	/**
+	 * Put a job without capacity check, callbacks or events, like for restore it from a journal.
+	 */
+	void restoreJob(Job job) {
+		if (store.put(applyContextContentStorage(job)) == false) {
+			throw new RuntimeException("Can't restore job in internal store: " + job);
+		}
+		job.setObserver(job_observer);
+		schedulePostponedJobs(List.of(job));
+		updateLease(job);
+	}
+	
+	/**
+	 * For ShardedBroker: move these jobs and all their linked jobs (see InMemoryJobStore.removeLinkedJobs) in target, without callbacks or events.
+	 * The jobs are added in target before their delete here is notified with onJobsMovedOut.
+	 * @return the moved jobs
+	 */
+	List<Job> moveJobsTo(InMemoryBroker target, Collection<UUID> keys) {
+		List<Job> moved_jobs = store.removeLinkedJobs(keys);
+		if (moved_jobs.isEmpty()) {
+			return moved_jobs;
+		}
+		target.moveInJobs(moved_jobs);
+		onJobsMovedOut(moved_jobs);
+		return moved_jobs;
+	}
+	
+	/**
+	 * All in the same store write, without capacity check. The PREPARING and PROCESSING jobs start a new lease here.
+	 */
+	private void moveInJobs(List<Job> jobs) {
+		if (store.putAll(jobs.stream().map(this::applyContextContentStorage).collect(Collectors.toList()), Integer.MAX_VALUE) == false) {
+			throw new RuntimeException("Can't move jobs in internal store: " + jobs);
+		}
+		jobs.forEach(job -> job.setObserver(job_observer));
+		store.updateAll(jobs.stream().filter(job -> isLeased(job.getStatus())).map(Job::getKey).collect(Collectors.toList()), job -> {
+			updateLease(job);
+			return false;
+		});
+		schedulePostponedJobs(jobs);
+		onJobsMovedIn(jobs);
+		onNewLocalJobsActivity();
+	}
+	
+	/**
+	 * Called after the jobs are moved in this broker, by moveJobsTo.
+	 */
+	void onJobsMovedIn(List<Job> jobs) {
+	}
+	
+	/**
+	 * Called after the jobs are moved out of this broker, and added in the target, by moveJobsTo.
+	 */
+	void onJobsMovedOut(List<Job> jobs) {
+	}
+	
+	/**
+	 * Switch a job to POSTPONED, and let the broker switch it to WAITING after not_before, in a batch with the others due jobs.
+	 * Without active wait, and without scan the others postponed jobs.
+	 */
+	public void postponeJob(Job job, long not_before) {
+		log.debug("Postpone job " + job + " until " + new Date(not_before));
+		store.update(() -> {
+			job.switchStatus(TaskStatus.POSTPONED).setNotBefore(not_before);
+			onJobStatusChange(job);
+			return job.getKey();
+		});
+		schedulePostponedJobs(List.of(job));
+	}
+	
+	/**
+	 * Add the POSTPONED and ERROR jobs with a not_before date in the timing wheel.
+	 */
+	private void schedulePostponedJobs(Collection<Job> jobs) {
+		ArrayList<UUID> due_jobs = new ArrayList<>();
+		synchronized (postponed_jobs) {
+			jobs.forEach(job -> {
+				if (isPostponed(job) == false) {
+					return;
+				}
+				if (postponed_jobs.add(job.getKey(), job.getNotBefore()) == false) {
+					due_jobs.add(job.getKey());
+				}
+			});
+		}
+		promotePostponedJobs(due_jobs, System.currentTimeMillis());
+	}
+	
+	private void promoteDuePostponedJobs() {
+		long now = System.currentTimeMillis();
+		ArrayList<UUID> due_jobs = new ArrayList<>();
+		synchronized (postponed_jobs) {
+			postponed_jobs.advance(now, due_jobs::add);
+		}
+		promotePostponedJobs(due_jobs, now);
+	}
+	
+	/**
+	 * All in the same store write, with only one new jobs activity event.
+	 * The timing wheel is never cleaned: jobs switched or postponed again since their add are ignored here.
+	 */
+	private void promotePostponedJobs(List<UUID> due_jobs, long now) {
+		if (due_jobs.isEmpty()) {
+			return;
+		}
+		List<Job> promoted_jobs = store.updateAll(due_jobs, job -> {
+			if (isPostponed(job) == false || job.getNotBefore() > now) {
+				return false;
+			}
+			job.setNotBefore(0).switchStatus(TaskStatus.WAITING);
+			onJobStatusChange(job);
+			return true;
+		});
+		
+		if (promoted_jobs.isEmpty()) {
+			return;
+		}
+		log.debug("Switch " + promoted_jobs.size() + " postponed job(s) to waiting");
+		onNewLocalJobsActivity();
+	}
+	
+	private static boolean isPostponed(Job job) {
+		if (job.getNotBefore() == 0) {
+			return false;
+		}
+		return TaskStatus.POSTPONED.equals(job.getStatus()) || TaskStatus.ERROR.equals(job.getStatus());
+	}
+	
+	/**
+	 * Called in the store write section, after each job status or not_before change (except the WAITING/PREPARING pre-selection):
+	 * the calls for a same job are always in its change order.
+	 */
+	void onJobStatusChange(Job job) {
+	}
+	
+	/**
+	 * With leases, the PREPARING and PROCESSING jobs must be renewed by their worker with renewLease, or updateProgression with its lease epoch, before their lease expiry,
+	 * else the PREPARING jobs are switched back to WAITING, and the PROCESSING jobs to ERROR (and retried with their context type RetryPolicy).
+	 * @param duration 0 (default) for no leases: jobs stay PREPARING or PROCESSING until their worker switch them.
+	 * @return this
+	 */
+	public synchronized InMemoryBroker setLeaseDuration(long duration, TimeUnit unit) {
+		if (duration < 0) {
+			throw new IndexOutOfBoundsException("\"duration\" must be >= 0");
+		}
+		log.info("Set lease duration: " + duration + " " + unit.name().toLowerCase());
+		
+		if (lease_task != null) {
+			lease_task.cancel(false);
+			lease_task = null;
+		}
+		lease_duration = unit.toMillis(duration);
+		
+		/**
+		 * Actual PREPARING and PROCESSING jobs are leased (or released) now.
+		 */
+		store.updateAll(getAllJobs().stream().filter(job -> isLeased(job.getStatus())).map(Job::getKey).collect(Collectors.toList()), job -> {
+			updateLease(job);
+			return false;
+		});
+		
+		if (lease_duration > 0) {
+			lease_task = sch_maintenance_exec.scheduleWithFixedDelay(() -> {
+				try {
+					expireLeases();
+				} catch (Exception e) {
+					log.error("Can't expire the jobs leases", e);
+				}
+			}, LEASES_TICK_DURATION, LEASES_TICK_DURATION, TimeUnit.MILLISECONDS);
+		}
+		return this;
+	}
+	
+	/**
+	 * @return in msec, 0 for no leases
+	 */
+	public long getLeaseDuration() {
+		return lease_duration;
+	}
+	
+	/**
+	 * Lock free, like updateProgression.
+	 */
+	public void renewLease(Job job, long lease_epoch) {
+		job.checkLeaseEpoch(lease_epoch);
+		long duration = lease_duration;
+		if (duration > 0) {
+			job.renewLease(System.currentTimeMillis() + duration);
+		}
+	}
+	
+	/**
+	 * In the store lock, before the switch.
+	 */
+	private static void checkLeaseEpoch(Job job, long lease_epoch) {
+		if (lease_epoch != ANY_LEASE_EPOCH) {
+			job.checkLeaseEpoch(lease_epoch);
+		}
+	}
+	
+	private static boolean isLeased(TaskStatus status) {
+		return TaskStatus.PREPARING.equals(status) || TaskStatus.PROCESSING.equals(status);
+	}
+	
+	/**
+	 * After each status switch, in the store lock: start a new lease for the PREPARING and PROCESSING jobs, and clear the others.
+	 */
+	private void updateLease(Job job) {
+		long duration = lease_duration;
+		if (duration == 0 || isLeased(job.getStatus()) == false) {
+			if (job.getLeaseDeadline() != 0) {
+				job.clearLease();
+			}
+			return;
+		}
+		job.startLease(System.currentTimeMillis() + duration);
+		scheduleLease(job);
+	}
+	
+	/**
+	 * The lease deadline must be in the future.
+	 */
+	private void scheduleLease(Job job) {
+		synchronized (leased_jobs) {
+			if (scheduled_leases.add(job.getKey())) {
+				leased_jobs.add(job.getKey(), job.getLeaseDeadline());
+			}
+		}
+	}
+	
+	/**
+	 * Only visit the leases with a passed deadline: the renewed ones are scheduled again to their new deadline.
+	 */
+	private void expireLeases() {
+		long now = System.currentTimeMillis();
+		ArrayList<UUID> due_jobs = new ArrayList<>();
+		synchronized (leased_jobs) {
+			leased_jobs.advance(now, due_jobs::add);
+			scheduled_leases.removeAll(due_jobs);
+		}
+		if (due_jobs.isEmpty()) {
+			return;
+		}
+		
+		ArrayList<UUID> expired_jobs = new ArrayList<>();
+		due_jobs.forEach(key -> {
+			Job job = store.getByUUID(key);
+			if (job == null || job.getLeaseDeadline() == 0) {
+				return;
+			} else if (job.getLeaseDeadline() > now) {
+				scheduleLease(job);
+			} else {
+				expired_jobs.add(key);
+			}
+		});
+		
+		List<Job> reclaimed_jobs = store.updateAll(expired_jobs, job -> {
+			if (isLeased(job.getStatus()) == false || job.getLeaseDeadline() == 0) {
+				return false;
+			} else if (job.getLeaseDeadline() > now) {
+				/**
+				 * Renewed since.
+				 */
+				scheduleLease(job);
+				return false;
+			}
+			
+			String lease_owner = job.getLeaseOwner();
+			log.warn("Lease expired for job " + job + (lease_owner != null ? ", owned by " + lease_owner : ""));
+			job.nextLeaseEpoch();
+			if (TaskStatus.PREPARING.equals(job.getStatus())) {
+				job.clearLease().switchStatus(TaskStatus.WAITING);
+				onJobStatusChange(job);
+			} else {
+				applyError(job, new Exception("Lease expired" + (lease_owner != null ? " for " + lease_owner : "")));
+			}
+			return true;
+		});
+		
+		if (reclaimed_jobs.isEmpty()) {
+			return;
+		}
+		log.info("Reclaim " + reclaimed_jobs.size() + " job(s) with an expired lease");
+		reclaimed_jobs.stream().filter(job -> job.getNotBefore() != 0).forEach(this::logRetry);
+		schedulePostponedJobs(reclaimed_jobs);
+		onNewLocalJobsActivity();
+	}
+	
+	/**
+	 * Change the WAITING jobs selection order between the scheduling classes. Default is SchedulingPolicy.STRICT_PRIORITY.
+	 * @return this
+	 */
+	public InMemoryBroker setSchedulingPolicy(SchedulingPolicy scheduling_policy) {
+		log.info("Set scheduling policy: " + scheduling_policy);
+		store.setSchedulingPolicy(scheduling_policy);
+		return this;
+	}
+	
+	public SchedulingPolicy getSchedulingPolicy() {
+		return store.getSchedulingPolicy();
+	}
+	
+	/**
+	 * @return scheduling class -> wait time between creation and start, for the started jobs
+	 */
+	public Map<String, SchedulingLatency> getSchedulingLatencies() {
+		return Collections.unmodifiableMap(scheduling_latencies);
+	}
+	
 	public List<Job> getJobsByUUID(List<UUID> keys) {
 		if (keys == null) {
 			return Collections.emptyList();
@@ -246,11 +696,7 @@ public class InMemoryBroker implements Broker {
 			return Collections.emptyList();
 		}
 		
-		return keys.stream().map(uuid -> {
-			return store.getByUUID(uuid);
-		}).filter(job -> {
-			return job != null;
-		}).collect(Collectors.toList());
+		return store.getByUUIDs(keys);
 	}
 	
 	public List<Job> getAllJobs() {
@@ -259,27 +705,171 @@ public class InMemoryBroker implements Broker {
 		});
 	}
 	
+	/**
+	 * Lock free: progressions are not indexed by the store. Without lease_epoch, it's not a worker heartbeat: the job lease is not renewed.
+	 */
 	public void updateProgression(Job job, int actual_value, int max_value) {
 		if (log.isTraceEnabled()) {
 			log.trace("Update job progression: " + actual_value + "/" + max_value + " for " + job);
 		}
-		store.update(() -> {
-			return job.updateProgression(actual_value, max_value).getKey();
+		job.updateProgression(actual_value, max_value);
+		publishProgression(job);
+	}
+	
+	/**
+	 * Lock free, like renewLease.
+	 */
+	public void updateProgression(Job job, int actual_value, int max_value, long lease_epoch) {
+		if (log.isTraceEnabled()) {
+			log.trace("Update job progression: " + actual_value + "/" + max_value + " for " + job);
+		}
+		job.checkLeaseEpoch(lease_epoch);
+		job.updateProgression(actual_value, max_value);
+		
+		/**
+		 * Worker heartbeat
+		 */
+		long duration = lease_duration;
+		if (duration > 0) {
+			job.renewLease(System.currentTimeMillis() + duration);
+		}
+		publishProgression(job);
+	}
+	
+	private void publishProgression(Job job) {
+		if (progression_publish_interval == 0) {
+			job_observer.onJobUpdateProgression(job);
+		} else if (job.markProgressionPublishPending()) {
+			pending_progressions.add(job);
+		}
+	}
+	
+	/**
+	 * Publish to the observers only the last progression of each updated job, at most one time by interval.
+	 * @param interval 0 (default) for publish all progression updates, directly in the caller thread.
+	 * @return this
+	 */
+	public synchronized InMemoryBroker setProgressionPublishInterval(long interval, TimeUnit unit) {
+		if (interval < 0) {
+			throw new IndexOutOfBoundsException("\"interval\" must be >= 0");
+		}
+		log.info("Set progression publish interval: " + interval + " " + unit.name().toLowerCase());
+		
+		if (progression_publish_task != null) {
+			progression_publish_task.cancel(false);
+			progression_publish_task = null;
+		}
+		progression_publish_interval = unit.toMillis(interval);
+		
+		if (progression_publish_interval > 0) {
+			progression_publish_task = sch_maintenance_exec.scheduleWithFixedDelay(() -> {
+				try {
+					publishProgressions();
+				} catch (Exception e) {
+					log.error("Can't publish jobs progressions", e);
+				}
+			}, progression_publish_interval, progression_publish_interval, TimeUnit.MILLISECONDS);
+		} else {
+			sch_maintenance_exec.execute(this::publishProgressions);
+		}
+		return this;
+	}
+	
+	/**
+	 * Publish now the pending progressions.
+	 */
+	void publishProgressions() {
+		ArrayList<Job> jobs = new ArrayList<>();
+		pending_progressions.drainTo(jobs);
+		jobs.forEach(job -> {
+			job.clearProgressionPublishPending();
+			job_observer.onJobUpdateProgression(job);
 		});
 	}
 	
+	/**
+	 * With a retry policy for this job context type, the job will be switched back to WAITING later, until its max attempts.
+	 */
 	public void switchToError(Job job, Throwable e) {
+		switchToError(job, e, ANY_LEASE_EPOCH);
+	}
+	
+	/**
+	 * The lease epoch is checked in the store write section, with the switch.
+	 */
+	public void switchToError(Job job, Throwable e, long lease_epoch) {
 		log.debug("Switch Job " + job + " in error", e);
 		store.update(() -> {
-			return job.switchToError(e).getKey();
+			checkLeaseEpoch(job, lease_epoch);
+			return applyError(job, e).getKey();
 		});
 		
+		if (job.getNotBefore() != 0) {
+			logRetry(job);
+			schedulePostponedJobs(List.of(job));
+		}
+	}
+	
+	private void logRetry(Job job) {
+		RetryPolicy retry_policy = retry_policies.get(job.getContextType());
+		log.info("Job " + job + " will be retried after " + new Date(job.getNotBefore()) + ", attempt " + job.getAttemptCount() + (retry_policy != null ? "/" + retry_policy.getMaxAttempts() : ""));
+	}
+	
+	/**
+	 * In the store lock.
+	 * @return job, with a not_before date if it will be retried
+	 */
+	private Job applyError(Job job, Throwable e) {
+		RetryPolicy retry_policy = retry_policies.get(job.getContextType());
+		job.clearLease().switchToError(e);
+		if (retry_policy != null && retry_policy.canRetry(job.getAttemptCount())) {
+			job.setNotBefore(System.currentTimeMillis() + retry_policy.getRetryDelay(job.getAttemptCount()));
+		} else {
+			job.setNotBefore(0);
+		}
+		onJobStatusChange(job);
+		return job;
+	}
+	
+	/**
+	 * @param retry_policy null for remove it: the jobs in error will stay in error.
+	 * @return this
+	 */
+	public InMemoryBroker setRetryPolicy(String context_type, RetryPolicy retry_policy) {
+		if (context_type == null) {
+			throw new NullPointerException("\"context_type\" can't to be null");
+		}
+		log.info("Set retry policy for " + context_type + ": " + retry_policy);
+		if (retry_policy == null) {
+			retry_policies.remove(context_type);
+		} else {
+			retry_policies.put(context_type, retry_policy);
+		}
+		return this;
+	}
+	
+	/**
+	 * @return null if not set
+	 */
+	public RetryPolicy getRetryPolicy(String context_type) {
+		return retry_policies.get(context_type);
 	}
 	
 	public void switchStatus(Job job, TaskStatus new_status) {
+		switchStatus(job, new_status, ANY_LEASE_EPOCH);
+	}
+	
+	/**
+	 * The lease epoch is checked in the store write section, with the switch.
+	 */
+	public void switchStatus(Job job, TaskStatus new_status, long lease_epoch) {
 		log.debug("Switch status for job ", () -> job);
 		store.update(() -> {
-			return job.switchStatus(new_status).getKey();
+			checkLeaseEpoch(job, lease_epoch);
+			job.switchStatus(new_status);
+			updateLease(job);
+			onJobStatusChange(job);
+			return job.getKey();
 		});
 	}
 	
@@ -288,9 +878,6 @@ public class InMemoryBroker implements Broker {
 	}
 	
 	public Job createJob(String description, String external_reference, String context_type, JsonObject context_content, Collection<String> context_requirement_tags) {
-		if (store.size() >= max_job_count) {
-			throw new FullJobStoreException();
-		}
 		Job job = new Job();
 		
 		ArrayList<String> l_context_requirement_tags = null;
@@ -299,16 +886,15 @@ public class InMemoryBroker implements Broker {
 		}
 		job.init(description, context_type, context_content, l_context_requirement_tags);
 		job.setExternalReference(external_reference);
+		applyContextContentStorage(job);
 		
-		if (store.put(job) == false) {
+		if (store.put(job, max_job_count) == false) {
 			throw new RuntimeException("Can't put job in internal store: " + job);
 		}
 		
 		log.info("Create job " + job);
 		
-		on_new_local_jobs_activity_callbacks.stream().forEach(r -> {
-			executor.execute(r);
-		});
+		onNewLocalJobsActivity();
 		
 		if (job_observer != null) {
 			job_observer.brokerOnCreateJob(job);
@@ -323,26 +909,21 @@ public class InMemoryBroker implements Broker {
 	}
 	
 	public Job addSubJob(Job reference, String description, String external_reference, String context_type, JsonObject context_content, Collection<String> context_requirement_tags) {
-		if (store.size() >= max_job_count) {
-			throw new FullJobStoreException();
-		}
-		
 		ArrayList<String> l_context_requirement_tags = null;
 		if (context_requirement_tags != null) {
 			l_context_requirement_tags = new ArrayList<>(context_requirement_tags);
 		}
 		
-		Job sub_job = reference.addSubJob(description, context_type, context_content, l_context_requirement_tags).setExternalReference(external_reference);
+		Job sub_job = applyContextContentStorage(reference.newSubJob(description, context_type, context_content, l_context_requirement_tags).setExternalReference(external_reference));
 		
-		if (store.put(sub_job) == false) {
+		if (store.put(sub_job, max_job_count) == false) {
 			throw new RuntimeException("Can't put sub_job in internal store: " + sub_job);
 		}
+		reference.addRelativesSubJobs(List.of(sub_job));
 		
 		log.info("Create sub job " + sub_job + " referenced by " + reference);
 		
-		on_new_local_jobs_activity_callbacks.stream().forEach(r -> {
-			executor.execute(r);
-		});
+		onNewLocalJobsActivity();
 		
 		if (job_observer != null) {
 			job_observer.brokerOnCreateSubJob(reference, sub_job);
@@ -352,6 +933,187 @@ public class InMemoryBroker implements Broker {
 		return sub_job;
 	}
 	
+	public List<Job> createJobs(List<JobSpec> specs) {
+		return createJobs(specs, null);
+	}
+	
+	/**
+	 * @param keys the new jobs keys, in specs order, like for ShardedBroker routing. Null for random keys.
+	 */
+	List<Job> createJobs(List<JobSpec> specs, List<UUID> keys) {
+		if (specs.isEmpty()) {
+			return Collections.emptyList();
+		}
+		if (keys != null && keys.size() != specs.size()) {
+			throw new IndexOutOfBoundsException("Invalid keys count: " + keys.size() + " for " + specs.size() + " specs");
+		}
+		
+		checkDependencies(specs);
+		long now = System.currentTimeMillis();
+		List<Job> jobs = IntStream.range(0, specs.size()).mapToObj(pos -> {
+			JobSpec spec = specs.get(pos);
+			Job job = new Job();
+			job.init(spec.getDescription(), spec.getContextType(), spec.getContextContent(), spec.copyContextRequirementTags());
+			if (keys != null) {
+				job.setKey(keys.get(pos));
+			}
+			job.setExternalReference(spec.getExternalReference()).setPriority(spec.getPriority());
+			return applyNotBefore(applyContextContentStorage(job), spec, now);
+		}).collect(Collectors.toUnmodifiableList());
+		applyDependencies(specs, jobs);
+		
+		if (store.putAll(jobs, max_job_count) == false) {
+			throw new RuntimeException("Can't put jobs in internal store");
+		}
+		
+		log.info("Create " + jobs.size() + " jobs");
+		if (log.isDebugEnabled()) {
+			jobs.forEach(job -> log.debug("Create job " + job));
+		}
+		
+		onNewLocalJobsActivity();
+		
+		if (job_observer != null) {
+			job_observer.brokerOnCreateJobs(jobs);
+		}
+		jobs.forEach(job -> job.setObserver(job_observer));
+		schedulePostponedJobs(jobs);
+		
+		return jobs;
+	}
+	
+	/**
+	 * Check there is no cycle between the specs of this batch, with a Kahn's topological sort.
+	 * Dependencies are only set on creation, so a job outside this batch can't depend on it, and can't be in a cycle.
+	 * @throws IllegalArgumentException if a dependency can't be found, or for a cycle.
+	 */
+	private void checkDependencies(List<JobSpec> specs) {
+		if (specs.stream().noneMatch(JobSpec::hasDependencies)) {
+			return;
+		}
+		
+		IdentityHashMap<JobSpec, Integer> pos_by_spec = new IdentityHashMap<>(specs.size());
+		for (int pos = 0; pos < specs.size(); pos++) {
+			pos_by_spec.put(specs.get(pos), pos);
+		}
+		
+		int[] in_degrees = new int[specs.size()];
+		ArrayList<ArrayList<Integer>> successors = new ArrayList<>(specs.size());
+		for (int pos = 0; pos < specs.size(); pos++) {
+			successors.add(new ArrayList<>());
+		}
+		
+		for (int pos = 0; pos < specs.size(); pos++) {
+			JobSpec spec = specs.get(pos);
+			for (UUID dependency : spec.getDependencies()) {
+				if (store.getByUUID(dependency) == null) {
+					throw new IllegalArgumentException("Can't found dependency " + dependency + " for " + spec.getDescription());
+				}
+			}
+			for (JobSpec batch_dependency : spec.getBatchDependencies()) {
+				Integer dependency_pos = pos_by_spec.get(batch_dependency);
+				if (dependency_pos == null) {
+					throw new IllegalArgumentException("Dependency " + batch_dependency.getDescription() + " for " + spec.getDescription() + " is not in this batch");
+				}
+				successors.get(dependency_pos).add(pos);
+				in_degrees[pos]++;
+			}
+		}
+		
+		ArrayDeque<Integer> sources = new ArrayDeque<>();
+		for (int pos = 0; pos < in_degrees.length; pos++) {
+			if (in_degrees[pos] == 0) {
+				sources.add(pos);
+			}
+		}
+		int sorted = 0;
+		while (sources.isEmpty() == false) {
+			sorted++;
+			for (int successor : successors.get(sources.poll())) {
+				if (--in_degrees[successor] == 0) {
+					sources.add(successor);
+				}
+			}
+		}
+		
+		if (sorted < specs.size()) {
+			List<String> in_cycle = IntStream.range(0, specs.size()).filter(pos -> in_degrees[pos] > 0).mapToObj(pos -> specs.get(pos).getDescription()).collect(Collectors.toList());
+			throw new IllegalArgumentException("Dependency cycle between " + in_cycle);
+		}
+	}
+	
+	/**
+	 * After checkDependencies, before put the jobs in the store.
+	 */
+	private void applyDependencies(List<JobSpec> specs, List<Job> jobs) {
+		if (specs.stream().noneMatch(JobSpec::hasDependencies)) {
+			return;
+		}
+		
+		IdentityHashMap<JobSpec, Job> job_by_spec = new IdentityHashMap<>(specs.size());
+		for (int pos = 0; pos < specs.size(); pos++) {
+			job_by_spec.put(specs.get(pos), jobs.get(pos));
+		}
+		for (int pos = 0; pos < specs.size(); pos++) {
+			JobSpec spec = specs.get(pos);
+			if (spec.hasDependencies()) {
+				ArrayList<UUID> dependencies = new ArrayList<>(spec.getDependencies());
+				spec.getBatchDependencies().forEach(batch_dependency -> dependencies.add(job_by_spec.get(batch_dependency).getKey()));
+				jobs.get(pos).setDependencies(dependencies);
+			}
+		}
+	}
+	
+	public List<Job> addSubJobs(Job reference, List<JobSpec> specs) {
+		if (specs.isEmpty()) {
+			return Collections.emptyList();
+		}
+		checkDependencies(specs);
+		long now = System.currentTimeMillis();
+		List<Job> sub_jobs = specs.stream().map(spec -> {
+			Job sub_job = reference.newSubJob(spec.getDescription(), spec.getContextType(), spec.getContextContent(), spec.copyContextRequirementTags()).setExternalReference(spec.getExternalReference()).setPriority(spec.getPriority());
+			return applyNotBefore(applyContextContentStorage(sub_job), spec, now);
+		}).collect(Collectors.toUnmodifiableList());
+		applyDependencies(specs, sub_jobs);
+		
+		if (store.putAll(sub_jobs, max_job_count) == false) {
+			throw new RuntimeException("Can't put sub_jobs in internal store");
+		}
+		reference.addRelativesSubJobs(sub_jobs);
+		
+		log.info("Create " + sub_jobs.size() + " sub jobs referenced by " + reference);
+		if (log.isDebugEnabled()) {
+			sub_jobs.forEach(sub_job -> log.debug("Create sub job " + sub_job));
+		}
+		
+		onNewLocalJobsActivity();
+		
+		if (job_observer != null) {
+			job_observer.brokerOnCreateSubJobs(reference, sub_jobs);
+		}
+		sub_jobs.forEach(sub_job -> sub_job.setObserver(job_observer));
+		schedulePostponedJobs(sub_jobs);
+		
+		return sub_jobs;
+	}
+	
+	/**
+	 * Before put it in the store.
+	 * @return job, POSTPONED if spec not_before is not yet passed
+	 */
+	private static Job applyNotBefore(Job job, JobSpec spec, long now) {
+		if (spec.getNotBefore() > now) {
+			job.switchStatus(TaskStatus.POSTPONED).setNotBefore(spec.getNotBefore());
+		}
+		return job;
+	}
+	
+	private void onNewLocalJobsActivity() {
+		on_new_local_jobs_activity_callbacks.stream().forEach(r -> {
+			executor.execute(r);
+		});
+	}
+	
 	public void registerCallbackOnNewLocalJobsActivity(Runnable callback) {
 		synchronized (on_new_local_jobs_activity_callbacks) {
 			on_new_local_jobs_activity_callbacks.add(callback);
@@ -359,77 +1121,84 @@ public class InMemoryBroker implements Broker {
 	}
 	
 	public void getNextJobs(List<String> list_to_context_types, IntSupplier queue_capacity, BiPredicate<String, List<String>> filterByContextTypeAndTags, Predicate<Job> onFoundJobReadyToStart) {
+		List<Job> pre_selected_jobs = preSelectNextJobs(list_to_context_types, queue_capacity.getAsInt(), filterByContextTypeAndTags);
+		
+		long now = System.currentTimeMillis();
+		pre_selected_jobs.forEach(preparing_job -> {
+			offerPreSelectedJob(preparing_job, onFoundJobReadyToStart, now);
+		});
+	}
+	
+	/**
+	 * First step of getNextJobs: select and switch to PREPARING the next WAITING jobs.
+	 * @return selected jobs, in selection order. Each must be offered with offerPreSelectedJob.
+	 */
+	List<Job> preSelectNextJobs(List<String> list_to_context_types, int queue_capacity, BiPredicate<String, List<String>> filterByContextTypeAndTags) {
 		if (log.isTraceEnabled()) {
 			log.trace("Do getNextJobs for " + list_to_context_types);
 		}
 		
-		HashSet<String> set_context_types = new HashSet<>(list_to_context_types);
-		
-		List<Job> pre_selected_jobs = store.computeAndUpdate(TaskStatus.WAITING, (stream, job_by_uuid_resolver) -> {
-			return stream.takeWhile(job -> {
-				/**
-				 * checkQueueCapacity
-				 */
-				return queue_capacity.getAsInt() > 0;
-			}).filter(job -> {
-				return job != null;
-			}).filter(job -> {
-				/**
-				 * checkJobIsNotTooOld
-				 */
-				return job.isTooOld(abandoned_jobs_retention_time) == false;
-			}).filter(job -> {
-				/**
-				 * checkJobContextType
-				 */
-				return set_context_types.contains(job.getContextType());
-			}).filter(job -> {
-				/**
-				 * checkJobTagsByContextType
-				 */
-				if (job.hasContextRequirementTags() == false) {
-					return true;
-				}
-				return filterByContextTypeAndTags.test(job.getContextType(), job.getContextRequirementTags());
-			}).filter(job -> {
-				/**
-				 * Check linked_job status
-				 */
-				UUID linked_job_uuid = job.getLinkedJob();
-				if (linked_job_uuid == null) {
-					return true;
-				}
-				Job linked_job = job_by_uuid_resolver.apply(linked_job_uuid);
-				if (linked_job == null) {
-					/**
-					 * linked_job deleted !
-					 */
-					return false;
-				}
-				
-				return linked_job.getStatus() == TaskStatus.DONE;
-			}).sorted((l, r) -> {
-				return Long.compare(l.getCreateDate(), r.getCreateDate());
-			});
+		List<Job> pre_selected_jobs = store.computeAndUpdateWaiting(list_to_context_types, queue_capacity, (job, job_by_uuid_resolver) -> {
+			/**
+			 * checkJobIsNotTooOld
+			 */
+			if (job.isTooOld(abandoned_jobs_retention_time)) {
+				return false;
+			}
+			
+			/**
+			 * checkJobTagsByContextType
+			 */
+			if (job.hasContextRequirementTags() && filterByContextTypeAndTags.test(job.getContextType(), job.getContextRequirementTags()) == false) {
+				return false;
+			}
+			
+			/**
+			 * No need to check linked_job and dependencies status: the store index the WAITING jobs only after all their predecessors are DONE.
+			 */
+			return true;
 		}, job -> {
-			job.switchStatus(TaskStatus.PREPARING);
+			job.switchStatus(TaskStatus.PREPARING).nextLeaseEpoch();
+			updateLease(job);
 		});
 		
 		if (log.isTraceEnabled()) {
 			log.trace("pre_selected_jobs raw list: " + pre_selected_jobs);
 		}
-		
-		pre_selected_jobs.stream().filter(preparing_job -> {
-			return onFoundJobReadyToStart.test(preparing_job) == false;
-		}).forEach(rejected_preparing_job -> {
-			store.update(() -> {
+		return pre_selected_jobs;
+	}
+	
+	/**
+	 * Second step of getNextJobs: if the job is not started by onFoundJobReadyToStart, switch it back to WAITING.
+	 * @param now the pre-selection date, for the scheduling latencies
+	 */
+	void offerPreSelectedJob(Job preparing_job, Predicate<Job> onFoundJobReadyToStart, long now) {
+		long lease_epoch = preparing_job.getLeaseEpoch();
+		if (onFoundJobReadyToStart.test(preparing_job)) {
+			scheduling_latencies.computeIfAbsent(store.getSchedulingPolicy().getSchedulingClass(preparing_job), s_c -> new SchedulingLatency()).record(now - preparing_job.getCreateDate());
+			return;
+		}
+		store.update(() -> {
+			if (preparing_job.getLeaseEpoch() != lease_epoch) {
 				/**
-				 * Finally, this job can't to be process now. Re-switch to waiting.
+				 * Reclaimed after a lease expiry during onFoundJobReadyToStart.
 				 */
-				rejected_preparing_job.switchStatus(TaskStatus.WAITING);
-				return rejected_preparing_job.getKey();
-			});
+				return preparing_job.getKey();
+			}
+			/**
+			 * Finally, this job can't to be process now. Re-switch to waiting.
+			 */
+			preparing_job.clearLease().switchStatus(TaskStatus.WAITING);
+			return preparing_job.getKey();
 		});
 	}
 	
+	/**
+	 * Lock free.
+	 * @return null if this broker don't have it
+	 */
+	Job getJobByUUID(UUID key) {
+		return store.getByUUID(key);
+	}
+	
 }
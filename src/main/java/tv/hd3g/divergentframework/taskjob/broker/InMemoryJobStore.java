@@ -16,21 +16,34 @@
 */
 package tv.hd3g.divergentframework.taskjob.broker;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -43,40 +56,95 @@ import org.apache.logging.log4j.Logger;
 class InMemoryJobStore {
 	private static final Logger log = LogManager.getLogger();
 	
-	private final ReentrantLock lock;
-	private final Condition lock_condition;
-	private boolean in_write_operation;
+	private final Lock read_lock;
+	private final Lock write_lock;
 	
+	/**
+	 * Concurrent collections: lookups and counts don't need to take the lock.
+	 */
 	private final Map<UUID, Job> jobs_by_uuid;
-	private final HashSet<UUID> waiting_jobs;
-	private final HashSet<UUID> others_jobs;
+	private final Set<UUID> waiting_jobs;
+	private final Set<UUID> others_jobs;
+	
+	/**
+	 * WAITING jobs only: context_type -> scheduling class -> jobs, sorted by WAITING_JOBS_ORDER.
+	 */
+	private final HashMap<String, HashMap<String, TreeSet<Job>>> waiting_jobs_by_context_type;
+	private volatile SchedulingPolicy scheduling_policy;
+	
+	/**
+	 * Higher priority first, then creation date, and UUID for the jobs created in the same msec.
+	 */
+	static final Comparator<Job> WAITING_JOBS_ORDER = Comparator.comparingInt(Job::getPriority).reversed().thenComparingLong(Job::getCreateDate).thenComparing(Job::getKey);
+	
+	/**
+	 * Jobs sorted by the date they can be deleted. Jobs that never expire are not here.
+	 */
+	private final TreeSet<ExpiryEntry> expiry_index;
+	private final HashMap<UUID, ExpiryEntry> expiry_by_uuid;
+	private final ToLongFunction<Job> expiry_date_resolver;
+	
+	/**
+	 * Predecessor job key (a parent or a dependency) -> its dependent jobs, only for the predecessors with some unfinished dependent jobs.
+	 */
+	private final HashMap<UUID, Dependents> dependents_by_predecessor;
+	/**
+	 * WAITING jobs out of the waiting index -> their in-degree: the count of their predecessors not DONE, always > 0.
+	 * They are put in the waiting index when it falls to 0.
+	 */
+	private final HashMap<Job, Integer> blocked_jobs;
 	
 	InMemoryJobStore() {
-		lock = new ReentrantLock();
-		lock_condition = lock.newCondition();
+		this(StoreLockMode.EXCLUSIVE);
+	}
+	
+	InMemoryJobStore(StoreLockMode lock_mode) {
+		this(lock_mode, job -> Long.MAX_VALUE);
+	}
+	
+	/**
+	 * @param expiry_date_resolver job -> date after it can be deleted, or Long.MAX_VALUE if it never expire. Call is in internal lock, on each job put/update.
+	 */
+	InMemoryJobStore(StoreLockMode lock_mode, ToLongFunction<Job> expiry_date_resolver) {
+		if (lock_mode == null) {
+			throw new NullPointerException("\"lock_mode\" can't to be null");
+		}
+		this.expiry_date_resolver = expiry_date_resolver;
+		if (expiry_date_resolver == null) {
+			throw new NullPointerException("\"expiry_date_resolver\" can't to be null");
+		}
+		
+		if (lock_mode == StoreLockMode.CONCURRENT_READS) {
+			ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+			read_lock = lock.readLock();
+			write_lock = lock.writeLock();
+		} else {
+			ReentrantLock lock = new ReentrantLock();
+			read_lock = lock;
+			write_lock = lock;
+		}
 		
-		jobs_by_uuid = new HashMap<>();
-		waiting_jobs = new HashSet<>();
-		others_jobs = new HashSet<>();
+		jobs_by_uuid = new ConcurrentHashMap<>();
+		waiting_jobs = ConcurrentHashMap.newKeySet();
+		others_jobs = ConcurrentHashMap.newKeySet();
+		waiting_jobs_by_context_type = new HashMap<>();
+		scheduling_policy = SchedulingPolicy.STRICT_PRIORITY;
+		expiry_index = new TreeSet<>();
+		expiry_by_uuid = new HashMap<>();
+		dependents_by_predecessor = new HashMap<>();
+		blocked_jobs = new HashMap<>();
 	}
 	
 	private <T> T syncRead(Supplier<T> compute) {
-		lock.lock();
-		
+		read_lock.lock();
 		try {
-			while (in_write_operation) {
-				lock_condition.await();
-			}
-			
 			return compute.get();
-		} catch (InterruptedException ie) {
-			throw new RuntimeException("Cancel get", ie);
 		} finally {
-			lock.unlock();
+			read_lock.unlock();
 		}
 	}
 	
-	private HashSet<UUID> getInternalSetByTaskStatus(TaskStatus status) {
+	private Set<UUID> getInternalSetByTaskStatus(TaskStatus status) {
 		if (TaskStatus.WAITING.equals(status)) {
 			return waiting_jobs;
 		} else {
@@ -85,39 +153,362 @@ class InMemoryJobStore {
 	}
 	
 	private <T> T syncWrite(Supplier<T> compute) {
-		lock.lock();
-		
+		write_lock.lock();
 		try {
-			while (in_write_operation) {
-				lock_condition.await();
-			}
-			in_write_operation = true;
-			
 			return compute.get();
-		} catch (InterruptedException ie) {
-			throw new RuntimeException("Cancel write", ie);
 		} finally {
-			in_write_operation = false;
-			try {
-				lock_condition.signalAll();
-			} finally {
-				lock.unlock();
-			}
+			write_lock.unlock();
 		}
 	}
 	
 	boolean put(Job job) {
+		return put(job, Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Check the capacity and put in the same write operation.
+	 * @throws FullJobStoreException if the store has already max_job_count jobs
+	 */
+	boolean put(Job job, int max_job_count) throws FullJobStoreException {
 		return syncWrite(() -> {
+			if (jobs_by_uuid.size() >= max_job_count) {
+				throw new FullJobStoreException();
+			}
 			if (jobs_by_uuid.containsKey(job.getKey())) {
 				return false;
 			}
 			jobs_by_uuid.put(job.getKey(), job);
-			getInternalSetByTaskStatus(job.getStatus()).add(job.getKey());
-			
+			indexNewJob(job);
+			return true;
+		});
+	}
+	
+	/**
+	 * Check the capacity for all jobs and put them in the same write operation.
+	 * @throws FullJobStoreException if the store can't take all jobs: nothing is added
+	 * @return false if a job is already present: nothing is added
+	 */
+	boolean putAll(Collection<Job> jobs, int max_job_count) throws FullJobStoreException {
+		return syncWrite(() -> {
+			if (jobs_by_uuid.size() + jobs.size() > max_job_count) {
+				throw new FullJobStoreException();
+			}
+			if (jobs.stream().anyMatch(job -> jobs_by_uuid.containsKey(job.getKey()))) {
+				return false;
+			}
+			jobs.forEach(job -> {
+				jobs_by_uuid.put(job.getKey(), job);
+			});
+			jobs.forEach(this::indexNewJob);
 			return true;
 		});
 	}
 	
+	/**
+	 * Remove in the same write operation these jobs, and all the jobs linked to them, in cascade: their predecessors (linked jobs and dependencies), and their dependent jobs, whatever their status.
+	 * O(n): it scans all the jobs for found the done dependent jobs, not indexed.
+	 * @return the removed jobs, for put them in an another store with putAll
+	 */
+	List<Job> removeLinkedJobs(Collection<UUID> keys) {
+		if (keys.isEmpty()) {
+			return List.of();
+		}
+		return syncWrite(() -> {
+			HashMap<UUID, List<UUID>> dependents_by_key = new HashMap<>();
+			jobs_by_uuid.values().forEach(job -> {
+				job.getPredecessors().forEach(predecessor_key -> {
+					dependents_by_key.computeIfAbsent(predecessor_key, p_k -> new ArrayList<>()).add(job.getKey());
+				});
+			});
+			
+			LinkedHashMap<UUID, Job> linked_jobs = new LinkedHashMap<>();
+			ArrayDeque<UUID> to_visit = new ArrayDeque<>(keys);
+			while (to_visit.isEmpty() == false) {
+				UUID key = to_visit.poll();
+				Job job = jobs_by_uuid.get(key);
+				if (job == null || linked_jobs.putIfAbsent(key, job) != null) {
+					continue;
+				}
+				to_visit.addAll(job.getPredecessors());
+				to_visit.addAll(dependents_by_key.getOrDefault(key, List.of()));
+			}
+			
+			linked_jobs.values().forEach(this::removeInternal);
+			return new ArrayList<>(linked_jobs.values());
+		});
+	}
+	
+	/**
+	 * Not thread safe. After put it in jobs_by_uuid.
+	 */
+	private void indexNewJob(Job job) {
+		updateDependentsCounters(job);
+		getInternalSetByTaskStatus(job.getStatus()).add(job.getKey());
+		if (TaskStatus.WAITING.equals(job.getStatus())) {
+			addToWaitingJobs(job);
+		}
+		updateDependentsReadiness(job);
+		updateExpiryIndex(job);
+	}
+	
+	/**
+	 * Not thread safe.
+	 */
+	private void addToWaitingIndex(Job job) {
+		waiting_jobs_by_context_type.computeIfAbsent(job.getContextType(), c_t -> {
+			return new HashMap<>();
+		}).computeIfAbsent(scheduling_policy.getSchedulingClass(job), s_c -> {
+			return new TreeSet<>(WAITING_JOBS_ORDER);
+		}).add(job);
+	}
+	
+	/**
+	 * Not thread safe.
+	 */
+	private void removeFromWaitingIndex(Job job) {
+		HashMap<String, TreeSet<Job>> context_type_classes = waiting_jobs_by_context_type.get(job.getContextType());
+		if (context_type_classes == null) {
+			return;
+		}
+		String scheduling_class = scheduling_policy.getSchedulingClass(job);
+		TreeSet<Job> class_jobs = context_type_classes.get(scheduling_class);
+		if (class_jobs == null || class_jobs.remove(job) == false) {
+			/**
+			 * Job scheduling class has changed since its indexation
+			 */
+			Optional<Entry<String, TreeSet<Job>>> o_found = context_type_classes.entrySet().stream().filter(entry -> {
+				return entry.getValue().remove(job);
+			}).findFirst();
+			if (o_found.isEmpty()) {
+				return;
+			}
+			scheduling_class = o_found.get().getKey();
+			class_jobs = o_found.get().getValue();
+		}
+		if (class_jobs.isEmpty()) {
+			context_type_classes.remove(scheduling_class);
+		}
+		if (context_type_classes.isEmpty()) {
+			waiting_jobs_by_context_type.remove(job.getContextType());
+		}
+		if (class_jobs.isEmpty()) {
+			String empty_class = scheduling_class;
+			if (waiting_jobs_by_context_type.values().stream().noneMatch(classes -> classes.containsKey(empty_class))) {
+				scheduling_policy.onEmptyClass(empty_class);
+			}
+		}
+	}
+	
+	/**
+	 * Rebuild the waiting jobs index with the new policy scheduling classes.
+	 */
+	void setSchedulingPolicy(SchedulingPolicy scheduling_policy) {
+		if (scheduling_policy == null) {
+			throw new NullPointerException("\"scheduling_policy\" can't to be null");
+		}
+		syncWrite(() -> {
+			this.scheduling_policy = scheduling_policy;
+			waiting_jobs_by_context_type.clear();
+			waiting_jobs.stream().map(jobs_by_uuid::get).filter(job -> {
+				return blocked_jobs.containsKey(job) == false;
+			}).forEach(this::addToWaitingIndex);
+			return null;
+		});
+	}
+	
+	SchedulingPolicy getSchedulingPolicy() {
+		return scheduling_policy;
+	}
+	
+	private static class Dependents {
+		/**
+		 * Its size is the unfinished dependent jobs count.
+		 */
+		private final HashSet<UUID> unfinished = new HashSet<>();
+		/**
+		 * The predecessor DONE state, as counted by the blocked dependent jobs in-degrees.
+		 */
+		private boolean done;
+	}
+	
+	/**
+	 * Not thread safe.
+	 */
+	private boolean isDone(UUID job_key) {
+		Job job = jobs_by_uuid.get(job_key);
+		return job != null && TaskStatus.DONE.equals(job.getStatus());
+	}
+	
+	/**
+	 * Not thread safe. For a WAITING job: put it in the waiting index, or block it until all its predecessors are DONE.
+	 */
+	private void addToWaitingJobs(Job job) {
+		int in_degree = 0;
+		for (UUID predecessor_key : job.getPredecessors()) {
+			if (dependents_by_predecessor.get(predecessor_key).done == false) {
+				in_degree++;
+			}
+		}
+		if (in_degree == 0) {
+			addToWaitingIndex(job);
+		} else {
+			blocked_jobs.put(job, in_degree);
+		}
+	}
+	
+	/**
+	 * Not thread safe.
+	 */
+	private void removeFromWaitingJobs(Job job) {
+		if (blocked_jobs.remove(job) == null) {
+			removeFromWaitingIndex(job);
+		}
+	}
+	
+	/**
+	 * Not thread safe. Before add a job in waiting jobs, and after remove it.
+	 */
+	private void updateDependentsCounters(Job job) {
+		List<UUID> predecessors = job.getPredecessors();
+		if (predecessors.isEmpty()) {
+			return;
+		}
+		
+		boolean unfinished = job.getStatus().isDone() == false && jobs_by_uuid.containsKey(job.getKey());
+		for (UUID predecessor_key : predecessors) {
+			if (unfinished) {
+				dependents_by_predecessor.computeIfAbsent(predecessor_key, p_k -> {
+					Dependents dependents = new Dependents();
+					dependents.done = isDone(p_k);
+					return dependents;
+				}).unfinished.add(job.getKey());
+				continue;
+			}
+			
+			Dependents dependents = dependents_by_predecessor.get(predecessor_key);
+			if (dependents == null || dependents.unfinished.remove(job.getKey()) == false) {
+				continue;
+			}
+			if (dependents.unfinished.isEmpty()) {
+				dependents_by_predecessor.remove(predecessor_key);
+				/**
+				 * The predecessor can expire now.
+				 */
+				Job predecessor = jobs_by_uuid.get(predecessor_key);
+				if (predecessor != null) {
+					updateExpiryIndex(predecessor);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Not thread safe. After each job put, update or remove: if it has switched to DONE, decrement the in-degree of its WAITING dependent jobs,
+	 * and push in the waiting index the ones at 0. If it has leaved DONE, increment them, and pull back the ones in the waiting index.
+	 * Only visit its dependent jobs, and only on a DONE state change.
+	 */
+	private void updateDependentsReadiness(Job predecessor) {
+		Dependents dependents = dependents_by_predecessor.get(predecessor.getKey());
+		if (dependents == null) {
+			return;
+		}
+		boolean done = isDone(predecessor.getKey());
+		if (dependents.done == done) {
+			return;
+		}
+		dependents.done = done;
+		
+		dependents.unfinished.stream().filter(waiting_jobs::contains).map(jobs_by_uuid::get).forEach(dependent -> {
+			Integer in_degree = blocked_jobs.get(dependent);
+			if (done) {
+				if (in_degree == null) {
+					/**
+					 * Not blocked: already in the waiting index.
+					 */
+					return;
+				} else if (in_degree == 1) {
+					blocked_jobs.remove(dependent);
+					addToWaitingIndex(dependent);
+				} else {
+					blocked_jobs.put(dependent, in_degree - 1);
+				}
+			} else if (in_degree == null) {
+				removeFromWaitingIndex(dependent);
+				blocked_jobs.put(dependent, 1);
+			} else {
+				blocked_jobs.put(dependent, in_degree + 1);
+			}
+		});
+	}
+	
+	/**
+	 * Not thread safe, O(1).
+	 * @return the dependent jobs (sub jobs and jobs with a dependency on it) count not done (see TaskStatus.isDone) for this job.
+	 */
+	int getUnfinishedDependentsCount(UUID job_key) {
+		Dependents dependents = dependents_by_predecessor.get(job_key);
+		if (dependents == null) {
+			return 0;
+		}
+		return dependents.unfinished.size();
+	}
+	
+	/**
+	 * Not thread safe.
+	 * @return the WAITING dependent jobs of this job, before its delete.
+	 */
+	private List<Job> getWaitingDependents(UUID job_key) {
+		Dependents dependents = dependents_by_predecessor.get(job_key);
+		if (dependents == null) {
+			return List.of();
+		}
+		return dependents.unfinished.stream().filter(waiting_jobs::contains).map(jobs_by_uuid::get).collect(Collectors.toList());
+	}
+	
+	/**
+	 * Not thread safe.
+	 */
+	private void updateExpiryIndex(Job job) {
+		long expiry_date = expiry_date_resolver.applyAsLong(job);
+		ExpiryEntry previous = expiry_by_uuid.get(job.getKey());
+		
+		if (previous != null) {
+			if (previous.expiry_date == expiry_date) {
+				return;
+			}
+			expiry_index.remove(previous);
+			expiry_by_uuid.remove(job.getKey());
+		}
+		
+		if (expiry_date != Long.MAX_VALUE) {
+			ExpiryEntry entry = new ExpiryEntry(expiry_date, job.getKey());
+			expiry_index.add(entry);
+			expiry_by_uuid.put(job.getKey(), entry);
+		}
+	}
+	
+	/**
+	 * Not thread safe.
+	 */
+	private void removeInternal(Job job) {
+		jobs_by_uuid.remove(job.getKey());
+		if (waiting_jobs.remove(job.getKey())) {
+			removeFromWaitingJobs(job);
+		}
+		others_jobs.remove(job.getKey());
+		updateDependentsCounters(job);
+		updateDependentsReadiness(job);
+		/**
+		 * Its remaining dependents will never see it DONE: forget them as its dependents.
+		 */
+		dependents_by_predecessor.remove(job.getKey());
+		
+		ExpiryEntry expiry = expiry_by_uuid.remove(job.getKey());
+		if (expiry != null) {
+			expiry_index.remove(expiry);
+		}
+	}
+	
 	/**
 	 * @return Not thread safe.
 	 */
@@ -130,8 +521,10 @@ class InMemoryJobStore {
 		TaskStatus status = job.getStatus();
 		
 		if (TaskStatus.WAITING.equals(status)) {
+			updateDependentsCounters(job);
 			if (waiting_jobs.contains(job.getKey()) == false) {
 				waiting_jobs.add(job.getKey());
+				addToWaitingJobs(job);
 			}
 			if (others_jobs.contains(job.getKey())) {
 				others_jobs.remove(job.getKey());
@@ -139,11 +532,15 @@ class InMemoryJobStore {
 		} else {
 			if (waiting_jobs.contains(job.getKey())) {
 				waiting_jobs.remove(job.getKey());
+				removeFromWaitingJobs(job);
 			}
 			if (others_jobs.contains(job.getKey()) == false) {
 				others_jobs.add(job.getKey());
 			}
+			updateDependentsCounters(job);
 		}
+		updateDependentsReadiness(job);
+		updateExpiryIndex(job);
 		
 		return true;
 	}
@@ -164,22 +561,62 @@ class InMemoryJobStore {
 		}
 	}
 	
-	Job getByUUID(UUID uuid) {
-		return syncRead(() -> {
-			return jobs_by_uuid.get(uuid);
+	/**
+	 * Update a batch of jobs in the same write operation.
+	 * @param toUpdate call is in internal lock, for each found job: return false if it's not updated.
+	 * @return updated jobs
+	 */
+	List<Job> updateAll(Collection<UUID> uuids, Predicate<Job> toUpdate) {
+		if (uuids.isEmpty()) {
+			return List.of();
+		}
+		return syncWrite(() -> {
+			ArrayList<Job> updated = new ArrayList<>();
+			for (UUID uuid : uuids) {
+				Job job = jobs_by_uuid.get(uuid);
+				if (job != null && toUpdate.test(job)) {
+					updateInternalSets(uuid);
+					updated.add(job);
+				}
+			}
+			return updated;
 		});
 	}
 	
+	/**
+	 * Lock free, never wait a write operation.
+	 */
+	Job getByUUID(UUID uuid) {
+		return jobs_by_uuid.get(uuid);
+	}
+	
+	/**
+	 * Lock free, never wait a write operation.
+	 * @return only founded jobs, in uuids order
+	 */
+	List<Job> getByUUIDs(Collection<UUID> uuids) {
+		ArrayList<Job> result = new ArrayList<>(uuids.size());
+		for (UUID uuid : uuids) {
+			Job job = jobs_by_uuid.get(uuid);
+			if (job != null) {
+				result.add(job);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Lock free
+	 */
 	int size() {
-		return syncRead(() -> {
-			return jobs_by_uuid.size();
-		});
+		return jobs_by_uuid.size();
 	}
 	
+	/**
+	 * Lock free
+	 */
 	int waitingJobCount() {
-		return syncRead(() -> {
-			return waiting_jobs.size();
-		});
+		return waiting_jobs.size();
 	}
 	
 	List<Job> getJobsByTaskStatus(TaskStatus status) {
@@ -222,6 +659,13 @@ class InMemoryJobStore {
 			if (jobs_by_uuid.size() != waiting_jobs.size() + others_jobs.size()) {
 				return Optional.of(new IllegalStateException("Invalid lists sizes, jobs_by_uuid: " + jobs_by_uuid.size() + ", waiting_jobs: " + waiting_jobs.size() + ", others_jobs: " + others_jobs.size()));
 			}
+			int waiting_index_size = waiting_jobs_by_context_type.values().stream().flatMap(classes -> classes.values().stream()).mapToInt(TreeSet::size).sum();
+			if (waiting_index_size + blocked_jobs.size() != waiting_jobs.size()) {
+				return Optional.of(new IllegalStateException("Invalid waiting index size, waiting_jobs: " + waiting_jobs.size() + ", waiting_jobs_by_context_type: " + waiting_index_size + ", blocked_jobs: " + blocked_jobs.size()));
+			}
+			if (expiry_index.size() != expiry_by_uuid.size()) {
+				return Optional.of(new IllegalStateException("Invalid expiry index size, expiry_index: " + expiry_index.size() + ", expiry_by_uuid: " + expiry_by_uuid.size()));
+			}
 			
 			return waiting_jobs.stream().map(uuid -> {
 				if (jobs_by_uuid.containsKey(uuid) == false) {
@@ -247,7 +691,7 @@ class InMemoryJobStore {
 	
 	void computeAndRemove(TaskStatus status, Function<Stream<Job>, Stream<Job>> stream_processor) {
 		syncWrite(() -> {
-			HashSet<UUID> task_list = getInternalSetByTaskStatus(status);
+			Set<UUID> task_list = getInternalSetByTaskStatus(status);
 			
 			stream_processor.apply(task_list.stream().map(uuid -> {
 				return jobs_by_uuid.get(uuid);
@@ -255,10 +699,7 @@ class InMemoryJobStore {
 				if (log.isTraceEnabled()) {
 					log.trace("Remove job " + job);
 				}
-				jobs_by_uuid.remove(job.getKey());
-				waiting_jobs.remove(job.getKey());
-				others_jobs.remove(job.getKey());
-				task_list.remove(job.getKey());
+				removeInternal(job);
 			});
 			
 			return null;
@@ -271,9 +712,7 @@ class InMemoryJobStore {
 	 */
 	List<UUID> computeAllAndRemove(BiFunction<Stream<Job>, Function<UUID, Job>, Stream<Job>> stream_processor) {
 		return syncWrite(() -> {
-			Set<UUID> task_list = jobs_by_uuid.keySet();
-			
-			List<Job> deleted_jobs = stream_processor.apply(task_list.stream().map(uuid -> {
+			List<Job> deleted_jobs = stream_processor.apply(jobs_by_uuid.keySet().stream().map(uuid -> {
 				return jobs_by_uuid.get(uuid);
 			}), uuid -> {
 				return jobs_by_uuid.get(uuid);
@@ -283,10 +722,7 @@ class InMemoryJobStore {
 				if (log.isTraceEnabled()) {
 					log.trace("Remove job " + job);
 				}
-				jobs_by_uuid.remove(job.getKey());
-				waiting_jobs.remove(job.getKey());
-				others_jobs.remove(job.getKey());
-				task_list.remove(job.getKey());
+				removeInternal(job);
 			});
 			
 			return deleted_jobs.stream().map(job -> job.getKey()).collect(Collectors.toList());
@@ -299,7 +735,7 @@ class InMemoryJobStore {
 	 */
 	List<Job> computeAndUpdate(TaskStatus status, BiFunction<Stream<Job>, Function<UUID, Job>, Stream<Job>> stream_processor, Consumer<Job> toUpdate) {
 		return syncWrite(() -> {
-			HashSet<UUID> task_list = getInternalSetByTaskStatus(status);
+			Set<UUID> task_list = getInternalSetByTaskStatus(status);
 			
 			/**
 			 * Search jobs
@@ -329,4 +765,183 @@ class InMemoryJobStore {
 		});
 	}
 	
+	/**
+	 * Only visit the jobs with an expired date in the expiry index, and re-check it with the expiry_date_resolver before delete it.
+	 * Delete also the WAITING dependent jobs (sub jobs and dependencies) of the deleted jobs, in cascade.
+	 * @param max_count max visited jobs for this slice: the lock is released after it.
+	 * @return deleted jobs UUID
+	 */
+	List<UUID> removeExpired(long now, int max_count) {
+		return syncWrite(() -> {
+			ArrayList<Job> expired_jobs = new ArrayList<>();
+			
+			int visited = 0;
+			while (visited < max_count && expiry_index.isEmpty() == false && expiry_index.first().expiry_date < now) {
+				visited++;
+				ExpiryEntry entry = expiry_index.pollFirst();
+				expiry_by_uuid.remove(entry.job_key);
+				
+				Job job = jobs_by_uuid.get(entry.job_key);
+				if (job == null) {
+					continue;
+				}
+				
+				if (expiry_date_resolver.applyAsLong(job) < now) {
+					expired_jobs.add(job);
+				} else {
+					/**
+					 * Not yet, put it back with its new date.
+					 */
+					updateExpiryIndex(job);
+				}
+			}
+			
+			ArrayList<UUID> deleted_jobs = new ArrayList<>(expired_jobs.size());
+			for (int pos = 0; pos < expired_jobs.size(); pos++) {
+				Job job = expired_jobs.get(pos);
+				if (jobs_by_uuid.containsKey(job.getKey()) == false) {
+					continue;
+				}
+				if (log.isTraceEnabled()) {
+					log.trace("Remove job " + job);
+				}
+				/**
+				 * Main task will be deleted... delete its waiting sub tasks, and the waiting tasks that depend on it.
+				 */
+				expired_jobs.addAll(getWaitingDependents(job.getKey()));
+				removeInternal(job);
+				deleted_jobs.add(job.getKey());
+			}
+			
+			return deleted_jobs;
+		});
+	}
+	
+	/**
+	 * @return true if some jobs are maybe expired now.
+	 */
+	boolean hasExpiredJobs(long now) {
+		return syncRead(() -> {
+			return expiry_index.isEmpty() == false && expiry_index.first().expiry_date < now;
+		});
+	}
+	
+	private static class ExpiryEntry implements Comparable<ExpiryEntry> {
+		private final long expiry_date;
+		private final UUID job_key;
+		
+		ExpiryEntry(long expiry_date, UUID job_key) {
+			this.expiry_date = expiry_date;
+			this.job_key = job_key;
+		}
+		
+		public int compareTo(ExpiryEntry o) {
+			int compare = Long.compare(expiry_date, o.expiry_date);
+			if (compare != 0) {
+				return compare;
+			}
+			return job_key.compareTo(o.job_key);
+		}
+	}
+	
+	/**
+	 * Walk only on the priority and creation date ordered heads of the WAITING jobs for the asked context types, and never scan the others.
+	 * The scheduling policy choose between the scheduling classes heads.
+	 * @param selector (waiting job, job_by_uuid_resolver) -> true for select it. Call is in internal lock.
+	 * @param toUpdate call is in internal lock, for each selected job.
+	 * @return selected jobs, in selection order, max_count max.
+	 */
+	List<Job> computeAndUpdateWaiting(Collection<String> context_types, int max_count, BiPredicate<Job, Function<UUID, Job>> selector, Consumer<Job> toUpdate) {
+		if (max_count < 1 || context_types.isEmpty()) {
+			return List.of();
+		}
+		
+		return syncWrite(() -> {
+			Function<UUID, Job> job_by_uuid_resolver = uuid -> {
+				return jobs_by_uuid.get(uuid);
+			};
+			
+			/**
+			 * scheduling class -> the heads of each context type list
+			 */
+			HashMap<String, PriorityQueue<WaitingHead>> heads_by_class = new HashMap<>();
+			context_types.stream().distinct().map(waiting_jobs_by_context_type::get).filter(context_type_classes -> {
+				return context_type_classes != null;
+			}).forEach(context_type_classes -> {
+				context_type_classes.forEach((scheduling_class, class_jobs) -> {
+					WaitingHead head = new WaitingHead(class_jobs.iterator());
+					if (head.current != null) {
+						heads_by_class.computeIfAbsent(scheduling_class, s_c -> new PriorityQueue<>()).add(head);
+					}
+				});
+			});
+			
+			/**
+			 * Search jobs, like a merge sort between each context type list, in the scheduling class choosed by the policy.
+			 */
+			ArrayList<Job> sub_list = new ArrayList<>(Math.min(max_count, waiting_jobs.size()));
+			while (heads_by_class.isEmpty() == false && sub_list.size() < max_count) {
+				String scheduling_class = scheduling_policy.selectClass(heads_by_class.keySet());
+				PriorityQueue<WaitingHead> heads = heads_by_class.get(scheduling_class);
+				if (heads == null) {
+					throw new IllegalStateException("Invalid scheduling class \"" + scheduling_class + "\" from " + scheduling_policy + ", candidates: " + heads_by_class.keySet());
+				}
+				
+				WaitingHead head = heads.poll();
+				Job job = head.current;
+				
+				if (TaskStatus.WAITING.equals(job.getStatus()) && selector.test(job, job_by_uuid_resolver)) {
+					sub_list.add(job);
+					scheduling_policy.onSelected(scheduling_class);
+				}
+				if (head.next()) {
+					heads.add(head);
+				} else if (heads.isEmpty()) {
+					heads_by_class.remove(scheduling_class);
+				}
+			}
+			
+			/**
+			 * Update and save jobs
+			 */
+			sub_list.stream().peek(toUpdate).forEach(job -> {
+				if (log.isTraceEnabled()) {
+					log.trace("Update job " + job);
+				}
+				
+				if (updateInternalSets(job.getKey()) == false) {
+					throw new RuntimeException("Can't update job " + job);
+				}
+			});
+			
+			return sub_list;
+		});
+	}
+	
+	private static class WaitingHead implements Comparable<WaitingHead> {
+		private final Iterator<Job> context_type_jobs;
+		private Job current;
+		
+		WaitingHead(Iterator<Job> context_type_jobs) {
+			this.context_type_jobs = context_type_jobs;
+			next();
+		}
+		
+		/**
+		 * @return false if there are no more jobs
+		 */
+		boolean next() {
+			if (context_type_jobs.hasNext()) {
+				current = context_type_jobs.next();
+				return true;
+			}
+			current = null;
+			return false;
+		}
+		
+		public int compareTo(WaitingHead o) {
+			return WAITING_JOBS_ORDER.compare(current, o.current);
+		}
+	}
+	
 }
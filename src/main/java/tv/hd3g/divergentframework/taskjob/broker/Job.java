@@ -16,42 +16,97 @@
 */
 package tv.hd3g.divergentframework.taskjob.broker;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.stream.Collectors;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
 import tv.hd3g.divergentframework.taskjob.events.JobEventObserver.JobUpdateSubject;
 
+@JsonAdapter(Job.ProgressionTypeAdapterFactory.class)
 public final class Job {
 	// private static Logger log = Logger.getLogger(Job.class);
 	public static final String JAVA_CLASS_PREFIX_CONTEXT_TYPE = "java:class:";
+	private static final JsonParser JSON_PARSER = new JsonParser();
 	
 	private long create_date;
+	private int priority;
 	private String description;
 	private UUID key;
 	
 	private String context_type;
-	private JsonObject context_content;
-	private ArrayList<String> context_requirement_tags;
+	/**
+	 * Never modified in place, only replaced (copy-on-write): readers can share it without copy.
+	 * Null if the context content is compact.
+	 */
+	private volatile JsonObject context_content;
+	/**
+	 * UTF-8 JSON, only materialized to JsonObject on demand.
+	 */
+	private transient volatile byte[] compact_context_content;
+	/**
+	 * Immutable and interned, null if empty.
+	 */
+	private List<String> context_requirement_tags;
+	private transient volatile TagSet context_requirement_tag_set;
 	
 	private TaskStatus status;
+	private long not_before;
+	private int attempt_count;
 	private long start_date;
 	private long end_date;
 	
 	private ArrayList<UUID> relatives_sub_jobs;
 	private UUID linked_job;
+	/**
+	 * Jobs to wait DONE before start this one, immutable, null if empty.
+	 */
+	private List<UUID> dependencies;
 	
 	private String last_error_message;
 	
 	private String external_reference;
-	private int actual_progression_value;
-	private int max_progression_value;
 	
-	private JobEventObserver observer;
+	/**
+	 * actual value in the 32 high bits, max value in the 32 low bits: always updated and read together, without lock.
+	 * Serialized as actual_progression_value and max_progression_value by ProgressionTypeAdapterFactory.
+	 */
+	private transient volatile long progression;
+	private transient volatile int progression_publish_pending;
+	private static final AtomicIntegerFieldUpdater<Job> PROGRESSION_PUBLISH_PENDING = AtomicIntegerFieldUpdater.newUpdater(Job.class, "progression_publish_pending");
+	
+	/**
+	 * Only for the PREPARING and PROCESSING jobs of a broker with leases. 0 if not leased.
+	 */
+	private transient volatile long lease_deadline;
+	private transient volatile String lease_owner;
+	private static final AtomicLongFieldUpdater<Job> LEASE_DEADLINE = AtomicLongFieldUpdater.newUpdater(Job.class, "lease_deadline");
+	/**
+	 * Incremented, in the store write lock, on each claim by getNextJobs and on each lease expiry.
+	 */
+	private transient volatile long lease_epoch;
+	
+	private transient JobEventObserver observer;
 	
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
@@ -74,10 +129,10 @@ public final class Job {
 			sb.append("\"");
 			sb.append(last_error_message);
 			sb.append("\"");
-		} else if (max_progression_value > 0) {
-			sb.append(actual_progression_value);
+		} else if (getMaxProgressionValue() > 0) {
+			sb.append(getActualProgressionValue());
 			sb.append("/");
-			sb.append(max_progression_value);
+			sb.append(getMaxProgressionValue());
 			sb.append(",");
 		}*/
 		
@@ -104,21 +159,23 @@ public final class Job {
 		
 		key = UUID.randomUUID();
 		
-		this.context_type = context_type;
 		if (context_type == null) {
 			throw new NullPointerException("\"context_type\" can't to be null");
 		}
+		this.context_type = context_type.intern();
 		this.context_content = context_content;
 		if (context_content == null) {
 			this.context_content = new JsonObject();
 		}
-		this.context_requirement_tags = context_requirement_tags;
+		compact_context_content = null;
+		this.context_requirement_tags = internTags(context_requirement_tags);
+		context_requirement_tag_set = null;
 		
 		status = TaskStatus.WAITING;
 		create_date = System.currentTimeMillis();
 		start_date = 0;
 		end_date = 0;
-		relatives_sub_jobs = new ArrayList<>();
+		relatives_sub_jobs = null;
 		
 		return key;
 	}
@@ -128,6 +185,46 @@ public final class Job {
 		return this;
 	}
 	
+	/**
+	 * Only before put it in a store: the waiting jobs index is sorted by priority.
+	 * @return this
+	 */
+	synchronized Job setPriority(int priority) {
+		this.priority = priority;
+		return this;
+	}
+	
+	/**
+	 * @return higher is first, 0 by default
+	 */
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * Only with a POSTPONED status, or an ERROR status for a retry, else it's ignored.
+	 * @param not_before date before this job can't be switched to WAITING by the broker, or 0
+	 * @return this
+	 */
+	synchronized Job setNotBefore(long not_before) {
+		this.not_before = not_before;
+		return this;
+	}
+	
+	/**
+	 * @return 0 if not set
+	 */
+	public long getNotBefore() {
+		return not_before;
+	}
+	
+	/**
+	 * @return PROCESSING switch count
+	 */
+	public int getAttemptCount() {
+		return attempt_count;
+	}
+	
 	/**
 	 * @return this
 	 */
@@ -158,29 +255,174 @@ public final class Job {
 		return linked_job;
 	}
 	
+	/**
+	 * Only before put it in a store, like the linked job.
+	 * @return this
+	 */
+	synchronized Job setDependencies(Collection<UUID> dependencies) {
+		List<UUID> predecessors = dependencies.stream().distinct().filter(dependency -> {
+			return dependency.equals(linked_job) == false;
+		}).collect(Collectors.toUnmodifiableList());
+		if (predecessors.isEmpty()) {
+			this.dependencies = null;
+		} else {
+			this.dependencies = predecessors;
+		}
+		return this;
+	}
+	
+	/**
+	 * @return the jobs to wait DONE before start this one, without the linked job. Never null.
+	 */
+	public List<UUID> getDependencies() {
+		if (dependencies == null) {
+			return List.of();
+		}
+		return dependencies;
+	}
+	
+	/**
+	 * @return linked job and dependencies, never null
+	 */
+	List<UUID> getPredecessors() {
+		if (dependencies == null) {
+			if (linked_job == null) {
+				return List.of();
+			}
+			return List.of(linked_job);
+		} else if (linked_job == null) {
+			return dependencies;
+		}
+		ArrayList<UUID> predecessors = new ArrayList<>(dependencies.size() + 1);
+		predecessors.add(linked_job);
+		predecessors.addAll(dependencies);
+		return predecessors;
+	}
+	
 	public UUID getKey() {
 		return key;
 	}
 	
 	/**
+	 * Only for a new job, after init and before put it in a store.
 	 * @return this
 	 */
-	synchronized Job updateProgression(int actual_progression_value, int max_progression_value) {
-		this.actual_progression_value = actual_progression_value;
-		this.max_progression_value = max_progression_value;
-		
-		if (observer != null) {
-			observer.onJobUpdateProgression(this);
+	Job setKey(UUID key) {
+		if (key == null) {
+			throw new NullPointerException("\"key\" can't to be null");
 		}
-		
+		this.key = key;
+		return this;
+	}
+	
+	/**
+	 * Lock free, and don't call the observer: the broker publish the progressions.
+	 * @return this
+	 */
+	Job updateProgression(int actual_progression_value, int max_progression_value) {
+		progression = (long) actual_progression_value << 32 | max_progression_value & 0xFFFFFFFFL;
+		return this;
+	}
+	
+	/**
+	 * Start or extend the lease, on a switch to PREPARING or PROCESSING.
+	 * @return this
+	 */
+	Job startLease(long lease_deadline) {
+		this.lease_deadline = lease_deadline;
+		return this;
+	}
+	
+	/**
+	 * Lock free, for the worker heartbeats: don't renew a cleared lease, and never moves back the deadline.
+	 */
+	void renewLease(long lease_deadline) {
+		long actual;
+		do {
+			actual = this.lease_deadline;
+			if (actual == 0 || actual >= lease_deadline) {
+				return;
+			}
+		} while (LEASE_DEADLINE.compareAndSet(this, actual, lease_deadline) == false);
+	}
+	
+	/**
+	 * @param lease_owner like a remote broker client, null for a local one.
+	 * @return this
+	 */
+	Job setLeaseOwner(String lease_owner) {
+		this.lease_owner = lease_owner;
+		return this;
+	}
+	
+	/**
+	 * @return this
+	 */
+	Job clearLease() {
+		lease_deadline = 0;
+		lease_owner = null;
+		return this;
+	}
+	
+	/**
+	 * In the store write lock.
+	 * @return this
+	 */
+	Job nextLeaseEpoch() {
+		lease_epoch++;
 		return this;
 	}
 	
+	/**
+	 * @return for a worker, to keep when it gets this job, for the lease checks.
+	 */
+	public long getLeaseEpoch() {
+		return lease_epoch;
+	}
+	
+	/**
+	 * @throws IllegalStateException if this job was claimed again, or reclaimed after a lease expiry, since lease_epoch
+	 */
+	void checkLeaseEpoch(long lease_epoch) {
+		if (this.lease_epoch != lease_epoch) {
+			throw new IllegalStateException("Lease lost for job " + this + ", claimed again since");
+		}
+	}
+	
+	/**
+	 * @return 0 if this job is not leased
+	 */
+	public long getLeaseDeadline() {
+		return lease_deadline;
+	}
+	
+	/**
+	 * @return null if not leased, or leased by a local queue
+	 */
+	public String getLeaseOwner() {
+		return lease_owner;
+	}
+	
+	/**
+	 * @return true if this job was not already waiting a progression publication: the caller must publish it.
+	 */
+	boolean markProgressionPublishPending() {
+		return progression_publish_pending == 0 && PROGRESSION_PUBLISH_PENDING.compareAndSet(this, 0, 1);
+	}
+	
+	/**
+	 * Before the publication: the next updates will be published again.
+	 */
+	void clearProgressionPublishPending() {
+		progression_publish_pending = 0;
+	}
+	
 	/**
 	 * @return this
 	 */
 	synchronized Job setContextRequirementTags(ArrayList<String> context_requirement_tags) {
-		this.context_requirement_tags = context_requirement_tags;
+		this.context_requirement_tags = internTags(context_requirement_tags);
+		context_requirement_tag_set = null;
 		
 		if (observer != null) {
 			observer.onJobUpdate(this, JobUpdateSubject.SET_CONTEXT_REQUIREMENT_TAGS);
@@ -210,9 +452,21 @@ public final class Job {
 	}
 	
 	Job addSubJob(String description, String context_type, JsonObject context_content, ArrayList<String> context_requirement_tags) {
+		Job sub_job = newSubJob(description, context_type, context_content, context_requirement_tags);
+		addRelativesSubJobs(List.of(sub_job));
+		return sub_job;
+	}
+	
+	/**
+	 * The new sub job is linked to this job, but not added to its relatives: call addRelativesSubJobs after the sub job is stored.
+	 */
+	Job newSubJob(String description, String context_type, JsonObject context_content, ArrayList<String> context_requirement_tags) {
 		Job sub_job = new Job();
-		UUID new_uuid = sub_job.setLinkedJob(key).init(description, context_type, context_content, context_requirement_tags);
-		
+		sub_job.setLinkedJob(key).init(description, context_type, context_content, context_requirement_tags);
+		return sub_job;
+	}
+	
+	void addRelativesSubJobs(List<Job> sub_jobs) {
 		synchronized (this) {
 			if (relatives_sub_jobs == null) {
 				relatives_sub_jobs = new ArrayList<>();
@@ -220,10 +474,90 @@ public final class Job {
 		}
 		
 		synchronized (relatives_sub_jobs) {
-			relatives_sub_jobs.add(new_uuid);
+			sub_jobs.forEach(sub_job -> {
+				relatives_sub_jobs.add(sub_job.getKey());
+			});
+		}
+	}
+	
+	/**
+	 * For journal replays and RemoteBroker job copies: don't check the status switch and don't call the observer.
+	 */
+	synchronized void restoreStatus(TaskStatus status, long start_date, long end_date, String last_error_message) {
+		if (TaskStatus.PROCESSING.equals(status) && TaskStatus.PROCESSING.equals(this.status) == false) {
+			attempt_count++;
+		}
+		this.status = status;
+		this.start_date = start_date;
+		this.end_date = end_date;
+		this.last_error_message = last_error_message;
+	}
+	
+	/**
+	 * For journal replays only.
+	 */
+	void restoreRelativeSubJob(UUID sub_job) {
+		synchronized (this) {
+			if (relatives_sub_jobs == null) {
+				relatives_sub_jobs = new ArrayList<>();
+			}
 		}
 		
-		return sub_job;
+		synchronized (relatives_sub_jobs) {
+			if (relatives_sub_jobs.contains(sub_job) == false) {
+				relatives_sub_jobs.add(sub_job);
+			}
+		}
+	}
+	
+	/**
+	 * @return a consistent serialization of all the job fields, even if it's updated during the call.
+	 */
+	synchronized String toJson(Gson gson) {
+		if (relatives_sub_jobs == null) {
+			return toJsonWithContextContent(gson);
+		}
+		synchronized (relatives_sub_jobs) {
+			return toJsonWithContextContent(gson);
+		}
+	}
+	
+	private String toJsonWithContextContent(Gson gson) {
+		byte[] compact = compact_context_content;
+		if (compact == null) {
+			return gson.toJson(this);
+		}
+		JsonObject jo = gson.toJsonTree(this).getAsJsonObject();
+		jo.add("context_content", parseContextContent(compact));
+		return gson.toJson(jo);
+	}
+	
+	static Job fromJson(Gson gson, String json) {
+		Job job = gson.fromJson(json, Job.class);
+		if (job.context_type != null) {
+			job.context_type = job.context_type.intern();
+		}
+		job.context_requirement_tags = internTags(job.context_requirement_tags);
+		return job;
+	}
+	
+	/**
+	 * Context types and tags are a small vocabulary repeated by all the jobs: share the same instances.
+	 * @return null if empty
+	 */
+	private static List<String> internTags(Collection<String> context_requirement_tags) {
+		if (context_requirement_tags == null || context_requirement_tags.isEmpty()) {
+			return null;
+		}
+		String[] tags = new String[context_requirement_tags.size()];
+		int pos = 0;
+		for (String tag : context_requirement_tags) {
+			if (tag == null) {
+				throw new NullPointerException("\"tag\" can't to be null");
+			}
+			tags[pos++] = tag.intern();
+		}
+		return List.of(tags);
 	}
 	
 	/**
@@ -249,6 +583,9 @@ public final class Job {
 		}
 		status = new_status;
 		
+		if (TaskStatus.PROCESSING.equals(status)) {
+			attempt_count++;
+		}
 		if (status.statusSwitchShouldChangeJobStartDate()) {
 			start_date = System.currentTimeMillis();
 		}
@@ -264,20 +601,88 @@ public final class Job {
 	}
 	
 	/**
-	 * @return A deep copy
+	 * @return A deep copy, or a new tree for a compact context content
 	 */
 	public JsonObject getContextContent() {
-		return context_content.deepCopy();
+		Object source = getContextContentSource();
+		if (source instanceof byte[]) {
+			return parseContextContent((byte[]) source);
+		}
+		return ((JsonObject) source).deepCopy();
+	}
+	
+	/**
+	 * @return the shared JsonObject tree, or the UTF-8 JSON bytes if compact
+	 */
+	private Object getContextContentSource() {
+		byte[] compact = compact_context_content;
+		if (compact != null) {
+			return compact;
+		}
+		JsonObject tree = context_content;
+		if (tree != null) {
+			return tree;
+		}
+		/**
+		 * compactContextContent is running: the bytes are set before the tree is removed.
+		 */
+		return compact_context_content;
+	}
+	
+	private static JsonObject parseContextContent(byte[] compact) {
+		return JSON_PARSER.parse(new InputStreamReader(new ByteArrayInputStream(compact), StandardCharsets.UTF_8)).getAsJsonObject();
+	}
+	
+	/**
+	 * Keep the context content as UTF-8 JSON bytes, and not as a JsonObject tree, for now and for the next setContextContent.
+	 * Only before put it in a store.
+	 * @return this
+	 */
+	synchronized Job compactContextContent() {
+		if (compact_context_content == null) {
+			compact_context_content = context_content.toString().getBytes(StandardCharsets.UTF_8);
+			context_content = null;
+		}
+		return this;
+	}
+	
+	public boolean isCompactContextContent() {
+		return compact_context_content != null;
+	}
+	
+	/**
+	 * Deserialized directly from the shared tree, without deep copy, or streamed from the compact bytes.
+	 * @return a new instance for each call
+	 */
+	public <T> T getContextContent(Class<T> context_class, Gson gson) {
+		if (context_class == null) {
+			throw new NullPointerException("\"context_class\" can't to be null");
+		}
+		if (gson == null) {
+			throw new NullPointerException("\"gson\" can't to be null");
+		}
+		
+		Object source = getContextContentSource();
+		if (source instanceof byte[]) {
+			return gson.fromJson(new InputStreamReader(new ByteArrayInputStream((byte[]) source), StandardCharsets.UTF_8), context_class);
+		}
+		return gson.fromJson((JsonObject) source, context_class);
 	}
 	
 	/**
+	 * The job takes the ownership of context_content: don't modify it after this call.
+	 * Encoded to UTF-8 JSON bytes if the context content is compact.
 	 * @return this
 	 */
 	synchronized Job setContextContent(JsonObject context_content) {
-		this.context_content = context_content;
 		if (context_content == null) {
 			throw new NullPointerException("\"context_content\" can't to be null");
 		}
+		if (compact_context_content != null) {
+			compact_context_content = context_content.toString().getBytes(StandardCharsets.UTF_8);
+		} else {
+			this.context_content = context_content;
+		}
 		
 		if (observer != null) {
 			observer.onJobUpdate(this, JobUpdateSubject.SET_CONTEXT_CONTENT);
@@ -294,14 +699,22 @@ public final class Job {
 	}
 	
 	/**
-	 * @return unmodifiableList, never null
+	 * @return unmodifiable TagSet, never null
 	 */
 	public List<String> getContextRequirementTags() {
-		if (context_requirement_tags == null) {
-			return List.of();
+		return getContextRequirementTagSet();
+	}
+	
+	/**
+	 * @return never null
+	 */
+	public TagSet getContextRequirementTagSet() {
+		TagSet tag_set = context_requirement_tag_set;
+		if (tag_set == null) {
+			tag_set = TagSet.of(context_requirement_tags);
+			context_requirement_tag_set = tag_set;
 		}
-		
-		return Collections.unmodifiableList(context_requirement_tags);
+		return tag_set;
 	}
 	
 	/**
@@ -319,10 +732,18 @@ public final class Job {
 	 * Use end_date or else create_date
 	 */
 	boolean isTooOld(long max_age_msec) {
+		return getExpiryDate(max_age_msec) < System.currentTimeMillis();
+	}
+	
+	/**
+	 * Use end_date or else create_date
+	 * @return the date after this job will be too old
+	 */
+	long getExpiryDate(long max_age_msec) {
 		if (end_date > 0) {
-			return end_date + max_age_msec < System.currentTimeMillis();
+			return end_date + max_age_msec;
 		} else {
-			return create_date + max_age_msec < System.currentTimeMillis();
+			return create_date + max_age_msec;
 		}
 	}
 	
@@ -343,17 +764,21 @@ public final class Job {
 	}
 	
 	public int getActualProgressionValue() {
-		return actual_progression_value;
+		return (int) (progression >>> 32);
 	}
 	
 	public int getMaxProgressionValue() {
-		return max_progression_value;
+		return (int) progression;
 	}
 	
 	/**
 	 * @return default_value_if_not_progress, or "42" or "8/10"
 	 */
 	public String getProgression(String default_value_if_not_progress) {
+		long progression = this.progression;
+		int actual_progression_value = (int) (progression >>> 32);
+		int max_progression_value = (int) progression;
+		
 		if (max_progression_value > 0) {
 			return String.valueOf(actual_progression_value) + "/" + String.valueOf(max_progression_value);
 		} else {
@@ -365,6 +790,47 @@ public final class Job {
 		}
 	}
 	
+	/**
+	 * Keep the actual_progression_value and max_progression_value JSON fields for the journals and the remote brokers.
+	 */
+	static class ProgressionTypeAdapterFactory implements TypeAdapterFactory {
+		
+		@SuppressWarnings("unchecked")
+		public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+			if (Job.class.equals(type.getRawType()) == false) {
+				return null;
+			}
+			TypeAdapter<Job> delegate = gson.getDelegateAdapter(this, TypeToken.get(Job.class));
+			TypeAdapter<JsonElement> element_adapter = gson.getAdapter(JsonElement.class);
+			
+			return (TypeAdapter<T>) new TypeAdapter<Job>() {
+				
+				public void write(JsonWriter out, Job job) throws IOException {
+					if (job == null) {
+						out.nullValue();
+						return;
+					}
+					long progression = job.progression;
+					JsonObject jo = delegate.toJsonTree(job).getAsJsonObject();
+					jo.addProperty("actual_progression_value", (int) (progression >>> 32));
+					jo.addProperty("max_progression_value", (int) progression);
+					element_adapter.write(out, jo);
+				}
+				
+				public Job read(JsonReader in) throws IOException {
+					JsonElement je = element_adapter.read(in);
+					if (je == null || je.isJsonNull()) {
+						return null;
+					}
+					JsonObject jo = je.getAsJsonObject();
+					int actual_progression_value = jo.has("actual_progression_value") ? jo.get("actual_progression_value").getAsInt() : 0;
+					int max_progression_value = jo.has("max_progression_value") ? jo.get("max_progression_value").getAsInt() : 0;
+					return delegate.fromJsonTree(jo).updateProgression(actual_progression_value, max_progression_value);
+				}
+			};
+		}
+	}
+	
 	public long getCreateDate() {
 		return create_date;
 	}
@@ -0,0 +1,487 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+
+/**
+ * Append only segment files of job changes, plus snapshots of all jobs.
+ * A record: int payload_size, payload (byte type, long uuid msb, long uuid lsb, type datas), int payload crc32.
+ */
+class JobJournal {
+	private static final Logger log = LogManager.getLogger();
+	
+	private static final byte RECORD_CREATE = 1;
+	private static final byte RECORD_STATUS = 2;
+	private static final byte RECORD_PROGRESSION = 3;
+	private static final byte RECORD_DELETE = 4;
+	private static final byte RECORD_NOT_BEFORE = 5;
+	
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SUFFIX = ".bin";
+	
+	/**
+	 * Max records written by one group commit.
+	 */
+	private static final int MAX_GROUP_COMMIT = 4096;
+	
+	/**
+	 * Wake up the writer on close: an interrupt would close the segment channel during a write.
+	 */
+	private static final PendingRecord CLOSE_MARKER = new PendingRecord(ByteBuffer.allocate(0));
+	
+	private final File directory;
+	private final Gson gson;
+	private final long max_segment_size;
+	private final LinkedBlockingQueue<PendingRecord> pending_records;
+	private final Thread writer;
+	
+	private FileChannel segment;
+	private long segment_id;
+	private long segment_size;
+	private LongConsumer onSegmentRotation;
+	private volatile boolean closed;
+	
+	/**
+	 * @param max_segment_size after it, a new segment is created, and onSegmentRotation is called.
+	 */
+	JobJournal(File directory, Gson gson, long max_segment_size) throws IOException {
+		this.directory = directory;
+		if (directory == null) {
+			throw new NullPointerException("\"directory\" can't to be null");
+		}
+		this.gson = gson;
+		if (gson == null) {
+			throw new NullPointerException("\"gson\" can't to be null");
+		}
+		this.max_segment_size = max_segment_size;
+		if (max_segment_size < 1) {
+			throw new IndexOutOfBoundsException("\"max_segment_size\" must be > 0");
+		}
+		Files.createDirectories(directory.toPath());
+		
+		pending_records = new LinkedBlockingQueue<>();
+		
+		writer = new Thread(this::writerLoop);
+		writer.setName("JobJournalWriter " + directory.getName());
+		writer.setDaemon(true);
+	}
+	
+	/**
+	 * Read the last snapshot and all the next segments.
+	 * @return all jobs, by creation order. Jobs don't have observers.
+	 */
+	LinkedHashMap<UUID, Job> replay() throws IOException {
+		LinkedHashMap<UUID, Job> jobs = new LinkedHashMap<>();
+		
+		long last_snapshot_id = listIds(SNAPSHOT_PREFIX).stream().mapToLong(l -> l).max().orElse(-1);
+		if (last_snapshot_id > -1) {
+			int count = readRecords(getFile(SNAPSHOT_PREFIX, last_snapshot_id), jobs);
+			log.info("Load journal snapshot " + last_snapshot_id + " with " + count + " job(s)");
+		}
+		
+		for (long id : listIds(SEGMENT_PREFIX)) {
+			if (id < last_snapshot_id) {
+				continue;
+			}
+			int count = readRecords(getFile(SEGMENT_PREFIX, id), jobs);
+			log.debug("Replay journal segment " + id + " with " + count + " record(s)");
+			segment_id = Math.max(segment_id, id);
+		}
+		segment_id = Math.max(segment_id, last_snapshot_id);
+		
+		return jobs;
+	}
+	
+	/**
+	 * Start to write in a new segment, after the replayed segments.
+	 * @param onSegmentRotation called by the writer thread with the new segment id, after each segment rotation.
+	 * @return the new segment id
+	 */
+	synchronized long start(LongConsumer onSegmentRotation) throws IOException {
+		this.onSegmentRotation = onSegmentRotation;
+		openNextSegment();
+		writer.start();
+		return segment_id;
+	}
+	
+	private void openNextSegment() throws IOException {
+		if (segment != null) {
+			segment.force(true);
+			segment.close();
+		}
+		segment_id++;
+		segment = FileChannel.open(getFile(SEGMENT_PREFIX, segment_id).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		segment_size = 0;
+	}
+	
+	CompletableFuture<Void> appendCreate(Job job) {
+		return append(encode(RECORD_CREATE, job.getKey(), out -> {
+			byte[] json = job.toJson(gson).getBytes(StandardCharsets.UTF_8);
+			out.writeInt(json.length);
+			out.write(json);
+		}));
+	}
+	
+	CompletableFuture<Void> appendStatus(Job job) {
+		return append(encode(RECORD_STATUS, job.getKey(), out -> {
+			synchronized (job) {
+				out.writeByte(job.getStatus().ordinal());
+				out.writeLong(job.getStartDate());
+				out.writeLong(job.getEndDate());
+				String last_error_message = job.getLastErrorMessage();
+				out.writeBoolean(last_error_message != null);
+				if (last_error_message != null) {
+					byte[] message = last_error_message.getBytes(StandardCharsets.UTF_8);
+					out.writeInt(message.length);
+					out.write(message);
+				}
+			}
+		}));
+	}
+	
+	CompletableFuture<Void> appendProgression(Job job) {
+		return append(encode(RECORD_PROGRESSION, job.getKey(), out -> {
+			out.writeInt(job.getActualProgressionValue());
+			out.writeInt(job.getMaxProgressionValue());
+		}));
+	}
+	
+	CompletableFuture<Void> appendNotBefore(Job job) {
+		return append(encode(RECORD_NOT_BEFORE, job.getKey(), out -> {
+			out.writeLong(job.getNotBefore());
+		}));
+	}
+	
+	/**
+	 * An empty record, only to wait the records appended before it.
+	 * @return completed when all the records appended before this call are written
+	 */
+	CompletableFuture<Void> sync() {
+		return append(ByteBuffer.allocate(0));
+	}
+	
+	CompletableFuture<Void> appendDelete(UUID job_key) {
+		return append(encode(RECORD_DELETE, job_key, out -> {
+		}));
+	}
+	
+	/**
+	 * Write all jobs in a new snapshot file, and remove the previous segments and snapshots.
+	 * Segment snapshot_id and the nexts segments must be still replayed after this snapshot.
+	 */
+	void writeSnapshot(long snapshot_id, Collection<Job> jobs) throws IOException {
+		File tmp_file = new File(directory, SNAPSHOT_PREFIX + snapshot_id + ".tmp");
+		
+		try (FileChannel channel = FileChannel.open(tmp_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(0);
+			for (Job job : jobs) {
+				byte[] json = job.toJson(gson).getBytes(StandardCharsets.UTF_8);
+				ByteBuffer record = encode(RECORD_CREATE, job.getKey(), out -> {
+					out.writeInt(json.length);
+					out.write(json);
+				});
+				if (buffer.remaining() < record.remaining()) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					buffer = ByteBuffer.allocate(Math.max(1 << 20, record.remaining()));
+				}
+				buffer.put(record);
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		
+		Files.move(tmp_file.toPath(), getFile(SNAPSHOT_PREFIX, snapshot_id).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		
+		for (long id : listIds(SNAPSHOT_PREFIX)) {
+			if (id < snapshot_id) {
+				Files.deleteIfExists(getFile(SNAPSHOT_PREFIX, id).toPath());
+			}
+		}
+		for (long id : listIds(SEGMENT_PREFIX)) {
+			if (id < snapshot_id) {
+				Files.deleteIfExists(getFile(SEGMENT_PREFIX, id).toPath());
+			}
+		}
+		
+		log.debug("Write journal snapshot " + snapshot_id + " with " + jobs.size() + " job(s)");
+	}
+	
+	/**
+	 * Write and force all pending records, and close the actual segment after the writer ends.
+	 * @throws IOException if the writer is still running after 1 minute: the segment is not closed.
+	 */
+	void close() throws IOException {
+		closed = true;
+		pending_records.add(CLOSE_MARKER);
+		try {
+			writer.join(TimeUnit.MINUTES.toMillis(1));
+		} catch (InterruptedException e) {
+			throw new IOException("Can't wait journal writer", e);
+		}
+		if (writer.isAlive()) {
+			throw new IOException("Journal writer is still running, " + pending_records.size() + " record(s) are not written");
+		}
+		
+		synchronized (this) {
+			if (segment != null) {
+				segment.force(true);
+				segment.close();
+				segment = null;
+			}
+		}
+	}
+	
+	private CompletableFuture<Void> append(ByteBuffer record) {
+		PendingRecord pending = new PendingRecord(record);
+		if (closed) {
+			pending.written.completeExceptionally(new IOException("Journal is closed"));
+			return pending.written;
+		}
+		pending_records.add(pending);
+		return pending.written;
+	}
+	
+	/**
+	 * Group commit: all the waiting records are written together, with only one force.
+	 */
+	private void writerLoop() {
+		ArrayList<PendingRecord> group = new ArrayList<>(MAX_GROUP_COMMIT);
+		
+		while (closed == false || pending_records.isEmpty() == false) {
+			try {
+				PendingRecord first = pending_records.poll(1, TimeUnit.SECONDS);
+				if (first == null) {
+					continue;
+				} else if (first != CLOSE_MARKER) {
+					group.add(first);
+				}
+			} catch (InterruptedException e) {
+				if (closed == false) {
+					log.warn("Journal writer is interrupted but not closed");
+				}
+			}
+			pending_records.drainTo(group, MAX_GROUP_COMMIT - group.size());
+			if (group.isEmpty()) {
+				continue;
+			}
+			
+			try {
+				writeGroup(group);
+				group.forEach(pending -> pending.written.complete(null));
+			} catch (Exception e) {
+				log.error("Can't write journal records", e);
+				group.forEach(pending -> pending.written.completeExceptionally(e));
+			}
+			group.clear();
+		}
+	}
+	
+	private synchronized void writeGroup(List<PendingRecord> group) throws IOException {
+		ByteBuffer[] buffers = group.stream().map(pending -> pending.record).toArray(ByteBuffer[]::new);
+		long size = Arrays.stream(buffers).mapToLong(ByteBuffer::remaining).sum();
+		
+		long written = 0;
+		while (written < size) {
+			written += segment.write(buffers);
+		}
+		segment.force(false);
+		segment_size += size;
+		
+		if (segment_size >= max_segment_size) {
+			openNextSegment();
+			if (onSegmentRotation != null) {
+				onSegmentRotation.accept(segment_id);
+			}
+		}
+	}
+	
+	private static ByteBuffer encode(byte type, UUID job_key, RecordWriter writer) {
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+			DataOutputStream out = new DataOutputStream(payload);
+			out.writeByte(type);
+			out.writeLong(job_key.getMostSignificantBits());
+			out.writeLong(job_key.getLeastSignificantBits());
+			writer.write(out);
+			out.flush();
+			byte[] bytes = payload.toByteArray();
+			
+			CRC32 crc = new CRC32();
+			crc.update(bytes);
+			
+			ByteBuffer record = ByteBuffer.allocate(4 + bytes.length + 4);
+			record.putInt(bytes.length);
+			record.put(bytes);
+			record.putInt((int) crc.getValue());
+			record.flip();
+			return record;
+		} catch (IOException e) {
+			throw new RuntimeException("Can't encode journal record", e);
+		}
+	}
+	
+	@FunctionalInterface
+	private interface RecordWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+	
+	/**
+	 * Stop on the first truncated or corrupted record (like an interrupted write).
+	 * @return read records count
+	 */
+	private int readRecords(File file, LinkedHashMap<UUID, Job> jobs) throws IOException {
+		ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		int count = 0;
+		
+		try {
+			while (content.remaining() >= 4) {
+				int size = content.getInt();
+				if (size < 17 || size + 4 > content.remaining()) {
+					log.warn("Truncated journal record in " + file.getName() + " after " + count + " record(s)");
+					break;
+				}
+				ByteBuffer payload = content.slice();
+				payload.limit(size);
+				content.position(content.position() + size);
+				
+				CRC32 crc = new CRC32();
+				crc.update(payload.duplicate());
+				if ((int) crc.getValue() != content.getInt()) {
+					log.warn("Corrupted journal record in " + file.getName() + " after " + count + " record(s)");
+					break;
+				}
+				
+				applyRecord(payload, jobs);
+				count++;
+			}
+		} catch (BufferUnderflowException e) {
+			log.warn("Invalid journal record in " + file.getName() + " after " + count + " record(s)", e);
+		}
+		return count;
+	}
+	
+	private void applyRecord(ByteBuffer payload, LinkedHashMap<UUID, Job> jobs) {
+		byte type = payload.get();
+		UUID job_key = new UUID(payload.getLong(), payload.getLong());
+		
+		if (type == RECORD_CREATE) {
+			byte[] json = new byte[payload.getInt()];
+			payload.get(json);
+			Job job = Job.fromJson(gson, new String(json, StandardCharsets.UTF_8));
+			jobs.put(job_key, job);
+			
+			if (job.getLinkedJob() != null && jobs.containsKey(job.getLinkedJob())) {
+				jobs.get(job.getLinkedJob()).restoreRelativeSubJob(job_key);
+			}
+			return;
+		} else if (type == RECORD_DELETE) {
+			jobs.remove(job_key);
+			return;
+		}
+		
+		Job job = jobs.get(job_key);
+		if (job == null) {
+			return;
+		}
+		
+		if (type == RECORD_STATUS) {
+			TaskStatus status = TaskStatus.values()[payload.get()];
+			long start_date = payload.getLong();
+			long end_date = payload.getLong();
+			String last_error_message = null;
+			if (payload.get() != 0) {
+				byte[] message = new byte[payload.getInt()];
+				payload.get(message);
+				last_error_message = new String(message, StandardCharsets.UTF_8);
+			}
+			job.restoreStatus(status, start_date, end_date, last_error_message);
+		} else if (type == RECORD_PROGRESSION) {
+			job.updateProgression(payload.getInt(), payload.getInt());
+		} else if (type == RECORD_NOT_BEFORE) {
+			job.setNotBefore(payload.getLong());
+		} else {
+			throw new IllegalStateException("Unknown journal record type: " + type);
+		}
+	}
+	
+	private File getFile(String prefix, long id) {
+		return new File(directory, prefix + String.format("%016d", id) + SUFFIX);
+	}
+	
+	private List<Long> listIds(String prefix) {
+		String[] names = directory.list((dir, name) -> name.startsWith(prefix) && name.endsWith(SUFFIX));
+		if (names == null) {
+			return List.of();
+		}
+		
+		ArrayList<Long> ids = new ArrayList<>(names.length);
+		for (String name : names) {
+			try {
+				ids.add(Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length())));
+			} catch (NumberFormatException e) {
+				log.warn("Ignore invalid journal file name " + name);
+			}
+		}
+		ids.sort(Long::compare);
+		return ids;
+	}
+	
+	private static class PendingRecord {
+		private final ByteBuffer record;
+		private final CompletableFuture<Void> written;
+		
+		PendingRecord(ByteBuffer record) {
+			this.record = record;
+			written = new CompletableFuture<>();
+		}
+	}
+	
+}
@@ -0,0 +1,202 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+/**
+ * Job parameters for a batch creation with Broker.createJobs/addSubJobs.
+ */
+public class JobSpec {
+	
+	private final String description;
+	private final String context_type;
+	private final JsonObject context_content;
+	private String external_reference;
+	private Collection<String> context_requirement_tags;
+	private int priority;
+	private long not_before;
+	private ArrayList<UUID> dependencies;
+	private ArrayList<JobSpec> batch_dependencies;
+	
+	public JobSpec(String description, String context_type, JsonObject context_content) {
+		this.description = description;
+		this.context_type = context_type;
+		if (context_type == null) {
+			throw new NullPointerException("\"context_type\" can't to be null");
+		}
+		this.context_content = context_content;
+	}
+	
+	/**
+	 * Like Broker.createGenericJob
+	 */
+	public static <T> JobSpec ofGeneric(String description, T context, Gson gson) {
+		return new JobSpec(description, Job.JAVA_CLASS_PREFIX_CONTEXT_TYPE + context.getClass().getName(), gson.toJsonTree(context).getAsJsonObject());
+	}
+	
+	/**
+	 * @return this
+	 */
+	public JobSpec setExternalReference(String external_reference) {
+		this.external_reference = external_reference;
+		return this;
+	}
+	
+	/**
+	 * @return this
+	 */
+	public JobSpec setContextRequirementTags(Collection<String> context_requirement_tags) {
+		this.context_requirement_tags = context_requirement_tags;
+		return this;
+	}
+	
+	/**
+	 * @param priority higher is first, 0 by default
+	 * @return this
+	 */
+	public JobSpec setPriority(int priority) {
+		this.priority = priority;
+		return this;
+	}
+	
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * @param not_before the job will be created POSTPONED, and switched to WAITING by the broker after this date. 0 (default) or a passed date: created WAITING.
+	 * @return this
+	 */
+	public JobSpec setNotBefore(long not_before) {
+		this.not_before = not_before;
+		return this;
+	}
+	
+	/**
+	 * @return this
+	 */
+	public JobSpec setDelay(long delay, TimeUnit unit) {
+		not_before = System.currentTimeMillis() + unit.toMillis(delay);
+		return this;
+	}
+	
+	public long getNotBefore() {
+		return not_before;
+	}
+	
+	/**
+	 * The job will wait this existing job DONE before start.
+	 * @return this
+	 */
+	public JobSpec addDependency(UUID job_key) {
+		if (job_key == null) {
+			throw new NullPointerException("\"job_key\" can't to be null");
+		}
+		if (dependencies == null) {
+			dependencies = new ArrayList<>();
+		}
+		dependencies.add(job_key);
+		return this;
+	}
+	
+	/**
+	 * The job will wait this existing job DONE before start.
+	 * @return this
+	 */
+	public JobSpec addDependency(Job job) {
+		return addDependency(job.getKey());
+	}
+	
+	/**
+	 * The job will wait DONE the job created by this other spec, in the same createJobs/addSubJobs batch.
+	 * @return this
+	 */
+	public JobSpec addDependency(JobSpec spec) {
+		if (spec == null) {
+			throw new NullPointerException("\"spec\" can't to be null");
+		}
+		if (batch_dependencies == null) {
+			batch_dependencies = new ArrayList<>();
+		}
+		batch_dependencies.add(spec);
+		return this;
+	}
+	
+	/**
+	 * @return never null
+	 */
+	public List<UUID> getDependencies() {
+		if (dependencies == null) {
+			return List.of();
+		}
+		return Collections.unmodifiableList(dependencies);
+	}
+	
+	/**
+	 * @return never null
+	 */
+	List<JobSpec> getBatchDependencies() {
+		if (batch_dependencies == null) {
+			return List.of();
+		}
+		return batch_dependencies;
+	}
+	
+	boolean hasDependencies() {
+		return dependencies != null || batch_dependencies != null;
+	}
+	
+	public String getDescription() {
+		return description;
+	}
+	
+	public String getContextType() {
+		return context_type;
+	}
+	
+	public JsonObject getContextContent() {
+		return context_content;
+	}
+	
+	public String getExternalReference() {
+		return external_reference;
+	}
+	
+	public Collection<String> getContextRequirementTags() {
+		return context_requirement_tags;
+	}
+	
+	/**
+	 * @return a copy, or null
+	 */
+	ArrayList<String> copyContextRequirementTags() {
+		if (context_requirement_tags == null) {
+			return null;
+		}
+		return new ArrayList<>(context_requirement_tags);
+	}
+	
+}
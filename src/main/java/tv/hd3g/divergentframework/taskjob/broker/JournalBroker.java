@@ -0,0 +1,255 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
+
+/**
+ * InMemoryBroker with all job changes saved in a local append only journal, and restored on startup.
+ * Startup time is proportional to the live jobs count: a snapshot of all jobs is written on each journal segment rotation.
+ */
+public class JournalBroker extends InMemoryBroker implements Closeable {
+	private static final Logger log = LogManager.getLogger();
+	
+	public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	private final JobJournal journal;
+	private final ThreadPoolExecutor snapshot_executor;
+	private volatile boolean sync_commit;
+	
+	/**
+	 * @param journal_directory will be created if needed. Previous jobs founded here are restored.
+	 */
+	public JournalBroker(File journal_directory, int max_job_count, long abandoned_jobs_retention_time, long done_jobs_retention_time, long error_jobs_retention_time, TimeUnit unit) throws IOException {
+		this(journal_directory, DEFAULT_MAX_SEGMENT_SIZE, max_job_count, abandoned_jobs_retention_time, done_jobs_retention_time, error_jobs_retention_time, unit, StoreLockMode.EXCLUSIVE);
+	}
+	
+	/**
+	 * @param journal_directory will be created if needed. Previous jobs founded here are restored.
+	 * @param max_segment_size in bytes, before start a new journal segment and write a new snapshot.
+	 */
+	public JournalBroker(File journal_directory, long max_segment_size, int max_job_count, long abandoned_jobs_retention_time, long done_jobs_retention_time, long error_jobs_retention_time, TimeUnit unit, StoreLockMode store_lock_mode) throws IOException {
+		super(max_job_count, abandoned_jobs_retention_time, done_jobs_retention_time, error_jobs_retention_time, unit, store_lock_mode);
+		sync_commit = true;
+		
+		snapshot_executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+			Thread t = new Thread(r);
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			t.setName("JournalSnapshot");
+			return t;
+		});
+		
+		journal = new JobJournal(journal_directory, new Gson(), max_segment_size);
+		
+		LinkedHashMap<UUID, Job> jobs = journal.replay();
+		long now = System.currentTimeMillis();
+		jobs.values().forEach(job -> {
+			recoverInterruptedJob(job, now);
+			restoreJob(job);
+		});
+		log.info("Restore " + jobs.size() + " job(s) from journal " + journal_directory);
+		
+		long segment_id = journal.start(new_segment_id -> {
+			if (snapshot_executor.isShutdown()) {
+				log.debug("Don't write snapshot " + new_segment_id + " on close");
+				return;
+			}
+			snapshot_executor.execute(() -> writeSnapshot(new_segment_id));
+		});
+		
+		/**
+		 * Compact the replayed history right now.
+		 */
+		journal.writeSnapshot(segment_id, getAllJobs());
+		
+		addJobObserver(new JobEventObserver() {
+			public void brokerOnAfterFlush(List<UUID> deleted_jobs_uuid) {
+				deleted_jobs_uuid.forEach(journal::appendDelete);
+			}
+			
+			/**
+			 * Only the published progressions, see setProgressionPublishInterval.
+			 */
+			public void onJobUpdateProgression(Job job) {
+				journal.appendProgression(job);
+			}
+		});
+	}
+	
+	/**
+	 * Nobody works on the restored jobs now.
+	 */
+	private static void recoverInterruptedJob(Job job, long now) {
+		switch (job.getStatus()) {
+		case PREPARING:
+			job.restoreStatus(TaskStatus.WAITING, job.getStartDate(), job.getEndDate(), job.getLastErrorMessage());
+			break;
+		case PROCESSING:
+			job.restoreStatus(TaskStatus.ERROR, job.getStartDate(), now, "Interrupted by a broker restart");
+			break;
+		case STOPPING:
+			job.restoreStatus(TaskStatus.STOPPED, job.getStartDate(), now, job.getLastErrorMessage());
+			break;
+		default:
+			break;
+		}
+	}
+	
+	private void writeSnapshot(long segment_id) {
+		try {
+			journal.writeSnapshot(segment_id, getAllJobs());
+		} catch (IOException e) {
+			log.error("Can't write journal snapshot " + segment_id, e);
+		}
+	}
+	
+	/**
+	 * @param sync_commit if true (by default), createJob/addSubJob/switchStatus/switchToError/postponeJob return only after their journal records are written on disk.
+	 * @return this
+	 */
+	public JournalBroker setSyncCommit(boolean sync_commit) {
+		this.sync_commit = sync_commit;
+		return this;
+	}
+	
+	private void commit(CompletableFuture<Void> written) {
+		if (sync_commit) {
+			written.join();
+		}
+	}
+	
+	/**
+	 * The status records are already queued by onJobStatusChange.
+	 */
+	private void commitStatusChanges() {
+		if (sync_commit) {
+			journal.sync().join();
+		}
+	}
+	
+	public Job createJob(String description, String external_reference, String context_type, JsonObject context_content, Collection<String> context_requirement_tags) {
+		Job job = super.createJob(description, external_reference, context_type, context_content, context_requirement_tags);
+		commit(journal.appendCreate(job));
+		return job;
+	}
+	
+	public Job addSubJob(Job reference, String description, String external_reference, String context_type, JsonObject context_content, Collection<String> context_requirement_tags) {
+		Job sub_job = super.addSubJob(reference, description, external_reference, context_type, context_content, context_requirement_tags);
+		commit(journal.appendCreate(sub_job));
+		return sub_job;
+	}
+	
+	List<Job> createJobs(List<JobSpec> specs, List<UUID> keys) {
+		List<Job> jobs = super.createJobs(specs, keys);
+		commitAll(jobs);
+		return jobs;
+	}
+	
+	public List<Job> addSubJobs(Job reference, List<JobSpec> specs) {
+		List<Job> sub_jobs = super.addSubJobs(reference, specs);
+		commitAll(sub_jobs);
+		return sub_jobs;
+	}
+	
+	/**
+	 * All the records will be written in the same group commit.
+	 */
+	private void commitAll(List<Job> created_jobs) {
+		CompletableFuture<?>[] all_written = created_jobs.stream().map(journal::appendCreate).toArray(CompletableFuture[]::new);
+		commit(CompletableFuture.allOf(all_written));
+	}
+	
+	public void switchToError(Job job, Throwable e, long lease_epoch) {
+		super.switchToError(job, e, lease_epoch);
+		commitStatusChanges();
+	}
+	
+	public void switchStatus(Job job, TaskStatus new_status, long lease_epoch) {
+		super.switchStatus(job, new_status, lease_epoch);
+		commitStatusChanges();
+	}
+	
+	public void postponeJob(Job job, long not_before) {
+		super.postponeJob(job, not_before);
+		commitStatusChanges();
+	}
+	
+	/**
+	 * Records are encoded and queued in the store write section, so two changes of a same job, from two threads, are journaled in their change order.
+	 * Not synchronous for the changes made by the broker itself (postponed jobs promotion, leases expiry):
+	 * after a crash, a restored postponed job will be switched again to WAITING.
+	 */
+	void onJobStatusChange(Job job) {
+		journal.appendStatus(job);
+		journal.appendNotBefore(job);
+	}
+	
+	/**
+	 * After a crash between the two, the moved jobs will be restored in the both brokers: never lost.
+	 */
+	void onJobsMovedIn(List<Job> jobs) {
+		commitAll(jobs);
+	}
+	
+	void onJobsMovedOut(List<Job> jobs) {
+		CompletableFuture<?>[] all_written = jobs.stream().map(Job::getKey).map(journal::appendDelete).toArray(CompletableFuture[]::new);
+		commit(CompletableFuture.allOf(all_written));
+	}
+	
+	/**
+	 * Stop the regular flush and the postponed jobs and leases tasks, write all pending journal records and snapshots, and close the journal.
+	 */
+	public void close() throws IOException {
+		cancelCleanUpTask();
+		cancelPostponedJobsTask();
+		setLeaseDuration(0, TimeUnit.MILLISECONDS);
+		publishProgressions();
+		
+		/**
+		 * A snapshot must not run on a closed journal. A rotation after that is not snapshotted: the next replay will read its segment.
+		 */
+		snapshot_executor.shutdown();
+		try {
+			if (snapshot_executor.awaitTermination(1, TimeUnit.MINUTES) == false) {
+				throw new IOException("Timeout while waiting the last journal snapshot");
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("Can't wait the last journal snapshot", e);
+		}
+		journal.close();
+	}
+	
+}
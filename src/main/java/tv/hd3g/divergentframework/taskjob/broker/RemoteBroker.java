@@ -0,0 +1,461 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
+import tv.hd3g.divergentframework.taskjob.events.JobEventObserver.JobUpdateSubject;
+
+/**
+ * A Broker client for a BrokerServer, usable by a LocalQueue.
+ * Requests are pipelined: each caller thread waits only its response, and a writer thread sends all the pending requests in one write.
+ * Returned jobs are copies of the server jobs, updated by this broker status changes only.
+ */
+public class RemoteBroker implements Broker, Closeable {
+	private static final Logger log = LogManager.getLogger();
+	
+	/**
+	 * Max frames sent by one gathering write.
+	 */
+	private static final int MAX_WRITE_BATCH = 256;
+	
+	/**
+	 * Wake up the writer on close.
+	 */
+	private static final ByteBuffer CLOSE_MARKER = ByteBuffer.allocate(0);
+	
+	private final SocketChannel channel;
+	private final Gson gson;
+	private final AtomicInteger next_request_id;
+	private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> pending_responses;
+	private final LinkedBlockingQueue<ByteBuffer> pending_frames;
+	private final CopyOnWriteArrayList<Runnable> activity_callbacks;
+	private final CopyOnWriteArrayList<JobEventObserver> job_observers;
+	private final Thread writer;
+	private final Thread reader;
+	private volatile boolean closed;
+	/**
+	 * Sent by the server with each claim.
+	 */
+	private volatile long lease_duration;
+	
+	public RemoteBroker(InetSocketAddress server_address) throws IOException {
+		if (server_address == null) {
+			throw new NullPointerException("\"server_address\" can't to be null");
+		}
+		gson = new Gson();
+		next_request_id = new AtomicInteger(0);
+		pending_responses = new ConcurrentHashMap<>();
+		pending_frames = new LinkedBlockingQueue<>();
+		activity_callbacks = new CopyOnWriteArrayList<>();
+		job_observers = new CopyOnWriteArrayList<>();
+		
+		channel = SocketChannel.open(server_address);
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		
+		writer = new Thread(this::writerLoop);
+		writer.setName("RemoteBrokerWriter " + server_address);
+		writer.setDaemon(true);
+		writer.start();
+		
+		reader = new Thread(this::readerLoop);
+		reader.setName("RemoteBrokerReader " + server_address);
+		reader.setDaemon(true);
+		reader.start();
+		log.info("Connected to broker server " + server_address);
+	}
+	
+	public boolean isConnected() {
+		return closed == false && channel.isOpen();
+	}
+	
+	/**
+	 * Pending requests will throw an exception.
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		pending_frames.add(CLOSE_MARKER);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(10));
+		} catch (InterruptedException e) {
+			throw new IOException("Can't wait remote broker writer", e);
+		}
+		channel.close();
+		failPendingResponses(new IOException("Remote broker is closed"));
+	}
+	
+	private void writerLoop() {
+		ArrayList<ByteBuffer> batch = new ArrayList<>();
+		try {
+			while (true) {
+				batch.add(pending_frames.take());
+				pending_frames.drainTo(batch, MAX_WRITE_BATCH - 1);
+				boolean close = batch.remove(CLOSE_MARKER);
+				
+				ByteBuffer[] frames = batch.toArray(new ByteBuffer[batch.size()]);
+				long remaining = batch.stream().mapToLong(ByteBuffer::remaining).sum();
+				while (remaining > 0) {
+					remaining -= channel.write(frames);
+				}
+				batch.clear();
+				
+				if (close) {
+					return;
+				}
+			}
+		} catch (InterruptedException | IOException e) {
+			if (closed == false) {
+				log.error("Can't write to broker server", e);
+				closeAfterError(e);
+			}
+		}
+	}
+	
+	private void readerLoop() {
+		ByteBuffer size = ByteBuffer.allocate(4);
+		try {
+			while (true) {
+				size.clear();
+				readFully(size);
+				int payload_size = size.getInt(0);
+				if (payload_size < 5 || payload_size > BrokerProtocol.MAX_FRAME_SIZE) {
+					throw new IOException("Invalid frame size: " + payload_size);
+				}
+				ByteBuffer payload = ByteBuffer.allocate(payload_size);
+				readFully(payload);
+				payload.flip();
+				onFrame(payload);
+			}
+		} catch (IOException e) {
+			if (closed == false) {
+				log.error("Can't read from broker server", e);
+				closeAfterError(e);
+			}
+		}
+	}
+	
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) == -1) {
+				throw new EOFException("Closed by broker server");
+			}
+		}
+	}
+	
+	private void closeAfterError(Exception e) {
+		closed = true;
+		pending_frames.add(CLOSE_MARKER);
+		try {
+			channel.close();
+		} catch (IOException e1) {
+			log.warn("Can't close broker server connection", e1);
+		}
+		failPendingResponses(e);
+	}
+	
+	private void failPendingResponses(Exception e) {
+		new ArrayList<>(pending_responses.keySet()).forEach(request_id -> {
+			CompletableFuture<ByteBuffer> response = pending_responses.remove(request_id);
+			if (response != null) {
+				response.completeExceptionally(new RuntimeException("Lost broker server connection", e));
+			}
+		});
+	}
+	
+	/**
+	 * In reader thread: observers and activity callbacks must be fast, and must not wait a response from this broker.
+	 */
+	private void onFrame(ByteBuffer payload) {
+		byte type = payload.get();
+		int request_id = payload.getInt();
+		
+		switch (type) {
+		case BrokerProtocol.RESPONSE:
+			CompletableFuture<ByteBuffer> response = pending_responses.remove(request_id);
+			if (response != null) {
+				response.complete(payload);
+			}
+			break;
+		case BrokerProtocol.ERROR:
+			RuntimeException error = BrokerProtocol.readError(payload);
+			CompletableFuture<ByteBuffer> failed_response = pending_responses.remove(request_id);
+			if (failed_response != null) {
+				failed_response.completeExceptionally(error);
+			} else {
+				log.error("Broker server error for request " + request_id, error);
+			}
+			break;
+		case BrokerProtocol.ACTIVITY:
+			activity_callbacks.forEach(Runnable::run);
+			break;
+		case BrokerProtocol.EVENT:
+			onEvent(payload);
+			break;
+		default:
+			log.warn("Unknown broker server frame type " + type);
+		}
+	}
+	
+	private void onEvent(ByteBuffer payload) {
+		byte event_type = payload.get();
+		switch (event_type) {
+		case BrokerProtocol.EVENT_JOB_UPDATE:
+			JobUpdateSubject cause = JobUpdateSubject.values()[payload.get()];
+			Job updated_job = BrokerProtocol.readJob(payload, gson);
+			job_observers.forEach(o -> o.onJobUpdate(updated_job, cause));
+			break;
+		case BrokerProtocol.EVENT_PROGRESSION:
+			Job progression_job = BrokerProtocol.readJob(payload, gson);
+			job_observers.forEach(o -> o.onJobUpdateProgression(progression_job));
+			break;
+		case BrokerProtocol.EVENT_FLUSH:
+			List<UUID> deleted_jobs_uuid = BrokerProtocol.readUUIDs(payload);
+			job_observers.forEach(o -> o.brokerOnAfterFlush(deleted_jobs_uuid));
+			break;
+		case BrokerProtocol.EVENT_CREATE_JOBS:
+			List<Job> created_jobs = BrokerProtocol.readJobs(payload, gson);
+			job_observers.forEach(o -> o.brokerOnCreateJobs(created_jobs));
+			break;
+		case BrokerProtocol.EVENT_CREATE_SUB_JOBS:
+			Job reference = BrokerProtocol.readJob(payload, gson);
+			List<Job> sub_jobs = BrokerProtocol.readJobs(payload, gson);
+			job_observers.forEach(o -> o.brokerOnCreateSubJobs(reference, sub_jobs));
+			break;
+		default:
+			log.warn("Unknown broker server event type " + event_type);
+		}
+	}
+	
+	/**
+	 * Queue the request for the writer, without wait the response.
+	 */
+	private CompletableFuture<ByteBuffer> send(byte type, boolean with_response, BrokerProtocol.FrameWriter writer) {
+		if (closed) {
+			throw new IllegalStateException("Remote broker is closed");
+		}
+		int request_id = next_request_id.incrementAndGet();
+		ByteBuffer frame = BrokerProtocol.encode(type, request_id, writer);
+		
+		CompletableFuture<ByteBuffer> response = null;
+		if (with_response) {
+			response = new CompletableFuture<>();
+			pending_responses.put(request_id, response);
+		}
+		pending_frames.add(frame);
+		
+		if (closed && with_response && pending_responses.remove(request_id) != null) {
+			response.completeExceptionally(new IllegalStateException("Remote broker is closed"));
+		}
+		return response;
+	}
+	
+	/**
+	 * @return response payload, after type and request_id
+	 */
+	private ByteBuffer request(byte type, BrokerProtocol.FrameWriter writer) {
+		try {
+			return send(type, true, writer).get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted during broker request", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new RuntimeException("Broker request failed", e.getCause());
+		}
+	}
+	
+	public List<Job> getJobsByUUID(List<UUID> keys) {
+		if (keys == null || keys.isEmpty()) {
+			return List.of();
+		}
+		return BrokerProtocol.readJobs(request(BrokerProtocol.GET_JOBS, out -> BrokerProtocol.writeUUIDs(out, keys)), gson);
+	}
+	
+	public List<Job> getAllJobs() {
+		return BrokerProtocol.readJobs(request(BrokerProtocol.GET_ALL_JOBS, out -> {
+		}), gson);
+	}
+	
+	public Job createJob(String description, String external_reference, String context_type, JsonObject context_content, Collection<String> context_requirement_tags) {
+		return createJobs(List.of(new JobSpec(description, context_type, context_content).setExternalReference(external_reference).setContextRequirementTags(context_requirement_tags))).get(0);
+	}
+	
+	public Job addSubJob(Job reference, String description, String external_reference, String context_type, JsonObject context_content, Collection<String> context_requirement_tags) {
+		return addSubJobs(reference, List.of(new JobSpec(description, context_type, context_content).setExternalReference(external_reference).setContextRequirementTags(context_requirement_tags))).get(0);
+	}
+	
+	/**
+	 * One request for all specs.
+	 */
+	public List<Job> createJobs(List<JobSpec> specs) {
+		if (specs.isEmpty()) {
+			return List.of();
+		}
+		return BrokerProtocol.readJobs(request(BrokerProtocol.CREATE_JOBS, out -> BrokerProtocol.writeSpecs(out, specs)), gson);
+	}
+	
+	/**
+	 * One request for all specs.
+	 */
+	public List<Job> addSubJobs(Job reference, List<JobSpec> specs) {
+		if (specs.isEmpty()) {
+			return List.of();
+		}
+		return BrokerProtocol.readJobs(request(BrokerProtocol.ADD_SUB_JOBS, out -> {
+			BrokerProtocol.writeUUID(out, reference.getKey());
+			BrokerProtocol.writeSpecs(out, specs);
+		}), gson);
+	}
+	
+	/**
+	 * Don't wait the server: the errors are only logged. For a job claimed by this client, it's a heartbeat checked by the server with its claim lease epoch.
+	 */
+	public void updateProgression(Job job, int actual_value, int max_value) {
+		job.updateProgression(actual_value, max_value);
+		send(BrokerProtocol.UPDATE_PROGRESSION, false, out -> {
+			BrokerProtocol.writeUUID(out, job.getKey());
+			out.writeInt(actual_value);
+			out.writeInt(max_value);
+		});
+	}
+	
+	/**
+	 * Only the exception message is sent.
+	 */
+	public void switchToError(Job job, Throwable e) {
+		BrokerProtocol.readJobStatus(request(BrokerProtocol.SWITCH_TO_ERROR, out -> {
+			BrokerProtocol.writeUUID(out, job.getKey());
+			BrokerProtocol.writeString(out, e.getMessage());
+		}), job);
+	}
+	
+	public void switchStatus(Job job, TaskStatus new_status) {
+		BrokerProtocol.readJobStatus(request(BrokerProtocol.SWITCH_STATUS, out -> {
+			BrokerProtocol.writeUUID(out, job.getKey());
+			out.writeByte(new_status.ordinal());
+		}), job);
+	}
+	
+	/**
+	 * The server claims the jobs (switched to PREPARING) for this client, and this client releases the jobs not started here.
+	 * A ContextTagsFilter is sent to the server, and checked before the claim. The others filterByContextTypeAndTags are only checked after the claim, by this client.
+	 */
+	public void getNextJobs(List<String> list_to_context_types, IntSupplier queue_capacity, BiPredicate<String, List<String>> filterByContextTypeAndTags, Predicate<Job> onFoundJobReadyToStart) {
+		int capacity = queue_capacity.getAsInt();
+		if (capacity < 1 || list_to_context_types.isEmpty()) {
+			return;
+		}
+		
+		ContextTagsFilter tags_filter = filterByContextTypeAndTags instanceof ContextTagsFilter ? (ContextTagsFilter) filterByContextTypeAndTags : null;
+		ByteBuffer response = request(BrokerProtocol.CLAIM_JOBS, out -> {
+			BrokerProtocol.writeStrings(out, list_to_context_types);
+			out.writeInt(capacity);
+			BrokerProtocol.writeTagsFilter(out, tags_filter);
+		});
+		List<Job> claimed_jobs = BrokerProtocol.readJobs(response, gson);
+		lease_duration = response.getLong();
+		
+		ArrayList<UUID> released = new ArrayList<>();
+		claimed_jobs.forEach(job -> {
+			if (job.hasContextRequirementTags() && filterByContextTypeAndTags.test(job.getContextType(), job.getContextRequirementTags()) == false) {
+				released.add(job.getKey());
+			} else if (onFoundJobReadyToStart.test(job) == false) {
+				released.add(job.getKey());
+			}
+		});
+		
+		if (released.isEmpty() == false) {
+			request(BrokerProtocol.RELEASE_JOBS, out -> BrokerProtocol.writeUUIDs(out, released));
+		}
+	}
+	
+	/**
+	 * Don't wait the server: the errors, like a lost lease, are only logged. The server checks the lease with the claim lease epoch of this connection, not with lease_epoch.
+	 */
+	public void renewLease(Job job, long lease_epoch) {
+		send(BrokerProtocol.RENEW_LEASE, false, out -> {
+			BrokerProtocol.writeUUID(out, job.getKey());
+		});
+	}
+	
+	/**
+	 * @return the server lease duration, known after the first getNextJobs.
+	 */
+	public long getLeaseDuration() {
+		return lease_duration;
+	}
+	
+	/**
+	 * Called by the reader thread on each server jobs activity.
+	 */
+	public void registerCallbackOnNewLocalJobsActivity(Runnable callback) {
+		activity_callbacks.add(callback);
+		if (activity_callbacks.size() == 1) {
+			request(BrokerProtocol.SUBSCRIBE_ACTIVITY, out -> {
+			});
+		}
+	}
+	
+	/**
+	 * The server must stream its events (see BrokerServer.getEventStreamer). Observers are called by the reader thread: use AsyncJobEventObserver for the slow ones.
+	 * Jobs are copies.
+	 * @return this
+	 */
+	public RemoteBroker addJobObserver(JobEventObserver job_observer) {
+		if (job_observer == null) {
+			throw new NullPointerException("\"job_observer\" can't to be null");
+		}
+		job_observers.add(job_observer);
+		if (job_observers.size() == 1) {
+			request(BrokerProtocol.SUBSCRIBE_EVENTS, out -> {
+			});
+		}
+		return this;
+	}
+	
+}
@@ -0,0 +1,114 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How many times and when a job in error is switched back to WAITING by the broker, with an exponential backoff.
+ */
+public class RetryPolicy {
+	
+	private final int max_attempts;
+	private final long initial_delay;
+	private final long max_delay;
+	private volatile double multiplier;
+	private volatile double jitter;
+	
+	/**
+	 * With a x2 multiplier between each attempt, and a 20% jitter.
+	 * @param max_attempts processing count, including the first one. 1 for never retry.
+	 * @param initial_delay before the second attempt
+	 * @param max_delay between two attempts
+	 */
+	public RetryPolicy(int max_attempts, long initial_delay, long max_delay, TimeUnit unit) {
+		if (max_attempts < 1) {
+			throw new IndexOutOfBoundsException("\"max_attempts\" must be > 0");
+		}
+		this.max_attempts = max_attempts;
+		this.initial_delay = unit.toMillis(initial_delay);
+		if (initial_delay < 0) {
+			throw new IndexOutOfBoundsException("\"initial_delay\" must be >= 0");
+		}
+		this.max_delay = unit.toMillis(max_delay);
+		if (max_delay < initial_delay) {
+			throw new IndexOutOfBoundsException("\"max_delay\" must be >= initial_delay");
+		}
+		multiplier = 2d;
+		jitter = 0.2d;
+	}
+	
+	/**
+	 * @param multiplier delay ratio between two attempts
+	 * @return this
+	 */
+	public RetryPolicy setMultiplier(double multiplier) {
+		if (multiplier < 1d) {
+			throw new IndexOutOfBoundsException("\"multiplier\" must be >= 1");
+		}
+		this.multiplier = multiplier;
+		return this;
+	}
+	
+	/**
+	 * Spread the retries of the jobs in error at the same time.
+	 * @param jitter 0 for exact delays, 1 for delays randomly between 0 and the computed delay.
+	 * @return this
+	 */
+	public RetryPolicy setJitter(double jitter) {
+		if (jitter < 0d || jitter > 1d) {
+			throw new IndexOutOfBoundsException("\"jitter\" must be between 0 and 1");
+		}
+		this.jitter = jitter;
+		return this;
+	}
+	
+	public int getMaxAttempts() {
+		return max_attempts;
+	}
+	
+	/**
+	 * @param attempt_count processing count already done
+	 */
+	public boolean canRetry(int attempt_count) {
+		return attempt_count < max_attempts;
+	}
+	
+	/**
+	 * @param attempt_count processing count already done, 1 after the first error
+	 * @return delay in msec before the next attempt, without jitter
+	 */
+	public long getBaseDelay(int attempt_count) {
+		double delay = initial_delay * Math.pow(multiplier, Math.max(0, attempt_count - 1));
+		return (long) Math.min(delay, max_delay);
+	}
+	
+	/**
+	 * @param attempt_count processing count already done, 1 after the first error
+	 * @return delay in msec before the next attempt
+	 */
+	public long getRetryDelay(int attempt_count) {
+		long delay = getBaseDelay(attempt_count);
+		return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+	}
+	
+	public String toString() {
+		return "RetryPolicy max_attempts=" + max_attempts + ", delay=" + initial_delay + "-" + max_delay + " ms, x" + multiplier + ", jitter=" + jitter;
+	}
+	
+}
@@ -0,0 +1,103 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wait time between the job creation and its selection by getNextJobs, for a scheduling class.
+ * Percentiles are approximated by a log2 histogram, in milliseconds.
+ */
+public class SchedulingLatency {
+	
+	private static final int BUCKETS = 64;
+	
+	private final LongAdder count;
+	private final LongAdder sum;
+	private final LongAccumulator max;
+	private final AtomicLongArray histogram;
+	
+	SchedulingLatency() {
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new LongAccumulator(Math::max, 0);
+		histogram = new AtomicLongArray(BUCKETS);
+	}
+	
+	void record(long latency) {
+		long value = Math.max(0, latency);
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+		/**
+		 * Bucket n: values from 2^(n-1) to 2^n - 1
+		 */
+		histogram.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(value));
+	}
+	
+	public long getCount() {
+		return count.sum();
+	}
+	
+	/**
+	 * @return in ms
+	 */
+	public double getMean() {
+		long c = count.sum();
+		if (c == 0) {
+			return 0;
+		}
+		return (double) sum.sum() / (double) c;
+	}
+	
+	/**
+	 * @return in ms
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * @param percentile like 0.99
+	 * @return the upper bound of the histogram bucket for this percentile, in ms (never more than getMax)
+	 */
+	public long getPercentile(double percentile) {
+		long c = count.sum();
+		if (c == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * c);
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += histogram.get(bucket);
+			if (seen >= rank) {
+				if (bucket == 0) {
+					return 0;
+				}
+				return Math.min(getMax(), (1l << bucket) - 1);
+			}
+		}
+		return getMax();
+	}
+	
+	public String toString() {
+		return "count: " + getCount() + ", mean: " + Math.round(getMean()) + " ms, p50: " + getPercentile(0.5) + " ms, p99: " + getPercentile(0.99) + " ms, max: " + getMax() + " ms";
+	}
+	
+}
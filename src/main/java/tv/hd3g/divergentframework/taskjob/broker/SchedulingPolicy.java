@@ -0,0 +1,71 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.Collection;
+
+/**
+ * Choose the order of the WAITING jobs for InMemoryBroker.getNextJobs.
+ * Inside a scheduling class, jobs are always taken by priority, then by creation date.
+ * The policy only choose between the classes: calls are done in the job store lock.
+ */
+public interface SchedulingPolicy {
+	
+	/**
+	 * Only one class, so only priority and creation date are used.
+	 */
+	static final SchedulingPolicy STRICT_PRIORITY = new SchedulingPolicy() {
+		public String getSchedulingClass(Job job) {
+			return "";
+		}
+		
+		public String selectClass(Collection<String> candidate_classes) {
+			return candidate_classes.iterator().next();
+		}
+		
+		public void onSelected(String scheduling_class) {
+		}
+		
+		public String toString() {
+			return "StrictPriority";
+		}
+	};
+	
+	/**
+	 * Must always return the same value for a job.
+	 * @return never null
+	 */
+	String getSchedulingClass(Job job);
+	
+	/**
+	 * @param candidate_classes classes with an available job, never empty
+	 * @return one of candidate_classes
+	 */
+	String selectClass(Collection<String> candidate_classes);
+	
+	/**
+	 * Called when a job of this class is really selected.
+	 */
+	void onSelected(String scheduling_class);
+	
+	/**
+	 * Called when the last waiting job of this class is removed from the waiting jobs.
+	 */
+	default void onEmptyClass(String scheduling_class) {
+	}
+	
+}
@@ -0,0 +1,426 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonObject;
+
+import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
+
+/**
+ * Jobs partitioned in independent InMemoryBroker shards, each with its own store lock: creations and status updates on different shards never wait each others.
+ * New jobs are dispatched by their UUID hash, so even one context type is spread across all shards.
+ * Sub jobs and jobs with dependencies stay in the shard of their predecessors: before create a job with dependencies in different shards,
+ * its dependencies and all their linked jobs are moved in one shard.
+ * getNextJobs split the capacity across all shards, and merge the selected jobs by priority and creation date.
+ */
+public class ShardedBroker implements Broker {
+	private static final Logger log = LogManager.getLogger();
+	
+	private final List<InMemoryBroker> shards;
+	/**
+	 * Write locked only during a jobs move between shards, read locked by the operations on the existing jobs.
+	 */
+	private final ReentrantReadWriteLock move_lock;
+	private final AtomicInteger next_first_shard;
+	
+	/**
+	 * @param createShard shard index -> a new broker, like an InMemoryBroker or a JournalBroker with its own directory. Each has its own capacity and maintenance threads.
+	 */
+	public ShardedBroker(int shard_count, IntFunction<InMemoryBroker> createShard) {
+		if (shard_count < 1) {
+			throw new IndexOutOfBoundsException("\"shard_count\" must be > 0");
+		}
+		if (createShard == null) {
+			throw new NullPointerException("\"createShard\" can't to be null");
+		}
+		shards = Collections.unmodifiableList(IntStream.range(0, shard_count).mapToObj(createShard).collect(Collectors.toList()));
+		move_lock = new ReentrantReadWriteLock();
+		next_first_shard = new AtomicInteger(0);
+		log.info("Create broker with " + shard_count + " shards");
+	}
+	
+	public List<InMemoryBroker> getShards() {
+		return shards;
+	}
+	
+	InMemoryBroker getShardByKey(UUID key) {
+		return shards.get(Math.floorMod(key.hashCode(), shards.size()));
+	}
+	
+	/**
+	 * Lock free: check first the shard of its UUID, then the others for the sub jobs and the jobs with dependencies.
+	 * @return null if no shard have it
+	 */
+	private InMemoryBroker findShardOf(UUID key) {
+		InMemoryBroker shard = getShardByKey(key);
+		if (shard.getJobByUUID(key) != null) {
+			return shard;
+		}
+		return shards.stream().filter(s -> s.getJobByUUID(key) != null).findFirst().orElse(null);
+	}
+	
+	/**
+	 * Lock free if the job is not moving: else, wait the move end.
+	 * @throws NullPointerException if it can't found job
+	 */
+	InMemoryBroker getShardOf(Job job) {
+		InMemoryBroker shard = findShardOf(job.getKey());
+		if (shard != null) {
+			return shard;
+		}
+		move_lock.readLock().lock();
+		try {
+			shard = findShardOf(job.getKey());
+		} finally {
+			move_lock.readLock().unlock();
+		}
+		if (shard == null) {
+			throw new NullPointerException("Can't found Job " + job.getKey());
+		}
+		return shard;
+	}
+	
+	/**
+	 * In a move_lock read section: the job can't be moved during action.
+	 */
+	private <T> T applyOnShardOf(Job job, Function<InMemoryBroker, T> action) {
+		move_lock.readLock().lock();
+		try {
+			return action.apply(getShardOf(job));
+		} finally {
+			move_lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * In a move_lock read section: the job can't be moved during action.
+	 */
+	private void onShardOf(Job job, Consumer<InMemoryBroker> action) {
+		move_lock.readLock().lock();
+		try {
+			action.accept(getShardOf(job));
+		} finally {
+			move_lock.readLock().unlock();
+		}
+	}
+	
+	public List<Job> getJobsByUUID(List<UUID> keys) {
+		if (keys == null) {
+			return Collections.emptyList();
+		}
+		move_lock.readLock().lock();
+		try {
+			ArrayList<Job> result = new ArrayList<>(keys.size());
+			for (UUID key : keys) {
+				InMemoryBroker shard = findShardOf(key);
+				if (shard != null) {
+					result.add(shard.getJobByUUID(key));
+				}
+			}
+			return result;
+		} finally {
+			move_lock.readLock().unlock();
+		}
+	}
+	
+	public Job createJob(String description, String external_reference, String context_type, JsonObject context_content, Collection<String> context_requirement_tags) {
+		JobSpec spec = new JobSpec(description, context_type, context_content).setExternalReference(external_reference).setContextRequirementTags(context_requirement_tags);
+		return createJobs(List.of(spec)).get(0);
+	}
+	
+	public Job addSubJob(Job reference, String description, String external_reference, String context_type, JsonObject context_content, Collection<String> context_requirement_tags) {
+		return applyOnShardOf(reference, shard -> {
+			return shard.addSubJob(reference, description, external_reference, context_type, context_content, context_requirement_tags);
+		});
+	}
+	
+	/**
+	 * One createJobs by shard: it's atomic only by shard.
+	 * A batch with some dependencies goes in one shard, the shard of its existing dependencies.
+	 * If they are in different shards, they are moved before, with all their linked jobs (predecessors and dependent jobs, in cascade), in the shard of the first dependency.
+	 * A move don't check the shard capacity.
+	 */
+	public List<Job> createJobs(List<JobSpec> specs) {
+		if (specs.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<UUID> keys = specs.stream().map(spec -> UUID.randomUUID()).collect(Collectors.toUnmodifiableList());
+		
+		if (specs.stream().anyMatch(JobSpec::hasDependencies)) {
+			move_lock.readLock().lock();
+			try {
+				LinkedHashMap<InMemoryBroker, List<UUID>> dependencies_by_shard = getDependenciesByShard(specs);
+				if (dependencies_by_shard.size() == 1) {
+					return dependencies_by_shard.keySet().iterator().next().createJobs(specs, keys);
+				} else if (dependencies_by_shard.isEmpty()) {
+					/**
+					 * Only dependencies inside this batch: all in the shard of the first job.
+					 */
+					return getShardByKey(keys.get(0)).createJobs(specs, keys);
+				}
+			} finally {
+				move_lock.readLock().unlock();
+			}
+			
+			move_lock.writeLock().lock();
+			try {
+				LinkedHashMap<InMemoryBroker, List<UUID>> dependencies_by_shard = getDependenciesByShard(specs);
+				InMemoryBroker target = dependencies_by_shard.isEmpty() ? getShardByKey(keys.get(0)) : dependencies_by_shard.keySet().iterator().next();
+				dependencies_by_shard.forEach((shard, dependencies) -> {
+					if (shard == target) {
+						return;
+					}
+					List<Job> moved_jobs = shard.moveJobsTo(target, dependencies);
+					log.info("Move " + moved_jobs.size() + " linked job(s) in the shard " + shards.indexOf(target) + " from the shard " + shards.indexOf(shard) + ", for the dependencies of new jobs");
+				});
+				return target.createJobs(specs, keys);
+			} finally {
+				move_lock.writeLock().unlock();
+			}
+		}
+		
+		LinkedHashMap<InMemoryBroker, List<Integer>> positions_by_shard = new LinkedHashMap<>();
+		for (int pos = 0; pos < specs.size(); pos++) {
+			positions_by_shard.computeIfAbsent(getShardByKey(keys.get(pos)), s -> new ArrayList<>()).add(pos);
+		}
+		if (positions_by_shard.size() == 1) {
+			return positions_by_shard.keySet().iterator().next().createJobs(specs, keys);
+		}
+		
+		Job[] jobs = new Job[specs.size()];
+		positions_by_shard.forEach((shard, positions) -> {
+			List<Job> shard_jobs = shard.createJobs(positions.stream().map(specs::get).collect(Collectors.toList()), positions.stream().map(keys::get).collect(Collectors.toList()));
+			for (int pos = 0; pos < positions.size(); pos++) {
+				jobs[positions.get(pos)] = shard_jobs.get(pos);
+			}
+		});
+		return List.of(jobs);
+	}
+	
+	/**
+	 * In a move_lock section.
+	 * @return shard -> the existing dependencies it have, in first dependency order
+	 * @throws IllegalArgumentException if a dependency can't be found
+	 */
+	private LinkedHashMap<InMemoryBroker, List<UUID>> getDependenciesByShard(List<JobSpec> specs) {
+		LinkedHashMap<InMemoryBroker, List<UUID>> dependencies_by_shard = new LinkedHashMap<>();
+		specs.stream().flatMap(spec -> spec.getDependencies().stream()).distinct().forEach(dependency -> {
+			InMemoryBroker shard = findShardOf(dependency);
+			if (shard == null) {
+				throw new IllegalArgumentException("Can't found dependency " + dependency);
+			}
+			dependencies_by_shard.computeIfAbsent(shard, s -> new ArrayList<>()).add(dependency);
+		});
+		return dependencies_by_shard;
+	}
+	
+	public List<Job> addSubJobs(Job reference, List<JobSpec> specs) {
+		return applyOnShardOf(reference, shard -> shard.addSubJobs(reference, specs));
+	}
+	
+	public List<Job> getAllJobs() {
+		move_lock.readLock().lock();
+		try {
+			return shards.stream().flatMap(shard -> shard.getAllJobs().stream()).collect(Collectors.toList());
+		} finally {
+			move_lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Lock free, like renewLease: a job moved since will be published by its previous shard.
+	 */
+	public void updateProgression(Job job, int actual_value, int max_value) {
+		getShardOf(job).updateProgression(job, actual_value, max_value);
+	}
+	
+	public void updateProgression(Job job, int actual_value, int max_value, long lease_epoch) {
+		getShardOf(job).updateProgression(job, actual_value, max_value, lease_epoch);
+	}
+	
+	public void switchToError(Job job, Throwable e) {
+		onShardOf(job, shard -> shard.switchToError(job, e));
+	}
+	
+	public void switchStatus(Job job, TaskStatus new_status) {
+		onShardOf(job, shard -> shard.switchStatus(job, new_status));
+	}
+	
+	public void switchToError(Job job, Throwable e, long lease_epoch) {
+		onShardOf(job, shard -> shard.switchToError(job, e, lease_epoch));
+	}
+	
+	public void switchStatus(Job job, TaskStatus new_status, long lease_epoch) {
+		onShardOf(job, shard -> shard.switchStatus(job, new_status, lease_epoch));
+	}
+	
+	public void renewLease(Job job, long lease_epoch) {
+		getShardOf(job).renewLease(job, lease_epoch);
+	}
+	
+	/**
+	 * The same for all the shards.
+	 */
+	public long getLeaseDuration() {
+		return shards.get(0).getLeaseDuration();
+	}
+	
+	public void postponeJob(Job job, long not_before) {
+		onShardOf(job, shard -> shard.postponeJob(job, not_before));
+	}
+	
+	/**
+	 * queue_capacity is split across the shards, from a rotating first shard, and the capacity unused by a shard without enough WAITING jobs is split again across the others:
+	 * never more than queue_capacity jobs are pre-selected (so switched to PREPARING, and seen by the shards scheduling policies).
+	 * The pre-selected jobs are offered by priority and creation date, and the not started jobs are switched back to WAITING by their shard.
+	 */
+	public void getNextJobs(List<String> list_to_context_types, IntSupplier queue_capacity, BiPredicate<String, List<String>> filterByContextTypeAndTags, Predicate<Job> onFoundJobReadyToStart) {
+		int capacity = queue_capacity.getAsInt();
+		if (capacity < 1) {
+			return;
+		}
+		
+		ArrayList<Job> pre_selected_jobs = new ArrayList<>(capacity);
+		move_lock.readLock().lock();
+		try {
+			int first_shard = Math.floorMod(next_first_shard.getAndIncrement(), shards.size());
+			List<InMemoryBroker> candidates = IntStream.range(0, shards.size()).mapToObj(pos -> {
+				return shards.get((first_shard + pos) % shards.size());
+			}).collect(Collectors.toList());
+			
+			while (candidates.isEmpty() == false && pre_selected_jobs.size() < capacity) {
+				int remaining = capacity - pre_selected_jobs.size();
+				/**
+				 * The shards without share in this pass are the first of the next pass.
+				 */
+				ArrayList<InMemoryBroker> next_candidates = new ArrayList<>(candidates.size());
+				ArrayList<InMemoryBroker> full_shards = new ArrayList<>(candidates.size());
+				for (int pos = 0; pos < candidates.size(); pos++) {
+					InMemoryBroker shard = candidates.get(pos);
+					int share = remaining / candidates.size() + (pos < remaining % candidates.size() ? 1 : 0);
+					if (share == 0) {
+						next_candidates.add(shard);
+						continue;
+					}
+					List<Job> shard_jobs = shard.preSelectNextJobs(list_to_context_types, share, filterByContextTypeAndTags);
+					pre_selected_jobs.addAll(shard_jobs);
+					if (shard_jobs.size() == share) {
+						full_shards.add(shard);
+					}
+				}
+				next_candidates.addAll(full_shards);
+				candidates = next_candidates;
+			}
+		} finally {
+			move_lock.readLock().unlock();
+		}
+		
+		long now = System.currentTimeMillis();
+		pre_selected_jobs.sort(InMemoryJobStore.WAITING_JOBS_ORDER);
+		pre_selected_jobs.forEach(preparing_job -> {
+			/**
+			 * Outside the move_lock, like a getNextJobs on a shard.
+			 */
+			boolean started = onFoundJobReadyToStart.test(preparing_job);
+			onShardOf(preparing_job, shard -> shard.offerPreSelectedJob(preparing_job, j -> started, now));
+		});
+	}
+	
+	public void registerCallbackOnNewLocalJobsActivity(Runnable callback) {
+		shards.forEach(shard -> shard.registerCallbackOnNewLocalJobsActivity(callback));
+	}
+	
+	/**
+	 * @return this
+	 */
+	public ShardedBroker addJobObserver(JobEventObserver job_observer) {
+		shards.forEach(shard -> shard.addJobObserver(job_observer));
+		return this;
+	}
+	
+	/**
+	 * @return this
+	 */
+	public ShardedBroker setRetryPolicy(String context_type, RetryPolicy retry_policy) {
+		shards.forEach(shard -> shard.setRetryPolicy(context_type, retry_policy));
+		return this;
+	}
+	
+	/**
+	 * @see InMemoryBroker#setLeaseDuration(long, TimeUnit)
+	 * @return this
+	 */
+	public ShardedBroker setLeaseDuration(long duration, TimeUnit unit) {
+		shards.forEach(shard -> shard.setLeaseDuration(duration, unit));
+		return this;
+	}
+	
+	/**
+	 * @return this
+	 */
+	public ShardedBroker flush() {
+		shards.forEach(InMemoryBroker::flush);
+		return this;
+	}
+	
+	/**
+	 * @return this
+	 */
+	public ShardedBroker cancelCleanUpTask() {
+		shards.forEach(InMemoryBroker::cancelCleanUpTask);
+		return this;
+	}
+	
+	/**
+	 * @return this
+	 */
+	public ShardedBroker cancelPostponedJobsTask() {
+		shards.forEach(InMemoryBroker::cancelPostponedJobsTask);
+		return this;
+	}
+	
+	public int storeSize() {
+		return shards.stream().mapToInt(InMemoryBroker::storeSize).sum();
+	}
+	
+	public Optional<RuntimeException> checkStoreConsistency() {
+		return shards.stream().map(InMemoryBroker::checkStoreConsistency).filter(Optional::isPresent).map(Optional::get).findFirst();
+	}
+	
+}
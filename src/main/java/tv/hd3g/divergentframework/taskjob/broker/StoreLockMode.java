@@ -0,0 +1,34 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+/**
+ * How the in memory job store protects its internal lists.
+ */
+public enum StoreLockMode {
+	
+	/**
+	 * One lock for all: reads and writes are serialized.
+	 */
+	EXCLUSIVE,
+	
+	/**
+	 * Reads run concurrently, only the writes are exclusive.
+	 */
+	CONCURRENT_READS;
+	
+}
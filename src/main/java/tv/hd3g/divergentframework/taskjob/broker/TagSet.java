@@ -0,0 +1,116 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable context requirement tags list, with each tag interned as an integer id, and stored as a bitset.
+ * All ids are global to this JVM, and never released: tags are expected to be a small vocabulary.
+ * Use it like a List<String>, but containsAll(TagSet) is only some long ANDs.
+ */
+public final class TagSet extends AbstractList<String> implements RandomAccess {
+	
+	private static final ConcurrentHashMap<String, Integer> ids_by_tag = new ConcurrentHashMap<>();
+	private static final AtomicInteger next_id = new AtomicInteger(0);
+	
+	public static final TagSet EMPTY = new TagSet(new String[0], new long[0]);
+	
+	private final String[] tags;
+	private final long[] words;
+	
+	private TagSet(String[] tags, long[] words) {
+		this.tags = tags;
+		this.words = words;
+	}
+	
+	/**
+	 * @param tags can be null. The list view keeps the tags order and duplicates, only the bitset ignores the duplicates.
+	 * @return tags if it's already a TagSet
+	 */
+	public static TagSet of(Collection<String> tags) {
+		if (tags == null || tags.isEmpty()) {
+			return EMPTY;
+		} else if (tags instanceof TagSet) {
+			return (TagSet) tags;
+		}
+		
+		String[] all_tags = tags.toArray(new String[0]);
+		int[] ids = new int[all_tags.length];
+		int max_id = 0;
+		for (int pos = 0; pos < all_tags.length; pos++) {
+			if (all_tags[pos] == null) {
+				throw new NullPointerException("\"tag\" can't to be null");
+			}
+			ids[pos] = ids_by_tag.computeIfAbsent(all_tags[pos], tag -> next_id.getAndIncrement());
+			max_id = Math.max(max_id, ids[pos]);
+		}
+		
+		long[] words = new long[max_id / 64 + 1];
+		for (int id : ids) {
+			words[id / 64] |= 1l << id % 64;
+		}
+		return new TagSet(all_tags, words);
+	}
+	
+	/**
+	 * Bitset test only.
+	 */
+	public boolean containsAll(TagSet other) {
+		for (int pos = 0; pos < other.words.length; pos++) {
+			long required = other.words[pos];
+			if (required == 0) {
+				continue;
+			}
+			if (pos >= words.length || (words[pos] & required) != required) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public boolean containsAll(Collection<?> c) {
+		if (c instanceof TagSet) {
+			return containsAll((TagSet) c);
+		}
+		return super.containsAll(c);
+	}
+	
+	public boolean contains(Object o) {
+		if (o instanceof String == false) {
+			return false;
+		}
+		Integer id = ids_by_tag.get(o);
+		if (id == null || id / 64 >= words.length) {
+			return false;
+		}
+		return (words[id / 64] & 1l << id % 64) != 0;
+	}
+	
+	public String get(int index) {
+		return tags[index];
+	}
+	
+	public int size() {
+		return tags.length;
+	}
+	
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel: add and advance cost don't depend on the number of pending items.
+ * Level 0 slots are one tick, each upper level slot is a full turn of the level below, and upper levels are created on demand.
+ * Items are never returned before their deadline, and at most one tick after it.
+ * Not thread safe.
+ */
+final class TimingWheel<T> {
+	
+	private final long tick_duration;
+	private final int wheel_size;
+	private final ArrayList<Level> levels;
+	
+	/**
+	 * Start of the current tick, aligned on tick_duration.
+	 */
+	private long current_time;
+	private int size;
+	
+	/**
+	 * @param start_time like System.currentTimeMillis()
+	 */
+	TimingWheel(long tick_duration, int wheel_size, long start_time) {
+		if (tick_duration < 1) {
+			throw new IndexOutOfBoundsException("\"tick_duration\" must be > 0");
+		}
+		if (wheel_size < 2) {
+			throw new IndexOutOfBoundsException("\"wheel_size\" must be > 1");
+		}
+		this.tick_duration = tick_duration;
+		this.wheel_size = wheel_size;
+		levels = new ArrayList<>();
+		levels.add(new Level(tick_duration));
+		current_time = start_time - Math.floorMod(start_time, tick_duration);
+	}
+	
+	/**
+	 * @return false if the deadline is already passed: the item is not added, and it's due now.
+	 */
+	boolean add(T item, long deadline) {
+		if (deadline < current_time) {
+			return false;
+		}
+		insert(new Entry<>(item, deadline));
+		size++;
+		return true;
+	}
+	
+	/**
+	 * Move the wheel up to now, tick by tick, and send all the items with a passed deadline.
+	 * @return due items count
+	 */
+	int advance(long now, Consumer<T> onDue) {
+		int due_count = 0;
+		while (size > 0 && current_time + tick_duration <= now) {
+			/**
+			 * All current tick deadlines are now passed.
+			 */
+			ArrayList<Entry<T>> due = levels.get(0).pollSlot(current_time);
+			if (due != null) {
+				for (int pos = 0; pos < due.size(); pos++) {
+					onDue.accept(due.get(pos).item);
+				}
+				size -= due.size();
+				due_count += due.size();
+			}
+			current_time += tick_duration;
+			
+			/**
+			 * From the upper level: a cascaded item can be cascaded again in the same tick.
+			 */
+			for (int pos = levels.size() - 1; pos > 0; pos--) {
+				Level level = levels.get(pos);
+				if (Math.floorMod(current_time, level.tick) != 0) {
+					continue;
+				}
+				ArrayList<Entry<T>> cascaded = level.pollSlot(current_time);
+				if (cascaded != null) {
+					cascaded.forEach(this::insert);
+				}
+			}
+		}
+		
+		/**
+		 * Nothing to cascade: jump directly.
+		 */
+		long now_tick = now - Math.floorMod(now, tick_duration);
+		if (size == 0 && now_tick > current_time) {
+			current_time = now_tick;
+		}
+		return due_count;
+	}
+	
+	/**
+	 * @return pending items count, including the items with an outdated deadline not yet returned by advance.
+	 */
+	int size() {
+		return size;
+	}
+	
+	/**
+	 * Put it in the lower level that can hold its deadline.
+	 */
+	private void insert(Entry<T> entry) {
+		for (int pos = 0;; pos++) {
+			if (pos == levels.size()) {
+				levels.add(new Level(levels.get(pos - 1).tick * wheel_size));
+			}
+			Level level = levels.get(pos);
+			long level_start = current_time - Math.floorMod(current_time, level.tick);
+			if (entry.deadline < level_start + level.tick * wheel_size) {
+				level.add(entry);
+				return;
+			}
+		}
+	}
+	
+	private class Level {
+		private final long tick;
+		private final ArrayList<?>[] slots;
+		
+		Level(long tick) {
+			this.tick = tick;
+			slots = new ArrayList<?>[wheel_size];
+		}
+		
+		private int slotIndex(long date) {
+			return (int) Math.floorMod(Math.floorDiv(date, tick), (long) wheel_size);
+		}
+		
+		@SuppressWarnings("unchecked")
+		void add(Entry<T> entry) {
+			int index = slotIndex(entry.deadline);
+			ArrayList<Entry<T>> slot = (ArrayList<Entry<T>>) slots[index];
+			if (slot == null) {
+				slot = new ArrayList<>();
+				slots[index] = slot;
+			}
+			slot.add(entry);
+		}
+		
+		/**
+		 * @return the removed slot content, or null
+		 */
+		@SuppressWarnings("unchecked")
+		ArrayList<Entry<T>> pollSlot(long date) {
+			int index = slotIndex(date);
+			ArrayList<Entry<T>> slot = (ArrayList<Entry<T>>) slots[index];
+			slots[index] = null;
+			return slot;
+		}
+	}
+	
+	private static class Entry<T> {
+		private final T item;
+		private final long deadline;
+		
+		Entry(T item, long deadline) {
+			this.item = item;
+			this.deadline = deadline;
+		}
+	}
+	
+}
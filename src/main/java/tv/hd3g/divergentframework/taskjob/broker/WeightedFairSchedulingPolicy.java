@@ -0,0 +1,137 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Weighted fair queueing between scheduling classes (start-time fair queueing):
+ * under a saturated queue, each class gets a share of the selected jobs proportional to its weight,
+ * so a flood in one class can't starve the others. An idle class don't save credit for later.
+ */
+public class WeightedFairSchedulingPolicy implements SchedulingPolicy {
+	
+	private final Function<Job, String> classifier;
+	private final Map<String, Integer> weights;
+	private final int default_weight;
+	
+	private final HashMap<String, Double> virtual_finish_by_class;
+	private double virtual_clock;
+	
+	/**
+	 * @param classifier job -> scheduling class, never null
+	 * @param weights scheduling class -> weight, must be > 0
+	 * @param default_weight for the classes not in weights
+	 */
+	public WeightedFairSchedulingPolicy(Function<Job, String> classifier, Map<String, Integer> weights, int default_weight) {
+		this.classifier = classifier;
+		if (classifier == null) {
+			throw new NullPointerException("\"classifier\" can't to be null");
+		}
+		this.weights = new HashMap<>(weights);
+		if (this.weights.values().stream().anyMatch(w -> w < 1)) {
+			throw new IndexOutOfBoundsException("Invalid weights: " + weights);
+		}
+		this.default_weight = default_weight;
+		if (default_weight < 1) {
+			throw new IndexOutOfBoundsException("\"default_weight\" must be > 0");
+		}
+		virtual_finish_by_class = new HashMap<>();
+		virtual_clock = 0;
+	}
+	
+	/**
+	 * One class by context type.
+	 */
+	public static WeightedFairSchedulingPolicy byContextType(Map<String, Integer> weights) {
+		return new WeightedFairSchedulingPolicy(Job::getContextType, weights, 1);
+	}
+	
+	/**
+	 * One class by external reference prefix, like "customer" for "customer:ref". Jobs without external reference are in the "" class.
+	 * @param separator the prefix ends before the first separator. If absent, all the external reference is the prefix.
+	 */
+	public static WeightedFairSchedulingPolicy byExternalReferencePrefix(String separator, Map<String, Integer> weights) {
+		if (separator == null || separator.isEmpty()) {
+			throw new NullPointerException("\"separator\" can't to be empty");
+		}
+		return new WeightedFairSchedulingPolicy(job -> {
+			String external_reference = job.getExternalReference();
+			if (external_reference == null) {
+				return "";
+			}
+			int pos = external_reference.indexOf(separator);
+			if (pos == -1) {
+				return external_reference;
+			}
+			return external_reference.substring(0, pos);
+		}, weights, 1);
+	}
+	
+	public String getSchedulingClass(Job job) {
+		String scheduling_class = classifier.apply(job);
+		if (scheduling_class == null) {
+			return "";
+		}
+		return scheduling_class;
+	}
+	
+	private double getVirtualStart(String scheduling_class) {
+		return Math.max(virtual_finish_by_class.getOrDefault(scheduling_class, 0d), virtual_clock);
+	}
+	
+	public synchronized String selectClass(Collection<String> candidate_classes) {
+		String selected = null;
+		double selected_start = Double.MAX_VALUE;
+		for (String scheduling_class : candidate_classes) {
+			double start = getVirtualStart(scheduling_class);
+			if (start < selected_start) {
+				selected = scheduling_class;
+				selected_start = start;
+			}
+		}
+		return selected;
+	}
+	
+	public synchronized void onSelected(String scheduling_class) {
+		double start = getVirtualStart(scheduling_class);
+		virtual_clock = start;
+		virtual_finish_by_class.put(scheduling_class, start + 1d / weights.getOrDefault(scheduling_class, default_weight));
+	}
+	
+	/**
+	 * Forget the class, so the map don't grow with all the classes seen: an idle class don't save credit for later.
+	 */
+	public synchronized void onEmptyClass(String scheduling_class) {
+		virtual_finish_by_class.remove(scheduling_class);
+	}
+	
+	/**
+	 * @return the scheduling classes actually tracked
+	 */
+	synchronized int getTrackedClassCount() {
+		return virtual_finish_by_class.size();
+	}
+	
+	public String toString() {
+		return "WeightedFair " + weights + ", default " + default_weight;
+	}
+	
+}
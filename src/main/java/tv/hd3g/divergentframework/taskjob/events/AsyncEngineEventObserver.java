@@ -0,0 +1,86 @@
+/*
+ * This file is part of DivergentFameworkTaskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.events;
+
+import java.io.Closeable;
+
+import tv.hd3g.divergentframework.taskjob.worker.Engine;
+import tv.hd3g.divergentframework.taskjob.worker.WorkerThread;
+
+/**
+ * Call an observer from a dedicated thread, via a bounded queue: the queue and the engines never wait it (except with OverflowPolicy.BLOCK).
+ */
+public class AsyncEngineEventObserver implements EngineEventObserver, Closeable {
+	
+	private final EngineEventObserver observer;
+	private final AsyncEventQueue queue;
+	
+	public AsyncEngineEventObserver(EngineEventObserver observer, int queue_capacity, OverflowPolicy overflow_policy) {
+		this.observer = observer;
+		if (observer == null) {
+			throw new NullPointerException("\"observer\" can't to be null");
+		}
+		queue = new AsyncEventQueue(observer.toString(), queue_capacity, overflow_policy);
+	}
+	
+	public void onEngineChangeContextRequirementTags(Engine engine) {
+		queue.dispatch(engine, () -> observer.onEngineChangeContextRequirementTags(engine));
+	}
+	
+	public void onEngineStop(Engine engine) {
+		queue.dispatch(null, () -> observer.onEngineStop(engine));
+	}
+	
+	public void onEngineStartProcess(Engine engine, WorkerThread w_t) {
+		queue.dispatch(null, () -> observer.onEngineStartProcess(engine, w_t));
+	}
+	
+	public void onEngineEndsProcess(Engine engine, WorkerThread w_t) {
+		queue.dispatch(null, () -> observer.onEngineEndsProcess(engine, w_t));
+	}
+	
+	public void onRegisterEngine(Engine engine) {
+		queue.dispatch(null, () -> observer.onRegisterEngine(engine));
+	}
+	
+	public void onUnRegisterEngine(Engine engine) {
+		queue.dispatch(null, () -> observer.onUnRegisterEngine(engine));
+	}
+	
+	/**
+	 * @return dropped events count, by OverflowPolicy.DROP or after close.
+	 */
+	public long getDroppedCount() {
+		return queue.getDroppedCount();
+	}
+	
+	public int getPendingCount() {
+		return queue.getPendingCount();
+	}
+	
+	/**
+	 * Stop to accept new events, and wait the pending events execution.
+	 */
+	public void close() {
+		queue.close();
+	}
+	
+	public String toString() {
+		return "Async " + observer;
+	}
+	
+}
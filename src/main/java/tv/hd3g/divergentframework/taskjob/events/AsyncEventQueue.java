@@ -0,0 +1,200 @@
+/*
+ * This file is part of DivergentFameworkTaskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.events;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A bounded events queue, executed in order by a dedicated thread.
+ */
+final class AsyncEventQueue implements Closeable {
+	private static final Logger log = LogManager.getLogger();
+	
+	private static final PendingEvent CLOSE_MARKER = new PendingEvent(null, () -> {
+	});
+	
+	private final ArrayBlockingQueue<PendingEvent> queue;
+	private final OverflowPolicy overflow_policy;
+	private final ConcurrentHashMap<Object, PendingEvent> pending_by_key;
+	private final AtomicLong dropped_count;
+	private final CountDownLatch closed;
+	private volatile boolean closing;
+	
+	AsyncEventQueue(String name, int capacity, OverflowPolicy overflow_policy) {
+		if (capacity < 1) {
+			throw new IndexOutOfBoundsException("\"capacity\" must be > 0");
+		}
+		this.overflow_policy = overflow_policy;
+		if (overflow_policy == null) {
+			throw new NullPointerException("\"overflow_policy\" can't to be null");
+		}
+		queue = new ArrayBlockingQueue<>(capacity);
+		pending_by_key = new ConcurrentHashMap<>();
+		dropped_count = new AtomicLong(0);
+		closed = new CountDownLatch(1);
+		
+		Thread t = new Thread(this::consume);
+		t.setDaemon(true);
+		t.setName("AsyncObserver " + name);
+		t.start();
+	}
+	
+	/**
+	 * @param coalesce_key only used with OverflowPolicy.COALESCE, can be null for never coalesce this event.
+	 */
+	void dispatch(Object coalesce_key, Runnable event) {
+		if (closing) {
+			dropped_count.incrementAndGet();
+			return;
+		}
+		
+		if (overflow_policy == OverflowPolicy.COALESCE && coalesce_key != null) {
+			PendingEvent[] to_put = new PendingEvent[1];
+			pending_by_key.compute(coalesce_key, (key, last_pending) -> {
+				PendingEvent pending = new PendingEvent(key, event);
+				if (queue.offer(pending)) {
+					return pending;
+				} else if (last_pending != null) {
+					/**
+					 * Full queue: replace the last waiting event for this key.
+					 */
+					last_pending.event = event;
+					return last_pending;
+				}
+				to_put[0] = pending;
+				return pending;
+			});
+			if (to_put[0] != null) {
+				put(to_put[0]);
+			}
+			return;
+		}
+		
+		PendingEvent pending = new PendingEvent(null, event);
+		if (overflow_policy == OverflowPolicy.DROP) {
+			if (queue.offer(pending) == false) {
+				dropped_count.incrementAndGet();
+			}
+		} else {
+			put(pending);
+		}
+	}
+	
+	private void put(PendingEvent pending) {
+		try {
+			queue.put(pending);
+		} catch (InterruptedException e) {
+			dropped_count.incrementAndGet();
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void consume() {
+		try {
+			while (true) {
+				PendingEvent pending = queue.take();
+				if (pending == CLOSE_MARKER) {
+					return;
+				}
+				
+				Runnable event;
+				if (pending.coalesce_key == null) {
+					event = pending.event;
+				} else {
+					/**
+					 * Atomically get the last coalesced event, and forget this pending event if it's still the last for its key.
+					 */
+					Runnable[] last = new Runnable[1];
+					pending_by_key.compute(pending.coalesce_key, (key, current) -> {
+						last[0] = pending.event;
+						if (current == pending) {
+							return null;
+						}
+						return current;
+					});
+					event = last[0];
+				}
+				if (event == null) {
+					continue;
+				}
+				
+				try {
+					event.run();
+				} catch (Exception e) {
+					log.error("Observer event error", e);
+				}
+			}
+		} catch (InterruptedException e) {
+			log.warn("Observer events thread is interrupted", e);
+		} finally {
+			closed.countDown();
+		}
+	}
+	
+	/**
+	 * @return dropped events count, by OverflowPolicy.DROP or after close.
+	 */
+	long getDroppedCount() {
+		return dropped_count.get();
+	}
+	
+	/**
+	 * @return waiting events count, coalesced events counted as one.
+	 */
+	int getPendingCount() {
+		return queue.size();
+	}
+	
+	/**
+	 * Stop to accept new events, and wait the pending events execution.
+	 */
+	void close(long timeout, TimeUnit unit) throws InterruptedException {
+		closing = true;
+		queue.put(CLOSE_MARKER);
+		closed.await(timeout, unit);
+	}
+	
+	/**
+	 * Stop to accept new events, and wait the pending events execution.
+	 */
+	public void close() {
+		try {
+			close(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Can't wait the pending events", e);
+		}
+	}
+	
+	private static class PendingEvent {
+		private final Object coalesce_key;
+		private volatile Runnable event;
+		
+		PendingEvent(Object coalesce_key, Runnable event) {
+			this.coalesce_key = coalesce_key;
+			this.event = event;
+		}
+	}
+	
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of DivergentFameworkTaskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.events;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.UUID;
+
+import tv.hd3g.divergentframework.taskjob.broker.Job;
+
+/**
+ * Call an observer from a dedicated thread, via a bounded queue: the broker never waits it (except with OverflowPolicy.BLOCK).
+ * Jobs are not copied: the observer will read their actual state.
+ */
+public class AsyncJobEventObserver implements JobEventObserver, Closeable {
+	
+	private final JobEventObserver observer;
+	private final AsyncEventQueue queue;
+	
+	public AsyncJobEventObserver(JobEventObserver observer, int queue_capacity, OverflowPolicy overflow_policy) {
+		this.observer = observer;
+		if (observer == null) {
+			throw new NullPointerException("\"observer\" can't to be null");
+		}
+		queue = new AsyncEventQueue(observer.toString(), queue_capacity, overflow_policy);
+	}
+	
+	public void onJobUpdate(Job job, JobUpdateSubject cause) {
+		queue.dispatch(List.of(job.getKey(), cause), () -> observer.onJobUpdate(job, cause));
+	}
+	
+	public void onJobUpdateProgression(Job job) {
+		queue.dispatch(job.getKey(), () -> observer.onJobUpdateProgression(job));
+	}
+	
+	public void brokerOnAfterFlush(List<UUID> deleted_jobs_uuid) {
+		queue.dispatch(null, () -> observer.brokerOnAfterFlush(deleted_jobs_uuid));
+	}
+	
+	public void brokerOnCreateJob(Job job) {
+		queue.dispatch(null, () -> observer.brokerOnCreateJob(job));
+	}
+	
+	public void brokerOnCreateSubJob(Job reference, Job sub_job) {
+		queue.dispatch(null, () -> observer.brokerOnCreateSubJob(reference, sub_job));
+	}
+	
+	public void brokerOnCreateJobs(List<Job> jobs) {
+		queue.dispatch(null, () -> observer.brokerOnCreateJobs(jobs));
+	}
+	
+	public void brokerOnCreateSubJobs(Job reference, List<Job> sub_jobs) {
+		queue.dispatch(null, () -> observer.brokerOnCreateSubJobs(reference, sub_jobs));
+	}
+	
+	/**
+	 * @return dropped events count, by OverflowPolicy.DROP or after close.
+	 */
+	public long getDroppedCount() {
+		return queue.getDroppedCount();
+	}
+	
+	public int getPendingCount() {
+		return queue.getPendingCount();
+	}
+	
+	/**
+	 * Stop to accept new events, and wait the pending events execution.
+	 */
+	public void close() {
+		queue.close();
+	}
+	
+	public String toString() {
+		return "Async " + observer;
+	}
+	
+}
@@ -70,14 +70,13 @@ public class JobEventLogAppender extends AbstractAppender {
 	}
 	
 	public void append(LogEvent event) {
-		Thread t = Thread.currentThread();
-		if (t instanceof WorkerThread == false) {
+		WorkerThread monitored_thread = WorkerThread.currentWorkerThread();
+		if (monitored_thread == null) {
 			/**
 			 * Ignore not WorkerThread logger source -> not a working job here
 			 */
 			return;
 		}
-		WorkerThread monitored_thread = (WorkerThread) t;
 		
 		if (WorkerThread.class.getName().equals(event.getLoggerName())) {
 			/**
@@ -45,4 +45,18 @@ public interface JobEventObserver {
 	default void brokerOnCreateSubJob(Job reference, Job sub_job) {
 	}
 	
+	/**
+	 * Triggered by a batch creation. By default, calls brokerOnCreateJob for each job.
+	 */
+	default void brokerOnCreateJobs(List<Job> jobs) {
+		jobs.forEach(this::brokerOnCreateJob);
+	}
+	
+	/**
+	 * Triggered by a batch creation. By default, calls brokerOnCreateSubJob for each sub job.
+	 */
+	default void brokerOnCreateSubJobs(Job reference, List<Job> sub_jobs) {
+		sub_jobs.forEach(sub_job -> brokerOnCreateSubJob(reference, sub_job));
+	}
+	
 }
@@ -0,0 +1,40 @@
+/*
+ * This file is part of DivergentFameworkTaskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.events;
+
+/**
+ * What an asynchronous observer do with a new event when its queue is full.
+ */
+public enum OverflowPolicy {
+	
+	/**
+	 * Ignore the new event, and count it.
+	 */
+	DROP,
+	
+	/**
+	 * When the queue is full, replace the last pending event by job and update type (like progressions): the observer will read the job actual state.
+	 * Until it's full, all events are queued. Wait like BLOCK if there is no pending event to replace.
+	 */
+	COALESCE,
+	
+	/**
+	 * The event sender waits a free place: a slow observer will slow down the broker or the queue.
+	 */
+	BLOCK;
+	
+}
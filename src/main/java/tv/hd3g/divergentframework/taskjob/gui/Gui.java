@@ -55,6 +55,7 @@ public class Gui extends Application {
 		JobEventLogAppender job_event_appender = JobEventLogAppender.declareAppender();
 		
 		task_job = new InMemoryLocalTaskJob(1000, 20, 20, 20, TimeUnit.SECONDS);// TODO3 externalize this
+		task_job.setProgressionPublishInterval(100, TimeUnit.MILLISECONDS);
 		controller.startApp(primary_stage, root, task_job, () -> {
 			try {
 				task_job.prepareToStop(r -> r.run()).get();
@@ -0,0 +1,91 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import tv.hd3g.divergentframework.taskjob.broker.TagSet;
+import tv.hd3g.divergentframework.taskjob.worker.Engine;
+
+/**
+ * Immutable engines index by context_type, with the engines context requirement tags.
+ * Rebuild it on each engine (un)registration or tags change.
+ */
+final class EngineRoutingTable {
+	
+	static final EngineRoutingTable EMPTY = new EngineRoutingTable(Collections.emptyList());
+	
+	private final List<Engine> engines;
+	private final Map<String, Route[]> routes_by_context_type;
+	
+	static final class Route {
+		final Engine engine;
+		final TagSet tags;
+		
+		private Route(Engine engine, TagSet tags) {
+			this.engine = engine;
+			this.tags = tags;
+		}
+		
+		boolean hasTags(TagSet required_tags) {
+			return tags.containsAll(required_tags);
+		}
+		
+		boolean hasFreeWorkers() {
+			return engine.actualFreeWorkers() > 0;
+		}
+	}
+	
+	EngineRoutingTable(Collection<Engine> engines) {
+		this.engines = Collections.unmodifiableList(new ArrayList<>(engines));
+		
+		LinkedHashMap<String, List<Route>> routes = new LinkedHashMap<>();
+		this.engines.forEach(engine -> {
+			Route route = new Route(engine, engine.getContextRequirementTagSet());
+			engine.getAllHandledContextTypes().stream().distinct().forEach(context_type -> {
+				routes.computeIfAbsent(context_type, c_t -> new ArrayList<>()).add(route);
+			});
+		});
+		
+		routes_by_context_type = new LinkedHashMap<>(routes.size());
+		routes.forEach((context_type, context_routes) -> {
+			routes_by_context_type.put(context_type, context_routes.toArray(new Route[context_routes.size()]));
+		});
+	}
+	
+	List<Engine> getEngines() {
+		return engines;
+	}
+	
+	Set<String> getContextTypes() {
+		return Collections.unmodifiableSet(routes_by_context_type.keySet());
+	}
+	
+	/**
+	 * @return never null, in engine registration order
+	 */
+	Route[] getRoutes(String context_type) {
+		return routes_by_context_type.getOrDefault(context_type, new Route[0]);
+	}
+	
+}
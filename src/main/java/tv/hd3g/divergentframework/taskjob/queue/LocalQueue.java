@@ -17,23 +17,32 @@
 package tv.hd3g.divergentframework.taskjob.queue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Predicate;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import tv.hd3g.divergentframework.taskjob.broker.Broker;
+import tv.hd3g.divergentframework.taskjob.broker.ContextTagsFilter;
+import tv.hd3g.divergentframework.taskjob.broker.TagSet;
+import tv.hd3g.divergentframework.taskjob.events.AsyncEngineEventObserver;
 import tv.hd3g.divergentframework.taskjob.events.EngineEventObserver;
+import tv.hd3g.divergentframework.taskjob.events.OverflowPolicy;
 import tv.hd3g.divergentframework.taskjob.worker.Engine;
 import tv.hd3g.divergentframework.taskjob.worker.WorkerThread;
 
@@ -46,16 +55,24 @@ public class LocalQueue implements Queue {
 	private final Broker broker;
 	
 	private final List<Engine> engines;
+	private volatile EngineRoutingTable routing_table;
 	private volatile boolean pending_stop;
 	
 	private final ThreadPoolExecutor maintenance_pool;
+	private final AtomicBoolean dispatch_pending;
+	private final AtomicLong dispatch_requested;
+	private final AtomicLong dispatch_executed;
+	/**
+	 * Processes started by this queue, until the dispatch pass after their end is requested.
+	 */
+	private final AtomicInteger started_processes;
 	
-	private final ArrayList<EngineEventObserver> engine_observer_list;
+	private final CopyOnWriteArrayList<EngineEventObserver> engine_observer_list;
 	
 	private final InternalDispatcherEngineEventObserver engine_observer;
 	
 	public LocalQueue(Broker broker) {
-		engine_observer_list = new ArrayList<>();
+		engine_observer_list = new CopyOnWriteArrayList<>();
 		engine_observer = new InternalDispatcherEngineEventObserver();
 		
 		this.broker = broker;
@@ -70,52 +87,58 @@ public class LocalQueue implements Queue {
 			return t;
 		});
 		
+		dispatch_pending = new AtomicBoolean(false);
+		dispatch_requested = new AtomicLong(0);
+		dispatch_executed = new AtomicLong(0);
+		started_processes = new AtomicInteger(0);
+		
 		engines = new ArrayList<>();
+		routing_table = EngineRoutingTable.EMPTY;
 		pending_stop = false;
 		
 		broker.registerCallbackOnNewLocalJobsActivity(() -> {
-			if (isPendingStop()) {
-				return;
-			}
-			
 			log.trace("Callback queue for some new action");
-			searchAndStartNewActions();
+			requestSearchAndStartNewActions();
 		});
 	}
 	
+	/**
+	 * Observers are called in the engine or the queue thread: use AsyncEngineEventObserver for the slow ones.
+	 */
 	private class InternalDispatcherEngineEventObserver implements EngineEventObserver {
 		public void onEngineChangeContextRequirementTags(Engine engine) {
-			engine_observer_list.parallelStream().forEach(o -> {
+			updateRoutingTable();
+			engine_observer_list.forEach(o -> {
 				o.onEngineChangeContextRequirementTags(engine);
 			});
 		}
 		
 		public void onEngineEndsProcess(Engine engine, WorkerThread w_t) {
-			engine_observer_list.parallelStream().forEach(o -> {
+			engine_observer_list.forEach(o -> {
 				o.onEngineEndsProcess(engine, w_t);
 			});
 		}
 		
 		public void onEngineStartProcess(Engine engine, WorkerThread w_t) {
-			engine_observer_list.parallelStream().forEach(o -> {
+			engine_observer_list.forEach(o -> {
 				o.onEngineStartProcess(engine, w_t);
 			});
 		}
 		
 		public void onEngineStop(Engine engine) {
-			engine_observer_list.parallelStream().forEach(o -> {
+			engine_observer_list.forEach(o -> {
 				o.onEngineStop(engine);
 			});
 		}
 		
 		public void onRegisterEngine(Engine engine) {
-			engine_observer_list.parallelStream().forEach(o -> {
+			engine_observer_list.forEach(o -> {
 				o.onRegisterEngine(engine);
 			});
 		}
 		
 		public void onUnRegisterEngine(Engine engine) {
-			engine_observer_list.parallelStream().forEach(o -> {
+			engine_observer_list.forEach(o -> {
 				o.onUnRegisterEngine(engine);
 			});
 		}
@@ -133,12 +156,27 @@ public class LocalQueue implements Queue {
 		return this;
 	}
 	
+	/**
+	 * The observer will be called by a dedicated thread, and never in the queue or engines operations.
+	 * @param queue_capacity max pending events
+	 * @return this
+	 */
+	public LocalQueue addEngineObserver(EngineEventObserver engine_observer, int queue_capacity, OverflowPolicy overflow_policy) {
+		return addEngineObserver(new AsyncEngineEventObserver(engine_observer, queue_capacity, overflow_policy));
+	}
+	
 	public List<Engine> getEnginesByContextType(String context_name) {
-		return engines.stream().filter(engine -> {
-			return engine.getAllHandledContextTypes().contains(context_name);
+		return Arrays.stream(routing_table.getRoutes(context_name)).map(route -> {
+			return route.engine;
 		}).collect(Collectors.toList());
 	}
 	
+	private void updateRoutingTable() {
+		synchronized (engines) {
+			routing_table = new EngineRoutingTable(engines);
+		}
+	}
+	
 	/**
 	 * Engines can set anytime the same context_type.
 	 */
@@ -152,6 +190,7 @@ public class LocalQueue implements Queue {
 				return;
 			}
 			engines.add(engine);
+			updateRoutingTable();
 			
 			if (engine_observer != null) {
 				engine_observer.onRegisterEngine(engine);
@@ -166,6 +205,7 @@ public class LocalQueue implements Queue {
 	public void unRegisterEngine(Engine engine) {
 		synchronized (engines) {
 			engines.remove(engine);
+			updateRoutingTable();
 			
 			if (engine_observer != null) {
 				engine_observer.onUnRegisterEngine(engine);
@@ -177,13 +217,27 @@ public class LocalQueue implements Queue {
 		return pending_stop;
 	}
 	
+	/**
+	 * Also true between the end of a process and the start of the next dispatch pass.
+	 */
 	public boolean isRunning() {
-		return maintenance_pool.getActiveCount() > 0 | engines.stream().anyMatch(engine -> {
+		return started_processes.get() > 0 || dispatch_pending.get() || maintenance_pool.getActiveCount() > 0 || engines.stream().anyMatch(engine -> {
 			return engine.isRunning();
 		});
 	}
 	
 	public CompletableFuture<Void> prepareToStop(Executor executor) {
+		return stopEngines(engine -> engine.stopCurrentAll(executor));
+	}
+	
+	/**
+	 * Like prepareToStop(executor), but interrupt the jobs still running after the timeout.
+	 */
+	public CompletableFuture<Void> prepareToStop(Executor executor, long timeout, TimeUnit unit) {
+		return stopEngines(engine -> engine.stopCurrentAll(executor, timeout, unit));
+	}
+	
+	private CompletableFuture<Void> stopEngines(Function<Engine, CompletableFuture<Void>> stopCurrentAll) {
 		pending_stop = true;
 		
 		synchronized (engines) {
@@ -191,9 +245,7 @@ public class LocalQueue implements Queue {
 				engine.stopCurrentAll();
 			});
 			
-			List<CompletableFuture<Void>> cf = engines.stream().map(engine -> {
-				return engine.stopCurrentAll(executor);
-			}).collect(Collectors.toList());
+			List<CompletableFuture<Void>> cf = engines.stream().map(stopCurrentAll).collect(Collectors.toList());
 			
 			return CompletableFuture.allOf(cf.toArray(new CompletableFuture[cf.size()]));
 		}
@@ -207,39 +259,84 @@ public class LocalQueue implements Queue {
 			return Collections.emptyList();
 		}
 		
-		return engines.stream().filter(engine -> {
-			if (only_with_free_workers) {
-				return engine.actualFreeWorkers() > 0;
-			} else {
-				return true;
-			}
-		}).flatMap(engine -> {
-			return engine.getAllHandledContextTypes().stream();
-		}).distinct().collect(Collectors.toList());
+		EngineRoutingTable routing_table = this.routing_table;
+		if (only_with_free_workers == false) {
+			return new ArrayList<>(routing_table.getContextTypes());
+		}
+		
+		return routing_table.getContextTypes().stream().filter(context_type -> {
+			return Arrays.stream(routing_table.getRoutes(context_type)).anyMatch(EngineRoutingTable.Route::hasFreeWorkers);
+		}).collect(Collectors.toList());
+	}
+	
+	/**
+	 * Coalesced and asynchronous searchAndStartNewActions: only one pass can be queued at a time,
+	 * and it will see all the activity arrived before it starts.
+	 */
+	public void requestSearchAndStartNewActions() {
+		if (isPendingStop()) {
+			return;
+		}
+		dispatch_requested.incrementAndGet();
+		
+		if (dispatch_pending.compareAndSet(false, true) == false) {
+			return;
+		}
+		log.trace("Queue a searchAndStartNewActions");
+		maintenance_pool.execute(() -> {
+			/**
+			 * Any request from now needs a new pass.
+			 */
+			dispatch_pending.set(false);
+			dispatch_executed.incrementAndGet();
+			searchAndStartNewActions();
+		});
 	}
 	
-	private static final Predicate<Engine> engineHasFreeWorkers = engine -> engine.actualFreeWorkers() > 0;
+	/**
+	 * @return requestSearchAndStartNewActions calls count
+	 */
+	public long getRequestedDispatchCount() {
+		return dispatch_requested.get();
+	}
 	
-	public void searchAndStartNewActions() {
+	/**
+	 * @return real searchAndStartNewActions passes count, started by requestSearchAndStartNewActions
+	 */
+	public long getExecutedDispatchCount() {
+		return dispatch_executed.get();
+	}
+	
+	/**
+	 * Only one pass at a time: a concurrent pass (like from registerEngine and from the maintenance pool) could try to start the same job twice.
+	 */
+	public synchronized void searchAndStartNewActions() {
 		if (isPendingStop()) {
 			return;
 		}
 		
+		EngineRoutingTable routing_table = this.routing_table;
+		
+		/**
+		 * A ContextTagsFilter can be checked by a remote broker server, before it claims the jobs.
+		 */
+		ContextTagsFilter tags_filter = new ContextTagsFilter();
+		routing_table.getContextTypes().forEach(context_type -> {
+			Arrays.stream(routing_table.getRoutes(context_type)).filter(EngineRoutingTable.Route::hasFreeWorkers).forEach(route -> {
+				tags_filter.add(context_type, route.tags);
+			});
+		});
+		
 		broker.getNextJobs(getActualEnginesContextTypes(true), () -> {
-			return engines.stream().mapToInt(engine -> {
+			return routing_table.getEngines().stream().mapToInt(engine -> {
 				return engine.actualFreeWorkers();
 			}).sum();
-		}, (context_type, context_r_tags) -> {
-			return engines.stream().filter(engine -> {
-				return engine.getAllHandledContextTypes().contains(context_type);
-			}).filter(engineHasFreeWorkers).allMatch(engine -> {
-				return engine.getContextRequirementTags().containsAll(context_r_tags);
-			});
-		}, selected_action -> {
-			Optional<Engine> o_engine_potentially_free = engines.stream().filter(engine -> {
-				return engine.getAllHandledContextTypes().contains(selected_action.getContextType());
-			}).filter(engineHasFreeWorkers).filter(engine -> {
-				return engine.getContextRequirementTags().containsAll(selected_action.getContextRequirementTags());
+		}, tags_filter, selected_action -> {
+			TagSet required_tags = selected_action.getContextRequirementTagSet();
+			Optional<Engine> o_engine_potentially_free = Arrays.stream(routing_table.getRoutes(selected_action.getContextType())).filter(route -> {
+				return route.hasFreeWorkers() && route.hasTags(required_tags);
+			}).map(route -> {
+				return route.engine;
 			}).findFirst();
 			
 			if (o_engine_potentially_free.isPresent() == false) {
@@ -249,19 +346,22 @@ public class LocalQueue implements Queue {
 				return false;
 			}
 			
-			return o_engine_potentially_free.get().addProcess(selected_action, broker, () -> {
-				/**
-				 * onAfterProcess
-				 */
-				if (isPendingStop()) {
-					return;
-				}
-				
-				log.trace("Queue a searchAndStartNewActions");
-				maintenance_pool.execute(() -> {
-					searchAndStartNewActions();
+			started_processes.incrementAndGet();
+			boolean started = false;
+			try {
+				started = o_engine_potentially_free.get().addProcess(selected_action, broker, () -> {
+					/**
+					 * onAfterProcess
+					 */
+					requestSearchAndStartNewActions();
+					started_processes.decrementAndGet();
 				});
-			});
+			} finally {
+				if (started == false) {
+					started_processes.decrementAndGet();
+				}
+			}
+			return started;
 		});
 	}
 	
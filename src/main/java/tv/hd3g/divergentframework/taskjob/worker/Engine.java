@@ -16,12 +16,13 @@
 */
 package tv.hd3g.divergentframework.taskjob.worker;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
@@ -32,6 +33,7 @@ import org.apache.logging.log4j.Logger;
 
 import tv.hd3g.divergentframework.taskjob.broker.Broker;
 import tv.hd3g.divergentframework.taskjob.broker.Job;
+import tv.hd3g.divergentframework.taskjob.broker.TagSet;
 import tv.hd3g.divergentframework.taskjob.broker.TaskStatus;
 import tv.hd3g.divergentframework.taskjob.events.EngineEventObserver;
 
@@ -46,15 +48,43 @@ public final class Engine {
 	private final String base_thread_name;
 	private final List<String> all_handled_context_types;
 	private final Function<String, Worker> createWorkerByContextType;
-	private final ArrayList<String> context_requirement_tags;
+	private volatile TagSet context_requirement_tags;
 	private final int max_worker_count;
+	private final ExecutionMode execution_mode;
+	private final Executor worker_pool;
 	
 	private EngineEventObserver observer;
 	
+	public enum ExecutionMode {
+		/**
+		 * Start a new Thread for each job.
+		 */
+		THREAD_BY_JOB,
+		/**
+		 * Run jobs on max_worker_count reusable threads, for short jobs.
+		 */
+		POOLED_THREADS,
+		/**
+		 * Start a new virtual thread for each job, for a lot of I/O bound jobs. Needs a Java 21+ runtime.
+		 */
+		VIRTUAL_THREADS;
+		
+		public static boolean isVirtualThreadsSupported() {
+			return Runtime.version().feature() >= 21;
+		}
+	}
+	
 	/**
 	 * @param createWorkerByContextType context_type -> Worker ; Worker: ctx_type -> return (job, broker, shouldStopProcessing)
 	 */
 	public Engine(int max_worker_count, String base_thread_name, List<String> all_handled_context_types, Function<String, Worker> createWorkerByContextType) {
+		this(max_worker_count, base_thread_name, all_handled_context_types, createWorkerByContextType, ExecutionMode.THREAD_BY_JOB);
+	}
+	
+	/**
+	 * @param createWorkerByContextType context_type -> Worker ; Worker: ctx_type -> return (job, broker, shouldStopProcessing)
+	 */
+	public Engine(int max_worker_count, String base_thread_name, List<String> all_handled_context_types, Function<String, Worker> createWorkerByContextType, ExecutionMode execution_mode) {
 		key = UUID.randomUUID();
 		runnables = new LinkedBlockingQueue<>(max_worker_count);
 		if (max_worker_count == 0) {
@@ -75,7 +105,47 @@ public final class Engine {
 		if (createWorkerByContextType == null) {
 			throw new NullPointerException("\"createWorkerByContextType\" can't to be null");
 		}
-		context_requirement_tags = new ArrayList<>();
+		context_requirement_tags = TagSet.EMPTY;
+		
+		this.execution_mode = execution_mode;
+		if (execution_mode == null) {
+			throw new NullPointerException("\"execution_mode\" can't to be null");
+		}
+		
+		if (execution_mode == ExecutionMode.POOLED_THREADS) {
+			AtomicInteger pool_thread_count = new AtomicInteger(0);
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(max_worker_count, max_worker_count, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), r -> {
+				Thread t = new Thread(r);
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				t.setName(base_thread_name + "_pool_" + pool_thread_count.getAndIncrement());
+				return t;
+			});
+			pool.allowCoreThreadTimeOut(true);
+			worker_pool = pool;
+		} else if (execution_mode == ExecutionMode.VIRTUAL_THREADS) {
+			worker_pool = createVirtualThreadPerTaskExecutor();
+		} else {
+			worker_pool = null;
+		}
+	}
+	
+	/**
+	 * By reflection, for still build with Java 11.
+	 */
+	private static Executor createVirtualThreadPerTaskExecutor() {
+		if (ExecutionMode.isVirtualThreadsSupported() == false) {
+			throw new UnsupportedOperationException("Virtual threads needs a Java 21+ runtime, actual is " + Runtime.version());
+		}
+		try {
+			return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Can't create virtual threads executor", e);
+		}
+	}
+	
+	public ExecutionMode getExecutionMode() {
+		return execution_mode;
 	}
 	
 	public synchronized void setObserver(EngineEventObserver observer) {
@@ -93,8 +163,7 @@ public final class Engine {
 		if (tags == null) {
 			throw new NullPointerException("\"tags\" can't to be null");
 		}
-		context_requirement_tags.clear();
-		context_requirement_tags.addAll(tags);
+		context_requirement_tags = TagSet.of(tags);
 		
 		if (observer != null) {
 			observer.onEngineChangeContextRequirementTags(this);
@@ -103,10 +172,17 @@ public final class Engine {
 		return this;
 	}
 	
+	/**
+	 * @return unmodifiable TagSet
+	 */
 	public List<String> getContextRequirementTags() {
 		return context_requirement_tags;
 	}
 	
+	public TagSet getContextRequirementTagSet() {
+		return context_requirement_tags;
+	}
+	
 	public List<String> getAllHandledContextTypes() {
 		return all_handled_context_types;
 	}
@@ -120,28 +196,37 @@ public final class Engine {
 		}
 		
 		runnables.stream().filter(t -> {
-			return t.isAlive();
+			return t.isProcessing();
 		}).forEach(t -> {
 			t.wantToStop();
 		});
 	}
 	
 	public CompletableFuture<Void> stopCurrentAll(Executor executor) {
+		return stopProcesses(t -> t.waitToStop(executor));
+	}
+	
+	/**
+	 * Interrupt the processes still running after the timeout.
+	 */
+	public CompletableFuture<Void> stopCurrentAll(Executor executor, long timeout, TimeUnit unit) {
+		return stopProcesses(t -> t.waitToStop(executor, timeout, unit));
+	}
+	
+	private CompletableFuture<Void> stopProcesses(Function<WorkerThread, CompletableFuture<Void>> waitToStop) {
 		if (observer != null) {
 			observer.onEngineStop(this);
 		}
 		
 		List<CompletableFuture<Void>> cf = runnables.stream().filter(t -> {
-			return t.isAlive();
-		}).map(t -> {
-			return t.waitToStop(executor);
-		}).collect(Collectors.toList());
+			return t.isProcessing();
+		}).map(waitToStop).collect(Collectors.toList());
 		
 		if (cf.isEmpty()) {
 			/**
 			 * Do nothing.
 			 */
-			return CompletableFuture.runAsync(() -> System.currentTimeMillis());
+			return CompletableFuture.completedFuture(null);
 		}
 		
 		return CompletableFuture.allOf(cf.toArray(new CompletableFuture[cf.size()]));
@@ -152,7 +237,7 @@ public final class Engine {
 	 */
 	public boolean isRunning() {
 		return runnables.stream().anyMatch(t -> {
-			return t.isAlive();
+			return t.isProcessing();
 		});
 	}
 	
@@ -167,20 +252,22 @@ public final class Engine {
 	private final AtomicInteger created_thread_count = new AtomicInteger(0);
 	
 	/**
-	 * @return true if it will start job, or false if it will be ignored
+	 * @param job just claimed by a getNextJobs: its switches are checked with its actual lease epoch.
+	 * @return true if it will start job, or false if it will be ignored, like if it was reclaimed since its claim
 	 */
 	public boolean addProcess(Job job, Broker broker, Runnable onAfterProcess) {
 		if (all_handled_context_types.contains(job.getContextType()) == false) {
 			throw new RuntimeException("Stupid queue: you don't check context_type before send this job to me. My all_handled_context_types: " + all_handled_context_types + ", job: " + job);
-		} else if (context_requirement_tags.containsAll(job.getContextRequirementTags()) == false) {
+		} else if (context_requirement_tags.containsAll(job.getContextRequirementTagSet()) == false) {
 			throw new RuntimeException("Stupid queue: you don't check context_requirement_tags before send this job to me. My context_requirement_tags: " + context_requirement_tags + ", job: " + job);
 		}
 		
-		WorkerThread w_t = new WorkerThread(base_thread_name + "_" + created_thread_count.getAndIncrement(), job, broker, createWorkerByContextType.apply(job.getContextType()));
+		long lease_epoch = job.getLeaseEpoch();
+		WorkerThread w_t = new WorkerThread(base_thread_name + "_" + created_thread_count.getAndIncrement(), job, lease_epoch, broker, createWorkerByContextType.apply(job.getContextType()));
 		try {
 			if (runnables.offer(w_t) == false) {
 				runnables.removeIf(t -> {
-					return t.isAlive() == false;
+					return t.isProcessing() == false;
 				});
 				
 				if (runnables.offer(w_t, 10, TimeUnit.MILLISECONDS) == false) {
@@ -191,7 +278,13 @@ public final class Engine {
 			throw new RuntimeException("Can't wait", e);
 		}
 		
-		broker.switchStatus(job, TaskStatus.PREPARING);
+		try {
+			broker.switchStatus(job, TaskStatus.PREPARING, lease_epoch);
+		} catch (IllegalStateException e) {
+			log.warn("Lease lost for " + job + " before its start", e);
+			runnables.remove(w_t);
+			return false;
+		}
 		
 		w_t.setAfterProcess(() -> {
 			if (observer != null) {
@@ -205,7 +298,11 @@ public final class Engine {
 		});
 		
 		log.trace("Start worker " + w_t);
-		w_t.start();
+		if (worker_pool != null) {
+			worker_pool.execute(w_t);
+		} else {
+			w_t.start();
+		}
 		
 		if (observer != null) {
 			observer.onEngineStartProcess(this, w_t);
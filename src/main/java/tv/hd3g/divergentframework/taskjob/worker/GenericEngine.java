@@ -31,6 +31,10 @@ public class GenericEngine<T> {
 	private final Class<T> context_class;
 	
 	public GenericEngine(int max_worker_count, String base_thread_name, Gson gson, Class<T> context_class, Supplier<GenericWorker<T>> createWorker) {
+		this(max_worker_count, base_thread_name, gson, context_class, createWorker, Engine.ExecutionMode.THREAD_BY_JOB);
+	}
+	
+	public GenericEngine(int max_worker_count, String base_thread_name, Gson gson, Class<T> context_class, Supplier<GenericWorker<T>> createWorker, Engine.ExecutionMode execution_mode) {
 		this.context_class = context_class;
 		if (context_class == null) {
 			throw new NullPointerException("\"context_class\" can't to be null");
@@ -41,7 +45,7 @@ public class GenericEngine<T> {
 				throw new RuntimeException("Can't manager this context: " + context_type);
 			}
 			return new InternalWorker(createWorker.get());
-		});
+		}, execution_mode);
 		this.gson = gson;
 		if (gson == null) {
 			throw new NullPointerException("\"gson\" can't to be null");
@@ -60,7 +64,7 @@ public class GenericEngine<T> {
 		}
 		
 		public void process(Job referer, Broker broker, Supplier<Boolean> shouldStopProcessing) throws Throwable {
-			engine.process(referer, gson.fromJson(referer.getContextContent(), context_class), broker, shouldStopProcessing);
+			engine.process(referer, referer.getContextContent(context_class, gson), broker, shouldStopProcessing);
 		}
 		
 		public Runnable onStopProcessing() {
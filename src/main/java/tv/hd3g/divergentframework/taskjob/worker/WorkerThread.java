@@ -18,6 +18,9 @@ package tv.hd3g.divergentframework.taskjob.worker;
 
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -27,19 +30,52 @@ import tv.hd3g.divergentframework.taskjob.broker.Job;
 import tv.hd3g.divergentframework.taskjob.broker.TaskStatus;
 
 /**
- * Execute a Worker in a Thread
+ * Execute a Worker in a Thread: in its own (THREAD_BY_JOB), or in an Engine pool thread (POOLED_THREADS) via run().
+ * With a broker lease duration, the job lease is renewed during the process, and the job status switches are refused if the job was reclaimed since.
+ * A worker that lost its lease is asked to stop, and a job reclaimed before its start is not processed.
  */
 public class WorkerThread extends Thread {
 	private static final Logger log = LogManager.getLogger();
 	
+	/**
+	 * The WorkerThread actually executed by a pool thread.
+	 */
+	private static final ThreadLocal<WorkerThread> current_pooled = new ThreadLocal<>();
+	
+	/**
+	 * Shared by all the workers: the renewals are only some non blocking broker calls.
+	 */
+	private static final ScheduledThreadPoolExecutor lease_renewer = new ScheduledThreadPoolExecutor(1, r -> {
+		Thread t = new Thread(r);
+		t.setDaemon(true);
+		t.setName("WorkerLeaseRenewer");
+		return t;
+	});
+	static {
+		lease_renewer.setRemoveOnCancelPolicy(true);
+	}
+	
 	private final Job job;
+	private final long lease_epoch;
 	private final Broker broker;
 	private final Worker worker;
 	private volatile boolean want_to_stop;
+	private volatile boolean processing;
+	private volatile boolean interrupted_by_stop;
+	private volatile Thread executing_thread;
+	private final Object executing_thread_lock;
+	private final CompletableFuture<Void> on_end;
 	
 	private Runnable afterProcess;
 	
 	WorkerThread(String name, Job job, Broker broker, Worker worker) {
+		this(name, job, job != null ? job.getLeaseEpoch() : 0, broker, worker);
+	}
+	
+	/**
+	 * @param lease_epoch the job getLeaseEpoch() when it was claimed
+	 */
+	WorkerThread(String name, Job job, long lease_epoch, Broker broker, Worker worker) {
 		setDaemon(true);
 		setPriority(Thread.MIN_PRIORITY);
 		setName(name);
@@ -48,6 +84,7 @@ public class WorkerThread extends Thread {
 		if (job == null) {
 			throw new NullPointerException("\"job\" can't to be null");
 		}
+		this.lease_epoch = lease_epoch;
 		this.broker = broker;
 		if (broker == null) {
 			throw new NullPointerException("\"broker\" can't to be null");
@@ -57,6 +94,20 @@ public class WorkerThread extends Thread {
 			throw new NullPointerException("\"worker\" can't to be null");
 		}
 		want_to_stop = false;
+		processing = true;
+		executing_thread_lock = new Object();
+		on_end = new CompletableFuture<>();
+	}
+	
+	/**
+	 * @return the WorkerThread executed by the current thread, even in a pool thread, or null.
+	 */
+	public static WorkerThread currentWorkerThread() {
+		Thread t = Thread.currentThread();
+		if (t instanceof WorkerThread) {
+			return (WorkerThread) t;
+		}
+		return current_pooled.get();
 	}
 	
 	/**
@@ -69,18 +120,76 @@ public class WorkerThread extends Thread {
 	}
 	
 	public void run() {
-		log.info("Start worker process, \"" + job.getContextType() + "\" by " + worker + " for " + job.getKey().toString().substring(0, 8));
-		
-		Runnable onStopProcessing = worker.onStopProcessing();
+		Thread current_thread = Thread.currentThread();
+		executing_thread = current_thread;
+		boolean pooled = current_thread != this;
+		String pool_thread_name = current_thread.getName();
+		if (pooled) {
+			current_pooled.set(this);
+			current_thread.setName(getName());
+		}
 		
-		broker.switchStatus(job, TaskStatus.PROCESSING);
+		try {
+			process();
+		} finally {
+			synchronized (executing_thread_lock) {
+				executing_thread = null;
+			}
+			if (pooled) {
+				current_pooled.remove();
+				current_thread.setName(pool_thread_name);
+				/**
+				 * Don't let a forced stop interrupt the next pool task.
+				 */
+				Thread.interrupted();
+			}
+			processing = false;
+			on_end.complete(null);
+		}
+	}
+	
+	private void process() {
+		log.info("Start worker process, \"" + job.getContextType() + "\" by " + worker + " for " + job.getKey().toString().substring(0, 8));
 		
+		ScheduledFuture<?> lease_renewal = null;
+		try {
+			Runnable onStopProcessing = worker.onStopProcessing();
+			
+			try {
+				broker.switchStatus(job, TaskStatus.PROCESSING, lease_epoch);
+			} catch (IllegalStateException e) {
+				/**
+				 * Reclaimed after a lease expiry since its claim: it's not for this worker any more.
+				 */
+				log.warn("Lease lost by worker " + worker + " before the process start, for " + job, e);
+				return;
+			} catch (RuntimeException e) {
+				log.error("Can't start the process of " + job, e);
+				return;
+			}
+			lease_renewal = startLeaseRenewal();
+			
+			runWorker(onStopProcessing);
+		} finally {
+			if (lease_renewal != null) {
+				lease_renewal.cancel(false);
+			}
+			if (afterProcess != null) {
+				afterProcess.run();
+			}
+		}
+	}
+	
+	/**
+	 * After the switch to PROCESSING: switch to the end status, even on errors.
+	 */
+	private void runWorker(Runnable onStopProcessing) {
 		try {
 			worker.process(job, broker, () -> want_to_stop);
 			
 			if (want_to_stop) {
 				if (onStopProcessing != null) {
-					broker.switchStatus(job, TaskStatus.STOPPING);
+					broker.switchStatus(job, TaskStatus.STOPPING, lease_epoch);
 					
 					try {
 						onStopProcessing.run();
@@ -88,18 +197,52 @@ public class WorkerThread extends Thread {
 						log.warn("Can't execute onStopProcessing in worker " + worker + " for " + job, e);
 					}
 				}
-				broker.switchStatus(job, TaskStatus.STOPPED);
+				broker.switchStatus(job, TaskStatus.STOPPED, lease_epoch);
 			} else {
-				broker.switchStatus(job, TaskStatus.DONE);
+				broker.switchStatus(job, TaskStatus.DONE, lease_epoch);
 			}
 		} catch (Throwable e) {
-			log.error("Process error", e);
-			broker.switchToError(job, e);
+			try {
+				if (interrupted_by_stop) {
+					log.warn("Process interrupted after a stop timeout", e);
+					broker.switchStatus(job, TaskStatus.STOPPED, lease_epoch);
+				} else {
+					log.error("Process error", e);
+					broker.switchToError(job, e, lease_epoch);
+				}
+			} catch (IllegalStateException e1) {
+				/**
+				 * Like a lost lease.
+				 */
+				log.error("Can't switch the status of " + job + " after the process end", e1);
+			}
 		}
-		
-		if (afterProcess != null) {
-			afterProcess.run();
+	}
+	
+	/**
+	 * Renew the lease three times by lease duration, until the process end.
+	 * @return null if the broker don't use leases
+	 */
+	private ScheduledFuture<?> startLeaseRenewal() {
+		long lease_duration = broker.getLeaseDuration();
+		if (lease_duration <= 0) {
+			return null;
 		}
+		long interval = Math.max(1, lease_duration / 3);
+		return lease_renewer.scheduleAtFixedRate(() -> {
+			try {
+				broker.renewLease(job, lease_epoch);
+			} catch (IllegalStateException e) {
+				log.warn("Lease lost by worker " + worker + ", stop it", e);
+				want_to_stop = true;
+				/**
+				 * Cancel the next renewals.
+				 */
+				throw e;
+			} catch (RuntimeException e) {
+				log.warn("Can't renew the lease of " + job, e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
 	}
 	
 	/**
@@ -109,21 +252,68 @@ public class WorkerThread extends Thread {
 		want_to_stop = true;
 	}
 	
+	/**
+	 * Non blocking and without active wait.
+	 * @return completed by the process end, after afterProcess, and executed by executor.
+	 */
 	public CompletableFuture<Void> waitToStop(Executor executor) {
 		want_to_stop = true;
-		
-		return CompletableFuture.runAsync(() -> {
-			log.debug("Wait worker " + worker + " ends...");
-			while (isAlive()) {
-				Thread.onSpinWait();
+		log.debug("Wait worker " + worker + " ends...");
+		return on_end.thenRunAsync(() -> {
+			/**
+			 * In THREAD_BY_JOB mode, this Thread is in its last instructions: let it really ends.
+			 * Else, this Thread was never started: join returns now.
+			 */
+			try {
+				join();
+			} catch (InterruptedException e) {
+				throw new RuntimeException("Can't wait worker " + worker + " ends", e);
 			}
 		}, executor);
 	}
 	
+	/**
+	 * Like waitToStop(executor), but interrupt the process if it don't stops before the timeout.
+	 */
+	public CompletableFuture<Void> waitToStop(Executor executor, long timeout, TimeUnit unit) {
+		CompletableFuture<Void> stopped = waitToStop(executor);
+		CompletableFuture.delayedExecutor(timeout, unit, executor).execute(() -> {
+			if (on_end.isDone() == false) {
+				log.warn("Worker " + worker + " don't stops after " + timeout + " " + unit.name().toLowerCase() + ", interrupt it");
+				interruptProcess();
+			}
+		});
+		return stopped;
+	}
+	
+	private void interruptProcess() {
+		synchronized (executing_thread_lock) {
+			if (executing_thread != null) {
+				interrupted_by_stop = true;
+				executing_thread.interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Use it instead of isAlive(): with pooled threads, this Thread is never started.
+	 * @return true until the end of the job process, after the afterProcess call.
+	 */
+	public boolean isProcessing() {
+		return processing;
+	}
+	
+	/**
+	 * @return this, a pool thread, or null if the process is not running.
+	 */
+	public Thread getExecutingThread() {
+		return executing_thread;
+	}
+	
 	public String toString() {
-		if (want_to_stop && isAlive()) {
+		if (want_to_stop && processing) {
 			return "Alive worker want to stop... " + getName() + ", " + worker.getClass().getSimpleName() + " for " + job.getContextType() + " [" + job.getKey() + "]";
-		} else if (isAlive()) {
+		} else if (processing) {
 			return "Alive worker " + getName() + ", " + worker.getClass().getSimpleName() + " for " + job.getContextType() + " [" + job.getKey() + "]";
 		} else {
 			return "Worker (idle) " + worker.getClass().getSimpleName() + " for " + job.getContextType() + " [" + job.getKey() + "]";
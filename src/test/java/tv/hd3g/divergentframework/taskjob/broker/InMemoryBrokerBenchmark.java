@@ -0,0 +1,133 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import junit.framework.TestCase;
+import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
+
+/**
+ * Not in the default test run (surefire includes only Test* and *Test classes): mvn test -Dtest=InMemoryBrokerBenchmark
+ */
+public class InMemoryBrokerBenchmark extends TestCase {
+	private static final Logger log = LogManager.getLogger();
+	
+	public void testProgressionThroughput() throws Exception {
+		int job_count = 4;
+		long duration = 500;
+		long interval = 50;
+		
+		for (long publish_interval : Arrays.asList(0l, interval)) {
+			InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+			broker.cancelCleanUpTask();
+			broker.setProgressionPublishInterval(publish_interval, TimeUnit.MILLISECONDS);
+			
+			Map<Job, AtomicInteger> published_count = new ConcurrentHashMap<>();
+			Map<Job, Integer> last_published = new ConcurrentHashMap<>();
+			broker.addJobObserver(new JobEventObserver() {
+				public void onJobUpdateProgression(Job job) {
+					published_count.computeIfAbsent(job, j -> new AtomicInteger()).incrementAndGet();
+					last_published.put(job, job.getActualProgressionValue());
+				}
+			});
+			
+			List<Job> jobs = IntStream.range(0, job_count).mapToObj(i -> {
+				return broker.createJob("D" + i, null, "context", null, null);
+			}).collect(Collectors.toList());
+			
+			Map<Job, Integer> update_count = new ConcurrentHashMap<>();
+			List<Thread> workers = jobs.stream().map(job -> {
+				return new Thread(() -> {
+					long end = System.currentTimeMillis() + duration;
+					int value = 0;
+					while (System.currentTimeMillis() < end) {
+						broker.updateProgression(job, ++value, Integer.MAX_VALUE);
+					}
+					update_count.put(job, value);
+				});
+			}).collect(Collectors.toList());
+			workers.forEach(Thread::start);
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			Thread.sleep(interval * 3);
+			
+			long updates_by_sec = update_count.values().stream().mapToLong(count -> count * 1000l / duration).sum() / job_count;
+			log.info("Progression updates by job, with a " + publish_interval + " ms publish interval: " + updates_by_sec + "/sec, published: " + published_count.values());
+			
+			jobs.forEach(job -> {
+				assertEquals(update_count.get(job).intValue(), job.getActualProgressionValue());
+				assertEquals(Integer.MAX_VALUE, job.getMaxProgressionValue());
+				assertEquals(update_count.get(job), last_published.get(job));
+				if (publish_interval == 0) {
+					assertEquals(update_count.get(job).intValue(), published_count.get(job).get());
+				} else {
+					assertTrue(published_count.get(job).get() <= (duration + interval * 3) / interval + 2);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Delay between the postponed jobs date and their switch to WAITING, for a big batch.
+	 */
+	public void testDelayedJobs() throws Exception {
+		int delayed_count = 50_000;
+		InMemoryBroker broker = new InMemoryBroker(delayed_count, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		
+		AtomicInteger callback_count = new AtomicInteger(0);
+		broker.registerCallbackOnNewLocalJobsActivity(() -> {
+			callback_count.getAndIncrement();
+		});
+		
+		long not_before = System.currentTimeMillis() + 2000;
+		List<Job> delayed = broker.createJobs(IntStream.range(0, delayed_count).mapToObj(i -> {
+			return new JobSpec("D" + i, "context", null).setNotBefore(not_before);
+		}).collect(Collectors.toList()));
+		
+		while (delayed.stream().allMatch(job -> TaskStatus.WAITING.equals(job.getStatus())) == false) {
+			Thread.sleep(10);
+		}
+		log.info("Switch " + delayed_count + " postponed jobs to waiting " + (System.currentTimeMillis() - not_before) + " ms after their date, with " + callback_count.get() + " activity callback(s)");
+		
+		assertEquals(delayed_count, selectNextJobs(broker, delayed_count).size());
+		broker.cancelPostponedJobsTask();
+	}
+	
+	private static List<Job> selectNextJobs(InMemoryBroker broker, int capacity) {
+		ArrayList<Job> selected = new ArrayList<>();
+		broker.getNextJobs(Arrays.asList("context"), () -> capacity, (c, t) -> true, job -> {
+			selected.add(job);
+			return true;
+		});
+		return selected;
+	}
+	
+}
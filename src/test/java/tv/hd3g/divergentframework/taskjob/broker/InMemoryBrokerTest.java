@@ -19,18 +19,27 @@ package tv.hd3g.divergentframework.taskjob.broker;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.config.Configurator;
 
+import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
 import junit.framework.TestCase;
+import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
+import tv.hd3g.divergentframework.taskjob.queue.LocalQueue;
+import tv.hd3g.divergentframework.taskjob.worker.Engine;
 
 public class InMemoryBrokerTest extends TestCase {
 	
@@ -285,7 +294,7 @@ public class InMemoryBrokerTest extends TestCase {
 			return true;
 		});
 		
-		job.switchStatus(TaskStatus.PROCESSING);
+		broker.switchStatus(job, TaskStatus.PROCESSING);
 		
 		Thread.sleep(wait_duration + 10);
 		broker.flush();
@@ -295,7 +304,7 @@ public class InMemoryBrokerTest extends TestCase {
 		assertEquals(1, search.size());
 		assertEquals(job, search.get(0));
 		
-		job.switchStatus(TaskStatus.DONE);
+		broker.switchStatus(job, TaskStatus.DONE);
 		
 		broker.flush();
 		
@@ -340,8 +349,8 @@ public class InMemoryBrokerTest extends TestCase {
 			return true;
 		});
 		
-		job.switchStatus(TaskStatus.PROCESSING);
-		job.switchStatus(TaskStatus.ERROR);
+		broker.switchStatus(job, TaskStatus.PROCESSING);
+		broker.switchStatus(job, TaskStatus.ERROR);
 		
 		broker.flush();
 		
@@ -358,6 +367,53 @@ public class InMemoryBrokerTest extends TestCase {
 		assertTrue(search.isEmpty());
 	}
 	
+	public void testFlushSlices() throws Exception {
+		long wait_duration = 100;
+		
+		InMemoryBroker broker = new InMemoryBroker(1000, wait_duration, wait_duration, wait_duration, TimeUnit.MILLISECONDS).cancelCleanUpTask().setFlushSliceSize(7);
+		
+		List<Job> jobs = IntStream.range(0, 100).mapToObj(i -> {
+			return broker.createJob("D" + i, "ER", "context", new JsonObject(), null);
+		}).collect(Collectors.toList());
+		Job sub_job = broker.addSubJob(jobs.get(0), "Sub", "ER", "context", new JsonObject(), null);
+		
+		ArrayList<Job> selected = new ArrayList<>();
+		broker.getNextJobs(Arrays.asList("context"), () -> 1, (c_type, c_tags) -> true, selected_job -> {
+			return selected.add(selected_job);
+		});
+		assertEquals(1, selected.size());
+		Job processing_job = selected.get(0);
+		broker.switchStatus(processing_job, TaskStatus.PROCESSING);
+		
+		Job postponed_job = jobs.stream().filter(job -> job.getStatus() == TaskStatus.WAITING).filter(job -> job.equals(jobs.get(0)) == false).findFirst().get();
+		broker.switchStatus(postponed_job, TaskStatus.POSTPONED);
+		
+		AtomicInteger deleted_count = new AtomicInteger(0);
+		broker.addJobObserver(new JobEventObserver() {
+			public void brokerOnAfterFlush(List<java.util.UUID> deleted_jobs_uuid) {
+				deleted_count.addAndGet(deleted_jobs_uuid.size());
+			}
+		});
+		
+		broker.flush();
+		assertEquals(0, deleted_count.get());
+		assertEquals(101, broker.storeSize());
+		
+		Thread.sleep(wait_duration + 10);
+		broker.flush();
+		
+		assertEquals(99, deleted_count.get());
+		assertEquals(2, broker.storeSize());
+		assertTrue(broker.getAllJobs().contains(processing_job));
+		assertTrue(broker.getAllJobs().contains(postponed_job));
+		assertFalse(broker.getAllJobs().contains(sub_job));
+		
+		Optional<RuntimeException> o_error = broker.checkStoreConsistency();
+		if (o_error.isPresent()) {
+			throw o_error.get();
+		}
+	}
+	
 	public void testCapacity() throws Exception {
 		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.SECONDS);
 		
@@ -374,6 +430,672 @@ public class InMemoryBrokerTest extends TestCase {
 		assertNotNull(fjse);
 	}
 	
+	public void testBatchCreate() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(8, 1, 1, 1, TimeUnit.SECONDS);
+		
+		AtomicInteger callback_count = new AtomicInteger(0);
+		broker.registerCallbackOnNewLocalJobsActivity(() -> {
+			callback_count.getAndIncrement();
+		});
+		
+		AtomicInteger create_events = new AtomicInteger(0);
+		AtomicInteger create_sub_events = new AtomicInteger(0);
+		broker.addJobObserver(new JobEventObserver() {
+			public void brokerOnCreateJobs(List<Job> jobs) {
+				assertEquals(4, jobs.size());
+				create_events.getAndIncrement();
+			}
+			
+			public void brokerOnCreateSubJob(Job reference, Job sub_job) {
+				create_sub_events.getAndIncrement();
+			}
+		});
+		
+		List<JobSpec> specs = IntStream.range(0, 4).mapToObj(i -> {
+			return new JobSpec("D" + i, "context", new JsonObject()).setExternalReference("ER" + i).setContextRequirementTags(Arrays.asList("tag"));
+		}).collect(Collectors.toList());
+		
+		List<Job> jobs = broker.createJobs(specs);
+		Thread.sleep(20);
+		assertEquals(1, callback_count.get());
+		assertEquals(4, jobs.size());
+		assertEquals(4, broker.storeSize());
+		for (int i = 0; i < 4; i++) {
+			assertEquals("D" + i, jobs.get(i).getDescription());
+			assertEquals("ER" + i, jobs.get(i).getExternalReference());
+			assertEquals(TaskStatus.WAITING, jobs.get(i).getStatus());
+			assertTrue(jobs.get(i).getContextRequirementTags().contains("tag"));
+		}
+		
+		List<Job> sub_jobs = broker.addSubJobs(jobs.get(0), Arrays.asList(new JobSpec("S1", "context", null), new JobSpec("S2", "context", null)));
+		assertEquals(2, sub_jobs.size());
+		assertEquals(6, broker.storeSize());
+		assertEquals(2, jobs.get(0).getRelativesJobsUUID().size());
+		assertEquals(jobs.get(0).getKey(), sub_jobs.get(1).getLinkedJob());
+		
+		Thread.sleep(20);
+		assertEquals(2, callback_count.get());
+		assertEquals(1, create_events.get());
+		assertEquals(2, create_sub_events.get());
+		
+		assertTrue(broker.createJobs(Arrays.asList()).isEmpty());
+		
+		/**
+		 * All or nothing
+		 */
+		FullJobStoreException fjse = null;
+		try {
+			broker.createJobs(specs.subList(0, 3));
+		} catch (FullJobStoreException e) {
+			fjse = e;
+		}
+		assertNotNull(fjse);
+		assertEquals(6, broker.storeSize());
+		
+		fjse = null;
+		try {
+			broker.addSubJobs(jobs.get(0), Arrays.asList(new JobSpec("S3", "context", null), new JobSpec("S4", "context", null), new JobSpec("S5", "context", null)));
+		} catch (FullJobStoreException e) {
+			fjse = e;
+		}
+		assertNotNull(fjse);
+		assertEquals(6, broker.storeSize());
+		assertEquals(2, jobs.get(0).getRelativesJobsUUID().size());
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
+	private static List<Job> selectNextJobs(InMemoryBroker broker, List<String> context_types, int capacity) {
+		ArrayList<Job> selected = new ArrayList<>();
+		broker.getNextJobs(context_types, () -> capacity, (c, t) -> true, job -> {
+			selected.add(job);
+			return true;
+		});
+		return selected;
+	}
+	
+	public void testPriority() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		assertEquals(SchedulingPolicy.STRICT_PRIORITY, broker.getSchedulingPolicy());
+		
+		Job low = broker.createJob(new JobSpec("low", "context1", null).setPriority(-1));
+		Job normal = broker.createJob("normal", null, "context2", null, null);
+		Thread.sleep(2);
+		Job high = broker.createJob(new JobSpec("high", "context1", null).setPriority(10));
+		assertEquals(10, high.getPriority());
+		assertEquals(0, normal.getPriority());
+		
+		assertEquals(Arrays.asList(high, normal, low), selectNextJobs(broker, Arrays.asList("context1", "context2"), 10));
+	}
+	
+	public void testWeightedFairScheduling() throws Exception {
+		int flood_size = 1000;
+		int rare_size = 10;
+		int capacity = 10;
+		
+		for (boolean fair : Arrays.asList(false, true)) {
+			InMemoryBroker broker = new InMemoryBroker(flood_size + rare_size, 1, 1, 1, TimeUnit.HOURS);
+			broker.cancelCleanUpTask();
+			WeightedFairSchedulingPolicy fair_policy = WeightedFairSchedulingPolicy.byContextType(Map.of("flood", 1, "rare", 1));
+			if (fair) {
+				broker.setSchedulingPolicy(fair_policy);
+			}
+			
+			broker.createJobs(IntStream.range(0, flood_size).mapToObj(i -> new JobSpec("F" + i, "flood", null)).collect(Collectors.toList()));
+			Thread.sleep(2);
+			broker.createJobs(IntStream.range(0, rare_size).mapToObj(i -> new JobSpec("R" + i, "rare", null)).collect(Collectors.toList()));
+			assertFalse(broker.checkStoreConsistency().isPresent());
+			
+			/**
+			 * Saturated queue: only some free slots by pass.
+			 */
+			int pass_count = 0;
+			int rare_selected = 0;
+			while (rare_selected < rare_size) {
+				List<Job> selected = selectNextJobs(broker, Arrays.asList("flood", "rare"), capacity);
+				assertEquals(capacity, selected.size());
+				rare_selected += selected.stream().filter(job -> job.getContextType().equals("rare")).count();
+				pass_count++;
+			}
+			
+			if (fair) {
+				assertEquals(rare_size * 2 / capacity, pass_count);
+				assertEquals(rare_size, broker.getSchedulingLatencies().get("rare").getCount());
+				/**
+				 * No more waiting rare jobs: only the flood class is tracked.
+				 */
+				assertEquals(1, fair_policy.getTrackedClassCount());
+			} else {
+				assertEquals((flood_size + rare_size) / capacity, pass_count);
+				assertEquals(rare_size + flood_size, broker.getSchedulingLatencies().get("").getCount());
+			}
+			assertFalse(broker.checkStoreConsistency().isPresent());
+		}
+	}
+	
+	public void testExternalReferenceFairScheduling() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(100, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		
+		broker.createJobs(IntStream.range(0, 30).mapToObj(i -> new JobSpec("A" + i, "context" + i % 3, null).setExternalReference("customerA:" + i)).collect(Collectors.toList()));
+		Thread.sleep(2);
+		broker.createJobs(IntStream.range(0, 30).mapToObj(i -> new JobSpec("B" + i, "context" + i % 3, null).setExternalReference("customerB:" + i)).collect(Collectors.toList()));
+		
+		/**
+		 * Change the policy with waiting jobs
+		 */
+		broker.setSchedulingPolicy(WeightedFairSchedulingPolicy.byExternalReferencePrefix(":", Map.of("customerA", 1, "customerB", 2)));
+		assertFalse(broker.checkStoreConsistency().isPresent());
+		
+		List<Job> selected = selectNextJobs(broker, Arrays.asList("context0", "context1", "context2"), 30);
+		long b_count = selected.stream().filter(job -> job.getExternalReference().startsWith("customerB")).count();
+		assertEquals(20, b_count);
+		assertEquals(2, broker.getSchedulingLatencies().size());
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
+	public void testDelayedJobs() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		
+		AtomicInteger callback_count = new AtomicInteger(0);
+		broker.registerCallbackOnNewLocalJobsActivity(() -> {
+			callback_count.getAndIncrement();
+		});
+		
+		long not_before = System.currentTimeMillis() + 200;
+		List<Job> delayed = broker.createJobs(IntStream.range(0, 3).mapToObj(i -> {
+			return new JobSpec("D" + i, "context", null).setNotBefore(not_before);
+		}).collect(Collectors.toList()));
+		Job far = broker.createJob(new JobSpec("Far", "context", null).setDelay(1, TimeUnit.DAYS));
+		Job now = broker.createJob(new JobSpec("Now", "context", null).setNotBefore(System.currentTimeMillis() - 1000));
+		
+		assertTrue(delayed.stream().allMatch(job -> TaskStatus.POSTPONED.equals(job.getStatus()) && job.getNotBefore() == not_before));
+		assertEquals(TaskStatus.POSTPONED, far.getStatus());
+		assertEquals(TaskStatus.WAITING, now.getStatus());
+		assertEquals(0, now.getNotBefore());
+		
+		/**
+		 * Postponed jobs are never visited before their date.
+		 */
+		assertEquals(Arrays.asList(now), selectNextJobs(broker, Arrays.asList("context"), 10));
+		broker.flush();
+		assertEquals(5, broker.storeSize());
+		
+		/**
+		 * The activity callback is called after the switch to WAITING.
+		 */
+		int callback_count_before = callback_count.get();
+		while (delayed.stream().allMatch(job -> TaskStatus.WAITING.equals(job.getStatus())) == false || callback_count.get() == callback_count_before) {
+			Thread.sleep(10);
+		}
+		assertTrue(System.currentTimeMillis() >= not_before);
+		assertEquals(TaskStatus.POSTPONED, far.getStatus());
+		assertFalse(broker.checkStoreConsistency().isPresent());
+		
+		List<Job> selected = selectNextJobs(broker, Arrays.asList("context"), 10);
+		assertEquals(delayed.size(), selected.size());
+		assertTrue(selected.containsAll(delayed));
+		broker.cancelPostponedJobsTask();
+	}
+	
+	public void testPostponeJob() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		
+		Job job = broker.createJob("D", null, "context", null, null);
+		Job manual = broker.createJob("M", null, "context", null, null);
+		broker.postponeJob(job, System.currentTimeMillis() + 200);
+		broker.switchStatus(manual, TaskStatus.POSTPONED);
+		assertEquals(TaskStatus.POSTPONED, job.getStatus());
+		assertTrue(selectNextJobs(broker, Arrays.asList("context"), 10).isEmpty());
+		
+		/**
+		 * Postponed again, later
+		 */
+		broker.postponeJob(job, System.currentTimeMillis() + 400);
+		Thread.sleep(300);
+		assertEquals(TaskStatus.POSTPONED, job.getStatus());
+		Thread.sleep(200 + InMemoryBroker.POSTPONED_JOBS_TICK_DURATION * 2);
+		assertEquals(TaskStatus.WAITING, job.getStatus());
+		assertEquals(TaskStatus.POSTPONED, manual.getStatus());
+		assertEquals(Arrays.asList(job), selectNextJobs(broker, Arrays.asList("context"), 10));
+		
+		/**
+		 * Already passed
+		 */
+		broker.switchStatus(job, TaskStatus.WAITING);
+		broker.postponeJob(job, System.currentTimeMillis() - 1000);
+		assertEquals(TaskStatus.WAITING, job.getStatus());
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
+	public void testDependencies() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(100, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		List<String> context_types = Arrays.asList("transcode", "mux", "publish");
+		
+		JobSpec audio_spec = new JobSpec("audio", "transcode", null);
+		JobSpec video_spec = new JobSpec("video", "transcode", null);
+		JobSpec mux_spec = new JobSpec("mux", "mux", null).addDependency(audio_spec).addDependency(video_spec);
+		List<Job> jobs = broker.createJobs(Arrays.asList(mux_spec, audio_spec, video_spec));
+		Job mux = jobs.get(0);
+		Job audio = jobs.get(1);
+		Job video = jobs.get(2);
+		assertEquals(Arrays.asList(audio.getKey(), video.getKey()), mux.getDependencies());
+		
+		Job publish = broker.createJob(new JobSpec("publish", "publish", null).addDependency(mux));
+		assertEquals(Arrays.asList(mux.getKey()), publish.getDependencies());
+		
+		List<Job> selected = selectNextJobs(broker, context_types, 10);
+		assertEquals(2, selected.size());
+		assertTrue(selected.containsAll(Arrays.asList(audio, video)));
+		
+		broker.switchStatus(audio, TaskStatus.PROCESSING);
+		broker.switchStatus(audio, TaskStatus.DONE);
+		assertTrue(selectNextJobs(broker, context_types, 10).isEmpty());
+		
+		broker.switchStatus(video, TaskStatus.PROCESSING);
+		broker.switchStatus(video, TaskStatus.DONE);
+		assertEquals(Arrays.asList(mux), selectNextJobs(broker, context_types, 10));
+		broker.switchStatus(mux, TaskStatus.PROCESSING);
+		broker.switchStatus(mux, TaskStatus.DONE);
+		assertEquals(Arrays.asList(publish), selectNextJobs(broker, context_types, 10));
+		assertFalse(broker.checkStoreConsistency().isPresent());
+		
+		/**
+		 * Cycles and unknown dependencies
+		 */
+		JobSpec a_spec = new JobSpec("a", "mux", null);
+		JobSpec b_spec = new JobSpec("b", "mux", null).addDependency(a_spec);
+		JobSpec c_spec = new JobSpec("c", "mux", null).addDependency(b_spec);
+		a_spec.addDependency(c_spec);
+		try {
+			broker.createJobs(Arrays.asList(a_spec, b_spec, c_spec, new JobSpec("d", "mux", null)));
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("[a, b, c]"));
+		}
+		try {
+			JobSpec self = new JobSpec("self", "mux", null);
+			broker.createJobs(Arrays.asList(self.addDependency(self)));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			broker.createJob(new JobSpec("unknown", "mux", null).addDependency(UUID.randomUUID()));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			broker.addSubJobs(audio, Arrays.asList(new JobSpec("out", "mux", null).addDependency(a_spec)));
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(4, broker.storeSize());
+		assertTrue(audio.getRelativesJobsUUID().isEmpty());
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
+	public void testRetryPolicyDelays() {
+		RetryPolicy policy = new RetryPolicy(5, 100, 1000, TimeUnit.MILLISECONDS).setJitter(0);
+		assertTrue(policy.canRetry(1));
+		assertTrue(policy.canRetry(4));
+		assertFalse(policy.canRetry(5));
+		assertEquals(100, policy.getRetryDelay(1));
+		assertEquals(200, policy.getRetryDelay(2));
+		assertEquals(800, policy.getRetryDelay(4));
+		assertEquals(1000, policy.getRetryDelay(5));
+		
+		policy.setJitter(0.5).setMultiplier(3);
+		assertEquals(900, policy.getBaseDelay(3));
+		IntStream.range(0, 1000).forEach(i -> {
+			long delay = policy.getRetryDelay(3);
+			assertTrue(delay > 450 && delay <= 900);
+		});
+	}
+	
+	private static void processWithError(InMemoryBroker broker, Job job) {
+		broker.switchStatus(job, TaskStatus.PREPARING);
+		broker.switchStatus(job, TaskStatus.PROCESSING);
+		broker.switchToError(job, new Exception("Test error " + job.getAttemptCount()));
+	}
+	
+	public void testRetry() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.SECONDS);
+		broker.cancelCleanUpTask();
+		broker.setRetryPolicy("retry", new RetryPolicy(3, 200, 1000, TimeUnit.MILLISECONDS).setJitter(0));
+		assertNull(broker.getRetryPolicy("noretry"));
+		
+		Job job = broker.createJob("D", null, "retry", null, null);
+		Job no_retry = broker.createJob("D", null, "noretry", null, null);
+		assertEquals(0, job.getAttemptCount());
+		
+		processWithError(broker, no_retry);
+		assertEquals(TaskStatus.ERROR, no_retry.getStatus());
+		assertEquals(0, no_retry.getNotBefore());
+		
+		for (int attempt = 1; attempt < 3; attempt++) {
+			long before_error = System.currentTimeMillis();
+			processWithError(broker, job);
+			assertEquals(attempt, job.getAttemptCount());
+			assertEquals(TaskStatus.ERROR, job.getStatus());
+			assertEquals("Test error " + attempt, job.getLastErrorMessage());
+			assertTrue(job.getNotBefore() >= before_error + 200 * attempt);
+			
+			/**
+			 * Not before the backoff delay, even with a flush.
+			 */
+			Thread.sleep(100);
+			broker.flush();
+			assertEquals(TaskStatus.ERROR, job.getStatus());
+			assertTrue(selectNextJobs(broker, Arrays.asList("retry"), 10).isEmpty());
+			
+			while (job.getStatus() == TaskStatus.ERROR) {
+				Thread.sleep(10);
+			}
+			assertTrue(System.currentTimeMillis() >= job.getNotBefore());
+			assertEquals(Arrays.asList(job), selectNextJobs(broker, Arrays.asList("retry"), 10));
+		}
+		
+		/**
+		 * Max attempts: stay in error, and it will expire.
+		 */
+		broker.switchStatus(job, TaskStatus.PROCESSING);
+		broker.switchToError(job, new Exception("Last error"));
+		assertEquals(3, job.getAttemptCount());
+		assertEquals(0, job.getNotBefore());
+		Thread.sleep(1200);
+		assertEquals(TaskStatus.ERROR, job.getStatus());
+		broker.flush();
+		assertEquals(0, broker.storeSize());
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
+	public void testLeases() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		broker.setRetryPolicy("retry", new RetryPolicy(3, 100, 1000, TimeUnit.MILLISECONDS).setJitter(0));
+		
+		Job prepared = broker.createJob("Prepared", null, "lease", null, null);
+		Thread.sleep(2);
+		Job heartbeat = broker.createJob("Heartbeat", null, "lease", null, null);
+		Job lost = broker.createJob("Lost", null, "lease", null, null);
+		Job retried = broker.createJob("Retried", null, "retry", null, null);
+		
+		/**
+		 * Jobs leased before setLeaseDuration are leased too.
+		 */
+		assertEquals(Arrays.asList(prepared), selectNextJobs(broker, Arrays.asList("lease"), 1));
+		assertEquals(0, prepared.getLeaseDeadline());
+		broker.setLeaseDuration(300, TimeUnit.MILLISECONDS);
+		assertEquals(300, broker.getLeaseDuration());
+		assertTrue(prepared.getLeaseDeadline() > System.currentTimeMillis());
+		
+		List<Job> started = selectNextJobs(broker, Arrays.asList("lease", "retry"), 10);
+		assertEquals(3, started.size());
+		started.forEach(job -> {
+			assertTrue(job.getLeaseDeadline() > 0);
+			broker.switchStatus(job, TaskStatus.PROCESSING);
+		});
+		
+		/**
+		 * Only the progressions with a lease epoch are heartbeats.
+		 */
+		long heartbeat_epoch = heartbeat.getLeaseEpoch();
+		long end = System.currentTimeMillis() + 1000;
+		while (System.currentTimeMillis() < end) {
+			broker.updateProgression(heartbeat, 1, 10, heartbeat_epoch);
+			broker.updateProgression(lost, 1, 10);
+			Thread.sleep(50);
+		}
+		
+		assertEquals(TaskStatus.WAITING, prepared.getStatus());
+		assertEquals(0, prepared.getLeaseDeadline());
+		assertEquals(TaskStatus.PROCESSING, heartbeat.getStatus());
+		assertTrue(heartbeat.getLeaseDeadline() > System.currentTimeMillis());
+		assertEquals(TaskStatus.ERROR, lost.getStatus());
+		assertTrue(lost.getLastErrorMessage().startsWith("Lease expired"));
+		assertEquals(0, lost.getNotBefore());
+		assertEquals(0, lost.getLeaseDeadline());
+		
+		/**
+		 * Expired, then retried by its RetryPolicy.
+		 */
+		assertEquals(TaskStatus.WAITING, retried.getStatus());
+		assertEquals(1, retried.getAttemptCount());
+		assertTrue(retried.getLastErrorMessage().startsWith("Lease expired"));
+		
+		broker.switchStatus(heartbeat, TaskStatus.DONE);
+		assertEquals(0, heartbeat.getLeaseDeadline());
+		
+		broker.setLeaseDuration(0, TimeUnit.MILLISECONDS);
+		List<Job> unleased = selectNextJobs(broker, Arrays.asList("lease", "retry"), 10);
+		assertEquals(2, unleased.size());
+		assertTrue(unleased.stream().allMatch(job -> job.getLeaseDeadline() == 0));
+		broker.cancelPostponedJobsTask();
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
+	/**
+	 * A late worker can't update its job after it was reclaimed and claimed again, and a WorkerThread renews the lease of its job.
+	 */
+	public void testLeaseEpoch() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		broker.setRetryPolicy("lease", new RetryPolicy(3, 1, 1, TimeUnit.MILLISECONDS).setJitter(0));
+		broker.setLeaseDuration(200, TimeUnit.MILLISECONDS);
+		
+		Job job = broker.createJob("Epoch", null, "lease", null, null);
+		assertEquals(1, selectNextJobs(broker, Arrays.asList("lease"), 1).size());
+		long late_epoch = job.getLeaseEpoch();
+		broker.switchStatus(job, TaskStatus.PROCESSING, late_epoch);
+		
+		long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (job.getStatus() != TaskStatus.WAITING) {
+			assertTrue("Too long", System.currentTimeMillis() < end);
+			Thread.sleep(10);
+		}
+		assertEquals(1, selectNextJobs(broker, Arrays.asList("lease"), 1).size());
+		assertTrue(job.getLeaseEpoch() > late_epoch);
+		
+		try {
+			broker.switchStatus(job, TaskStatus.DONE, late_epoch);
+			fail();
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().startsWith("Lease lost"));
+		}
+		try {
+			broker.renewLease(job, late_epoch);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		try {
+			broker.updateProgression(job, 5, 10, late_epoch);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(0, job.getActualProgressionValue());
+		assertEquals(TaskStatus.PREPARING, job.getStatus());
+		broker.switchStatus(job, TaskStatus.PROCESSING, job.getLeaseEpoch());
+		broker.switchStatus(job, TaskStatus.DONE, job.getLeaseEpoch());
+		
+		/**
+		 * Longer than the lease, without progression updates.
+		 */
+		LocalQueue queue = new LocalQueue(broker);
+		queue.registerEngine(new Engine(1, "Slow", Arrays.asList("lease"), context_type -> {
+			return (referer, bkr, shouldStopProcessing) -> {
+				Thread.sleep(600);
+			};
+		}));
+		Job slow_job = broker.createJob("Slow", null, "lease", null, null);
+		end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (slow_job.getStatus() != TaskStatus.DONE) {
+			assertTrue("Too long", System.currentTimeMillis() < end);
+			assertNotSame(TaskStatus.ERROR, slow_job.getStatus());
+			Thread.sleep(10);
+		}
+		assertEquals(1, slow_job.getAttemptCount());
+		
+		broker.setLeaseDuration(0, TimeUnit.MILLISECONDS);
+		broker.cancelPostponedJobsTask();
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
+	public void testProgressionPublishInterval() throws Exception {
+		int job_count = 4;
+		int update_count = 10_000;
+		long interval = 50;
+		
+		for (long publish_interval : Arrays.asList(0l, interval)) {
+			InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+			broker.cancelCleanUpTask();
+			broker.setProgressionPublishInterval(publish_interval, TimeUnit.MILLISECONDS);
+			
+			Map<Job, AtomicInteger> published_count = new ConcurrentHashMap<>();
+			Map<Job, Integer> last_published = new ConcurrentHashMap<>();
+			broker.addJobObserver(new JobEventObserver() {
+				public void onJobUpdateProgression(Job job) {
+					published_count.computeIfAbsent(job, j -> new AtomicInteger()).incrementAndGet();
+					last_published.put(job, job.getActualProgressionValue());
+				}
+			});
+			
+			List<Job> jobs = IntStream.range(0, job_count).mapToObj(i -> {
+				return broker.createJob("D" + i, null, "context", null, null);
+			}).collect(Collectors.toList());
+			
+			long start = System.currentTimeMillis();
+			List<Thread> workers = jobs.stream().map(job -> {
+				return new Thread(() -> {
+					for (int value = 1; value <= update_count; value++) {
+						broker.updateProgression(job, value, Integer.MAX_VALUE);
+					}
+				});
+			}).collect(Collectors.toList());
+			workers.forEach(Thread::start);
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			Thread.sleep(interval * 3);
+			long duration = System.currentTimeMillis() - start;
+			
+			jobs.forEach(job -> {
+				assertEquals(update_count, job.getActualProgressionValue());
+				assertEquals(Integer.MAX_VALUE, job.getMaxProgressionValue());
+				assertEquals(update_count, last_published.get(job).intValue());
+				if (publish_interval == 0) {
+					assertEquals(update_count, published_count.get(job).get());
+				} else {
+					assertTrue(published_count.get(job).get() <= duration / interval + 2);
+				}
+			});
+			broker.cancelPostponedJobsTask();
+		}
+	}
+	
+	public static class TypedContext {
+		String name;
+		int value;
+	}
+	
+	public void testProgressionJsonFields() throws Exception {
+		Gson gson = new Gson();
+		Job job = JobUtilityTest.createJob("D", "context", null, null).updateProgression(3, 10);
+		
+		JsonObject jo = gson.fromJson(job.toJson(gson), JsonObject.class);
+		assertEquals(3, jo.get("actual_progression_value").getAsInt());
+		assertEquals(10, jo.get("max_progression_value").getAsInt());
+		assertFalse(jo.has("progression"));
+		
+		Job restored = Job.fromJson(gson, job.toJson(gson));
+		assertEquals("3/10", restored.getProgression(""));
+		assertEquals(job.getKey(), restored.getKey());
+		
+		jo.remove("actual_progression_value");
+		jo.remove("max_progression_value");
+		assertEquals("", Job.fromJson(gson, jo.toString()).getProgression(""));
+	}
+	
+	public void testTypedContextContent() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		Gson gson = new Gson();
+		
+		TypedContext context = new TypedContext();
+		context.name = "N";
+		context.value = 1;
+		Job job = broker.createGenericJob("D", null, context, null, gson);
+		
+		TypedContext first = job.getContextContent(TypedContext.class, gson);
+		assertNotSame(context, first);
+		assertEquals("N", first.name);
+		assertEquals(1, first.value);
+		assertNotSame(first, job.getContextContent(TypedContext.class, gson));
+		
+		/**
+		 * Each caller has its own instance.
+		 */
+		first.value = 4;
+		assertEquals(1, job.getContextContent(TypedContext.class, gson).value);
+		first.value = 1;
+		
+		JsonObject copy = job.getContextContent();
+		copy.addProperty("value", 3);
+		assertEquals(1, job.getContextContent(TypedContext.class, gson).value);
+		
+		JobUtilityTest.addPropertyInContext(job, "value", 2);
+		TypedContext updated = job.getContextContent(TypedContext.class, gson);
+		assertNotSame(first, updated);
+		assertEquals(2, updated.value);
+		assertEquals(1, first.value);
+	}
+	
+	public void testCompactContextContent() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		broker.setCompactContextContent(true);
+		Gson gson = new Gson();
+		
+		TypedContext context = new TypedContext();
+		context.name = "N\u00e9";
+		context.value = 1;
+		Job job = broker.createGenericJob("D", null, context, null, gson);
+		Job sub_job = broker.addSubJobs(job, Arrays.asList(JobSpec.ofGeneric("S", context, gson))).get(0);
+		assertTrue(job.isCompactContextContent());
+		assertTrue(sub_job.isCompactContextContent());
+		assertEquals(gson.toJsonTree(context), job.getContextContent());
+		assertNotSame(job.getContextContent(), job.getContextContent());
+		
+		TypedContext first = job.getContextContent(TypedContext.class, gson);
+		assertEquals("N\u00e9", first.name);
+		assertNotSame(first, job.getContextContent(TypedContext.class, gson));
+		
+		JobUtilityTest.addPropertyInContext(job, "value", 2);
+		assertTrue(job.isCompactContextContent());
+		assertEquals(2, job.getContextContent(TypedContext.class, gson).value);
+		assertEquals(1, first.value);
+		
+		Job restored = Job.fromJson(gson, job.toJson(gson));
+		assertFalse(restored.isCompactContextContent());
+		assertEquals(job.getContextContent(), restored.getContextContent());
+		
+		broker.setCompactContextContent(false);
+		assertFalse(broker.createGenericJob("D", null, context, null, gson).isCompactContextContent());
+	}
+	
+	public void testSchedulingLatency() {
+		SchedulingLatency latency = new SchedulingLatency();
+		assertEquals(0, latency.getPercentile(0.99));
+		IntStream.rangeClosed(1, 100).forEach(latency::record);
+		assertEquals(100, latency.getCount());
+		assertEquals(50.5d, latency.getMean());
+		assertEquals(100, latency.getMax());
+		assertEquals(63, latency.getPercentile(0.5));
+		assertEquals(100, latency.getPercentile(0.99));
+	}
+	
 	public void testSpecificTagsAndContext() throws Exception {
 		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.SECONDS);
 		
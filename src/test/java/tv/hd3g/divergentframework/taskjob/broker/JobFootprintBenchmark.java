@@ -0,0 +1,85 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openjdk.jol.info.ClassLayout;
+import org.openjdk.jol.info.GraphLayout;
+
+import com.google.gson.Gson;
+
+import junit.framework.TestCase;
+
+/**
+ * Not in the default test run (surefire includes only Test* and *Test classes): mvn test -Dtest=JobFootprintBenchmark
+ */
+public class JobFootprintBenchmark extends TestCase {
+	private static final Logger log = LogManager.getLogger();
+	
+	public static class Context {
+		String name;
+		int value;
+	}
+	
+	private static final int JOB_COUNT = 10_000;
+	
+	/**
+	 * Jobs like created by a broker, but without the broker observer, else JOL will walk all the broker.
+	 */
+	private static Job[] createJobs(boolean compact) {
+		Gson gson = new Gson();
+		Job[] jobs = new Job[JOB_COUNT];
+		for (int pos = 0; pos < JOB_COUNT; pos++) {
+			Context context = new Context();
+			context.name = "Context name " + pos;
+			context.value = pos;
+			JobSpec spec = JobSpec.ofGeneric("Job " + pos, context, gson).setContextRequirementTags(Arrays.asList("tag" + pos % 3, "tag" + pos % 5));
+			
+			Job job = new Job();
+			if (pos % 10 == 0 || pos == 0) {
+				job.init(spec.getDescription(), spec.getContextType(), spec.getContextContent(), spec.copyContextRequirementTags());
+			} else {
+				job = jobs[pos - pos % 10].addSubJob(spec.getDescription(), spec.getContextType(), spec.getContextContent(), spec.copyContextRequirementTags());
+			}
+			if (compact) {
+				job.compactContextContent();
+			}
+			jobs[pos] = job;
+		}
+		return jobs;
+	}
+	
+	public void testFootprint() {
+		log.info(ClassLayout.parseClass(Job.class).toPrintable());
+		
+		ArrayList<Long> sizes = new ArrayList<>();
+		for (boolean compact : Arrays.asList(false, true)) {
+			Job[] jobs = createJobs(compact);
+			GraphLayout layout = GraphLayout.parseInstance((Object[]) jobs);
+			long size = (layout.totalSize() - GraphLayout.parseInstance((Object) new Job[JOB_COUNT]).totalSize()) / JOB_COUNT;
+			log.info("Job footprint with " + (compact ? "compact" : "JsonObject") + " contexts: " + size + " bytes/job\n" + layout.toFootprint());
+			sizes.add(size);
+		}
+		
+		assertTrue(sizes.get(1) < sizes.get(0));
+	}
+	
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.gson.JsonObject;
+
+import junit.framework.TestCase;
+
+/**
+ * Not in the default test run (surefire includes only Test* and *Test classes): mvn test -Dtest=JobStoreBenchmark
+ */
+public class JobStoreBenchmark extends TestCase {
+	private static final Logger log = LogManager.getLogger();
+	
+	/**
+	 * Readers (getByUUID/size/waitingJobCount) against one writer (update), for each lock mode.
+	 */
+	public void testLockModesReadThroughput() throws InterruptedException {
+		final int READERS = Math.max(Runtime.getRuntime().availableProcessors() - 1, 2);
+		final long DURATION = 300;
+		
+		for (StoreLockMode lock_mode : StoreLockMode.values()) {
+			InMemoryJobStore store = new InMemoryJobStore(lock_mode);
+			List<Job> all_jobs = IntStream.range(0, 10_000).mapToObj(i -> JobUtilityTest.createJob("Test", "Test", new JsonObject(), null)).collect(Collectors.toList());
+			all_jobs.forEach(store::put);
+			
+			AtomicLong reads = new AtomicLong(0);
+			AtomicLong writes = new AtomicLong(0);
+			long end_date = System.currentTimeMillis() + DURATION;
+			
+			List<Thread> threads = IntStream.range(0, READERS).mapToObj(i -> new Thread(() -> {
+				long count = 0;
+				while (System.currentTimeMillis() < end_date) {
+					assertNotNull(store.getByUUID(all_jobs.get((int) (count % all_jobs.size())).getKey()));
+					assertTrue(store.size() > 0);
+					assertTrue(store.waitingJobCount() >= 0);
+					count++;
+				}
+				reads.addAndGet(count);
+			}, "Reader" + i)).collect(Collectors.toList());
+			
+			threads.add(new Thread(() -> {
+				long count = 0;
+				while (System.currentTimeMillis() < end_date) {
+					Job job = all_jobs.get((int) (count % all_jobs.size()));
+					store.update(() -> {
+						return job.getKey();
+					});
+					count++;
+				}
+				writes.addAndGet(count);
+			}, "Writer"));
+			
+			threads.forEach(Thread::start);
+			for (Thread t : threads) {
+				t.join();
+			}
+			
+			log.info(lock_mode + ": " + reads.get() * 1000 / DURATION + " reads/sec with " + READERS + " readers, " + writes.get() * 1000 / DURATION + " writes/sec");
+			assertTrue(reads.get() > 0);
+			assertTrue(writes.get() > 0);
+		}
+	}
+	
+}
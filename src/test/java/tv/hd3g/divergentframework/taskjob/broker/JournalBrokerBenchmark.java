@@ -0,0 +1,94 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import com.google.gson.JsonObject;
+
+import junit.framework.TestCase;
+
+/**
+ * Not in the default test run (surefire includes only Test* and *Test classes): mvn test -Dtest=JournalBrokerBenchmark
+ */
+public class JournalBrokerBenchmark extends TestCase {
+	private static final Logger log = LogManager.getLogger();
+	
+	static {
+		Configurator.setLevel(InMemoryBroker.class.getName(), Level.WARN);
+		Configurator.setLevel(JournalBroker.class.getName(), Level.WARN);
+	}
+	
+	private File journal_dir;
+	
+	protected void setUp() throws Exception {
+		journal_dir = Files.createTempDirectory("taskjob-journal").toFile();
+	}
+	
+	protected void tearDown() throws Exception {
+		Files.walk(journal_dir.toPath()).sorted(Comparator.reverseOrder()).map(p -> p.toFile()).forEach(File::delete);
+	}
+	
+	public void testCreateThroughput() throws Exception {
+		int count = 2000;
+		
+		InMemoryBroker in_memory = new InMemoryBroker(count, 1, 1, 1, TimeUnit.HOURS);
+		in_memory.cancelCleanUpTask();
+		long in_memory_duration = createJobs(in_memory, count);
+		
+		JournalBroker journal_broker = new JournalBroker(journal_dir, JournalBroker.DEFAULT_MAX_SEGMENT_SIZE, count, 1, 1, 1, TimeUnit.HOURS, StoreLockMode.EXCLUSIVE);
+		journal_broker.cancelCleanUpTask();
+		long journal_duration = createJobs(journal_broker, count);
+		journal_broker.close();
+		
+		log.info("Create and start " + count + " jobs, InMemoryBroker: " + in_memory_duration + " ms, JournalBroker: " + journal_duration + " ms");
+		
+		journal_broker = new JournalBroker(journal_dir, JournalBroker.DEFAULT_MAX_SEGMENT_SIZE, count, 1, 1, 1, TimeUnit.HOURS, StoreLockMode.EXCLUSIVE);
+		journal_broker.cancelCleanUpTask();
+		assertEquals(count, journal_broker.storeSize());
+		journal_broker.close();
+	}
+	
+	private static long createJobs(InMemoryBroker broker, int count) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		List<Thread> threads = Arrays.asList(new Thread[4]);
+		for (int t = 0; t < threads.size(); t++) {
+			threads.set(t, new Thread(() -> {
+				for (int i = 0; i < count / threads.size(); i++) {
+					Job job = broker.createJob("D", "ER", "context", new JsonObject(), null);
+					broker.switchStatus(job, TaskStatus.PREPARING);
+				}
+			}));
+			threads.get(t).start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return System.currentTimeMillis() - start;
+	}
+	
+}
@@ -0,0 +1,222 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import com.google.gson.JsonObject;
+
+import junit.framework.TestCase;
+
+public class JournalBrokerTest extends TestCase {
+	
+	static {
+		Configurator.setLevel(InMemoryBroker.class.getName(), Level.WARN);
+		Configurator.setLevel(JournalBroker.class.getName(), Level.WARN);
+	}
+	
+	private File journal_dir;
+	
+	protected void setUp() throws Exception {
+		journal_dir = Files.createTempDirectory("taskjob-journal").toFile();
+	}
+	
+	protected void tearDown() throws Exception {
+		Files.walk(journal_dir.toPath()).sorted(Comparator.reverseOrder()).map(p -> p.toFile()).forEach(File::delete);
+	}
+	
+	private JournalBroker createBroker(long max_segment_size) throws IOException {
+		JournalBroker broker = new JournalBroker(journal_dir, max_segment_size, 1000, 1, 1, 1, TimeUnit.HOURS, StoreLockMode.EXCLUSIVE);
+		broker.cancelCleanUpTask();
+		return broker;
+	}
+	
+	public void testRestart() throws Exception {
+		JournalBroker broker = createBroker(JournalBroker.DEFAULT_MAX_SEGMENT_SIZE);
+		
+		JsonObject context = new JsonObject();
+		context.addProperty("k", "v");
+		Job waiting = broker.createJob("D1", "ER1", "context", context, Arrays.asList("tag"));
+		Job done = broker.createJob("D2", "ER2", "context", new JsonObject(), null);
+		Job sub_job = broker.addSubJob(done, "D3", "ER3", "context", new JsonObject(), null);
+		Job processing = broker.createJob("D4", "ER4", "context", new JsonObject(), null);
+		Job error = broker.createJob("D5", "ER5", "context", new JsonObject(), null);
+		
+		broker.switchStatus(done, TaskStatus.PREPARING);
+		broker.switchStatus(done, TaskStatus.PROCESSING);
+		broker.updateProgression(done, 5, 10);
+		broker.switchStatus(done, TaskStatus.DONE);
+		broker.switchStatus(processing, TaskStatus.PREPARING);
+		broker.switchStatus(processing, TaskStatus.PROCESSING);
+		broker.switchStatus(error, TaskStatus.PREPARING);
+		broker.switchStatus(error, TaskStatus.PROCESSING);
+		broker.switchToError(error, new Exception("Test error"));
+		broker.close();
+		
+		broker = createBroker(JournalBroker.DEFAULT_MAX_SEGMENT_SIZE);
+		assertEquals(5, broker.storeSize());
+		assertFalse(broker.checkStoreConsistency().isPresent());
+		
+		Job r_waiting = broker.getJobsByUUID(Arrays.asList(waiting.getKey())).get(0);
+		assertEquals(TaskStatus.WAITING, r_waiting.getStatus());
+		assertEquals("D1", r_waiting.getDescription());
+		assertEquals("ER1", r_waiting.getExternalReference());
+		assertEquals("v", r_waiting.getContextContent().get("k").getAsString());
+		assertTrue(r_waiting.getContextRequirementTags().contains("tag"));
+		assertEquals(waiting.getCreateDate(), r_waiting.getCreateDate());
+		
+		Job r_done = broker.getJobsByUUID(Arrays.asList(done.getKey())).get(0);
+		assertEquals(TaskStatus.DONE, r_done.getStatus());
+		assertEquals(done.getStartDate(), r_done.getStartDate());
+		assertEquals(done.getEndDate(), r_done.getEndDate());
+		assertEquals(5, r_done.getActualProgressionValue());
+		assertEquals(10, r_done.getMaxProgressionValue());
+		
+		Job r_sub_job = broker.getJobsByUUID(Arrays.asList(sub_job.getKey())).get(0);
+		assertEquals(done.getKey(), r_sub_job.getLinkedJob());
+		assertTrue(r_done.getRelativesJobsUUID().contains(sub_job.getKey()));
+		
+		Job r_processing = broker.getJobsByUUID(Arrays.asList(processing.getKey())).get(0);
+		assertEquals(TaskStatus.ERROR, r_processing.getStatus());
+		assertNotNull(r_processing.getLastErrorMessage());
+		
+		Job r_error = broker.getJobsByUUID(Arrays.asList(error.getKey())).get(0);
+		assertEquals(TaskStatus.ERROR, r_error.getStatus());
+		assertEquals(error.getLastErrorMessage(), r_error.getLastErrorMessage());
+		
+		/**
+		 * Restored jobs are alive in the broker
+		 */
+		List<Job> selected = new ArrayList<>();
+		broker.getNextJobs(Arrays.asList("context"), () -> 10, (c, t) -> true, job -> {
+			selected.add(job);
+			return true;
+		});
+		assertEquals(2, selected.size());
+		assertTrue(selected.contains(r_waiting));
+		assertTrue(selected.contains(r_sub_job));
+		assertEquals(TaskStatus.PREPARING, r_waiting.getStatus());
+		broker.close();
+	}
+	
+	public void testPostponedRestart() throws Exception {
+		JournalBroker broker = createBroker(JournalBroker.DEFAULT_MAX_SEGMENT_SIZE);
+		long not_before = System.currentTimeMillis() + 300;
+		Job delayed = broker.createJob(new JobSpec("D1", "context", null).setNotBefore(not_before));
+		Job postponed = broker.createJob("D2", null, "context", null, null);
+		broker.postponeJob(postponed, not_before);
+		Job far = broker.createJob(new JobSpec("D3", "context", null).setDelay(1, TimeUnit.DAYS));
+		broker.close();
+		
+		broker = createBroker(JournalBroker.DEFAULT_MAX_SEGMENT_SIZE);
+		assertEquals(not_before, broker.getJobsByUUID(Arrays.asList(postponed.getKey())).get(0).getNotBefore());
+		List<Job> restored = broker.getJobsByUUID(Arrays.asList(delayed.getKey(), postponed.getKey(), far.getKey()));
+		assertTrue(restored.stream().allMatch(job -> TaskStatus.POSTPONED.equals(job.getStatus())));
+		
+		Thread.sleep(300 + InMemoryBroker.POSTPONED_JOBS_TICK_DURATION * 3);
+		assertEquals(TaskStatus.WAITING, restored.get(0).getStatus());
+		assertEquals(TaskStatus.WAITING, restored.get(1).getStatus());
+		assertEquals(TaskStatus.POSTPONED, restored.get(2).getStatus());
+		broker.close();
+		
+		/**
+		 * The switch to waiting is journaled.
+		 */
+		broker = createBroker(JournalBroker.DEFAULT_MAX_SEGMENT_SIZE);
+		restored = broker.getJobsByUUID(Arrays.asList(delayed.getKey(), postponed.getKey(), far.getKey()));
+		assertEquals(TaskStatus.WAITING, restored.get(0).getStatus());
+		assertEquals(0, restored.get(1).getNotBefore());
+		assertEquals(TaskStatus.POSTPONED, restored.get(2).getStatus());
+		broker.close();
+	}
+	
+	public void testSnapshotRotation() throws Exception {
+		JournalBroker broker = createBroker(4 * 1024);
+		
+		for (int i = 0; i < 200; i++) {
+			Job job = broker.createJob("D" + i, "ER", "context", new JsonObject(), null);
+			broker.switchStatus(job, TaskStatus.PREPARING);
+			broker.switchStatus(job, TaskStatus.PROCESSING);
+			broker.switchStatus(job, TaskStatus.DONE);
+		}
+		broker.close();
+		
+		String[] files = journal_dir.list();
+		assertTrue(Arrays.stream(files).anyMatch(f -> f.startsWith("snapshot-")));
+		assertTrue("Old segments are not purged: " + Arrays.toString(files), files.length < 10);
+		
+		broker = createBroker(4 * 1024);
+		assertEquals(200, broker.storeSize());
+		assertTrue(broker.getAllJobs().stream().allMatch(job -> job.getStatus() == TaskStatus.DONE));
+		broker.close();
+	}
+	
+	public void testMoveJobs() throws Exception {
+		File source_dir = new File(journal_dir, "source");
+		File target_dir = new File(journal_dir, "target");
+		JournalBroker source = new JournalBroker(source_dir, 1000, 1, 1, 1, TimeUnit.HOURS);
+		JournalBroker target = new JournalBroker(target_dir, 1000, 1, 1, 1, TimeUnit.HOURS);
+		
+		Job predecessor = source.createJob("D1", null, "context", new JsonObject(), null);
+		Job dependent = source.createJob(new JobSpec("D2", "context", null).addDependency(predecessor));
+		Job other = source.createJob("D3", null, "context", new JsonObject(), null);
+		source.switchStatus(predecessor, TaskStatus.PREPARING);
+		source.switchStatus(predecessor, TaskStatus.PROCESSING);
+		
+		assertEquals(2, source.moveJobsTo(target, Arrays.asList(predecessor.getKey())).size());
+		source.close();
+		target.close();
+		
+		source = new JournalBroker(source_dir, 1000, 1, 1, 1, TimeUnit.HOURS);
+		target = new JournalBroker(target_dir, 1000, 1, 1, 1, TimeUnit.HOURS);
+		assertEquals(Arrays.asList(other.getKey()), source.getAllJobs().stream().map(Job::getKey).collect(Collectors.toList()));
+		assertEquals(2, target.storeSize());
+		assertEquals(TaskStatus.ERROR, target.getJobByUUID(predecessor.getKey()).getStatus());
+		assertEquals(TaskStatus.WAITING, target.getJobByUUID(dependent.getKey()).getStatus());
+		assertFalse(target.checkStoreConsistency().isPresent());
+		source.close();
+		target.close();
+	}
+	
+	public void testDeleteOnFlush() throws Exception {
+		JournalBroker broker = new JournalBroker(journal_dir, JournalBroker.DEFAULT_MAX_SEGMENT_SIZE, 1000, 1, 1, 1, TimeUnit.MILLISECONDS, StoreLockMode.EXCLUSIVE);
+		broker.cancelCleanUpTask();
+		
+		Job job = broker.createJob("D", "ER", "context", new JsonObject(), null);
+		broker.switchStatus(job, TaskStatus.CANCELED);
+		Thread.sleep(10);
+		broker.flush();
+		assertEquals(0, broker.storeSize());
+		broker.close();
+		
+		broker = createBroker(JournalBroker.DEFAULT_MAX_SEGMENT_SIZE);
+		assertEquals(0, broker.storeSize());
+		broker.close();
+	}
+	
+}
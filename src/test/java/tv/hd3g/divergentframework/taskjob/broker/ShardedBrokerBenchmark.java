@@ -0,0 +1,79 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import junit.framework.TestCase;
+
+/**
+ * Not in the default test run (surefire includes only Test* and *Test classes): mvn test -Dtest=ShardedBrokerBenchmark
+ */
+public class ShardedBrokerBenchmark extends TestCase {
+	private static final Logger log = LogManager.getLogger();
+	
+	/**
+	 * createJob and switchStatus, from 1 to N threads, with 1 shard and N shards. All threads use the same context type.
+	 */
+	public void testScaling() throws Exception {
+		Configurator.setLevel(InMemoryBroker.class.getName(), Level.WARN);
+		int max_threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+		long duration = 300;
+		
+		for (int shard_count : Arrays.asList(1, max_threads)) {
+			for (int thread_count = 1; thread_count <= max_threads; thread_count *= 2) {
+				ShardedBroker broker = new ShardedBroker(shard_count, i -> new InMemoryBroker(1_000_000, 1, 1, 1, TimeUnit.HOURS));
+				broker.cancelCleanUpTask();
+				AtomicLong operations = new AtomicLong(0);
+				
+				List<Thread> threads = IntStream.range(0, thread_count).mapToObj(i -> {
+					return new Thread(() -> {
+						long end = System.currentTimeMillis() + duration;
+						long count = 0;
+						while (System.currentTimeMillis() < end) {
+							Job job = broker.createJob("D", null, "context", null, null);
+							broker.switchStatus(job, TaskStatus.CANCELED);
+							broker.switchStatus(job, TaskStatus.WAITING);
+							count += 3;
+						}
+						operations.addAndGet(count);
+					});
+				}).collect(Collectors.toList());
+				threads.forEach(Thread::start);
+				for (Thread thread : threads) {
+					thread.join();
+				}
+				
+				log.info(shard_count + " shard(s), " + thread_count + " thread(s): " + operations.get() * 1000 / duration + " ops/sec");
+				assertEquals(operations.get() / 3, broker.storeSize());
+				assertFalse(broker.checkStoreConsistency().isPresent());
+				broker.cancelPostponedJobsTask();
+			}
+		}
+	}
+	
+}
@@ -17,11 +17,15 @@
 package tv.hd3g.divergentframework.taskjob.broker;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -205,4 +209,181 @@ public class TestJobStore extends TestCase {
 		
 	}
 	
+	public void testWaitingByContextTypes() throws InterruptedException {
+		InMemoryJobStore store = new InMemoryJobStore();
+		
+		ArrayList<Job> all_jobs = new ArrayList<>();
+		for (int pos = 0; pos < 30; pos++) {
+			Job job = JobUtilityTest.createJob("Test", "context" + pos % 3, new JsonObject(), null);
+			all_jobs.add(job);
+			assertTrue(store.put(job));
+			Thread.sleep(1);
+		}
+		
+		List<Job> selected = store.computeAndUpdateWaiting(Arrays.asList("context0", "context2"), 5, (job, uuid_resolver) -> {
+			return true;
+		}, job -> {
+			job.switchStatus(TaskStatus.PREPARING);
+		});
+		
+		assertEquals(5, selected.size());
+		assertEquals(Arrays.asList(all_jobs.get(0), all_jobs.get(2), all_jobs.get(3), all_jobs.get(5), all_jobs.get(6)), selected);
+		assertTrue(selected.stream().allMatch(job -> job.getStatus() == TaskStatus.PREPARING));
+		assertEquals(25, store.waitingJobCount());
+		
+		selected = store.computeAndUpdateWaiting(Arrays.asList("context1", "contextNOPE"), 100, (job, uuid_resolver) -> {
+			return all_jobs.indexOf(job) > 10;
+		}, job -> {
+			job.switchStatus(TaskStatus.PREPARING);
+		});
+		assertEquals(6, selected.size());
+		assertTrue(selected.stream().allMatch(job -> job.getContextType().equals("context1")));
+		
+		assertTrue(store.computeAndUpdateWaiting(Arrays.asList("contextNOPE"), 100, (job, uuid_resolver) -> {
+			throw new RuntimeException("This should not be triggered");
+		}, job -> {
+			throw new RuntimeException("This should not be triggered");
+		}).isEmpty());
+		
+		Optional<RuntimeException> o_error = store.checkConsistency();
+		if (o_error.isPresent()) {
+			throw o_error.get();
+		}
+	}
+	
+	public void testLookupDuringWrite() throws Exception {
+		InMemoryJobStore store = new InMemoryJobStore();
+		List<Job> all_jobs = IntStream.range(0, 100).mapToObj(i -> JobUtilityTest.createJob("Test", "Test", new JsonObject(), null)).collect(Collectors.toList());
+		all_jobs.forEach(store::put);
+		
+		List<UUID> all_uuids = all_jobs.stream().map(Job::getKey).collect(Collectors.toList());
+		ArrayList<UUID> searched = new ArrayList<>(all_uuids);
+		searched.add(1, UUID.randomUUID());
+		
+		CountDownLatch in_write = new CountDownLatch(1);
+		CountDownLatch lookup_done = new CountDownLatch(1);
+		
+		Thread writer = new Thread(() -> {
+			store.computeAllAndRemove((stream, uuid_resolver) -> {
+				in_write.countDown();
+				try {
+					assertTrue(lookup_done.await(1, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				return stream.filter(job -> false);
+			});
+		}, "Writer");
+		writer.start();
+		
+		assertTrue(in_write.await(1, TimeUnit.SECONDS));
+		assertEquals(all_jobs, store.getByUUIDs(searched));
+		assertEquals(all_jobs.get(0), store.getByUUID(all_uuids.get(0)));
+		assertEquals(all_jobs.size(), store.size());
+		lookup_done.countDown();
+		writer.join();
+	}
+	
+	public void testSubJobsIndex() {
+		int sub_job_count = 10_000;
+		InMemoryJobStore store = new InMemoryJobStore();
+		
+		Job parent = JobUtilityTest.createJob("Parent", "Test", new JsonObject(), null);
+		List<Job> sub_jobs = IntStream.range(0, sub_job_count).mapToObj(i -> {
+			return JobUtilityTest.addSubJob(parent, "Sub " + i, "Test", new JsonObject(), null);
+		}).collect(Collectors.toList());
+		
+		/**
+		 * Sub jobs first, like a journal replay can do.
+		 */
+		assertTrue(store.putAll(sub_jobs, Integer.MAX_VALUE));
+		assertTrue(store.put(parent));
+		assertEquals(sub_job_count, store.getUnfinishedDependentsCount(parent.getKey()));
+		assertEquals(sub_job_count + 1, store.waitingJobCount());
+		checkConsistency(store);
+		
+		AtomicInteger visited = new AtomicInteger(0);
+		List<Job> selected = store.computeAndUpdateWaiting(Arrays.asList("Test"), sub_job_count, (job, uuid_resolver) -> {
+			visited.incrementAndGet();
+			return true;
+		}, job -> {
+			job.switchStatus(TaskStatus.PREPARING);
+		});
+		assertEquals(Arrays.asList(parent), selected);
+		assertEquals(1, visited.get());
+		
+		store.update(() -> JobUtilityTest.switchStatus(parent, TaskStatus.PROCESSING).getKey());
+		store.update(() -> JobUtilityTest.switchStatus(parent, TaskStatus.DONE).getKey());
+		checkConsistency(store);
+		
+		/**
+		 * Parent re-started: its sub jobs are blocked again.
+		 */
+		store.update(() -> JobUtilityTest.switchStatus(parent, TaskStatus.WAITING).getKey());
+		checkConsistency(store);
+		selected = store.computeAndUpdateWaiting(Arrays.asList("Test"), sub_job_count, (job, uuid_resolver) -> true, job -> {
+			job.switchStatus(TaskStatus.PREPARING);
+		});
+		assertEquals(Arrays.asList(parent), selected);
+		store.update(() -> JobUtilityTest.switchStatus(parent, TaskStatus.PROCESSING).getKey());
+		store.update(() -> JobUtilityTest.switchStatus(parent, TaskStatus.DONE).getKey());
+		
+		visited.set(0);
+		selected = store.computeAndUpdateWaiting(Arrays.asList("Test"), 100, (job, uuid_resolver) -> {
+			visited.incrementAndGet();
+			return true;
+		}, job -> {
+			job.switchStatus(TaskStatus.PREPARING);
+		});
+		assertEquals(100, selected.size());
+		assertTrue(sub_jobs.containsAll(selected));
+		assertEquals(100, visited.get());
+		assertEquals(sub_job_count - 100, store.getUnfinishedDependentsCount(parent.getKey()));
+		checkConsistency(store);
+		
+		store.computeAllAndRemove((stream, uuid_resolver) -> stream.filter(job -> job.equals(parent)));
+		assertEquals(0, store.getUnfinishedDependentsCount(parent.getKey()));
+		assertTrue(store.computeAndUpdateWaiting(Arrays.asList("Test"), sub_job_count, (job, uuid_resolver) -> true, job -> {
+			job.switchStatus(TaskStatus.PREPARING);
+		}).isEmpty());
+		checkConsistency(store);
+		
+		store.computeAllAndRemove((stream, uuid_resolver) -> stream);
+		assertEquals(0, store.getUnfinishedDependentsCount(parent.getKey()));
+		checkConsistency(store);
+	}
+	
+	public void testDependenciesCascade() {
+		Job first = JobUtilityTest.createJob("First", "Test", new JsonObject(), null);
+		Job second = JobUtilityTest.createJob("Second", "Test", new JsonObject(), null).setDependencies(Arrays.asList(first.getKey()));
+		Job third = JobUtilityTest.createJob("Third", "Test", new JsonObject(), null).setDependencies(Arrays.asList(first.getKey(), second.getKey()));
+		Job other = JobUtilityTest.createJob("Other", "Test", new JsonObject(), null);
+		
+		InMemoryJobStore store = new InMemoryJobStore(StoreLockMode.EXCLUSIVE, job -> {
+			return job.equals(first) ? 0 : Long.MAX_VALUE;
+		});
+		assertTrue(store.putAll(Arrays.asList(third, second, first, other), Integer.MAX_VALUE));
+		assertEquals(2, store.getUnfinishedDependentsCount(first.getKey()));
+		assertEquals(1, store.getUnfinishedDependentsCount(second.getKey()));
+		checkConsistency(store);
+		
+		List<Job> selected = store.computeAndUpdateWaiting(Arrays.asList("Test"), 10, (job, uuid_resolver) -> false, job -> {
+		});
+		assertTrue(selected.isEmpty());
+		
+		List<UUID> deleted = store.removeExpired(System.currentTimeMillis(), 10);
+		assertEquals(3, deleted.size());
+		assertTrue(deleted.containsAll(Arrays.asList(first.getKey(), second.getKey(), third.getKey())));
+		assertEquals(1, store.size());
+		assertEquals(0, store.getUnfinishedDependentsCount(first.getKey()));
+		checkConsistency(store);
+	}
+	
+	private static void checkConsistency(InMemoryJobStore store) {
+		Optional<RuntimeException> o_error = store.checkConsistency();
+		if (o_error.isPresent()) {
+			throw o_error.get();
+		}
+	}
+	
 }
@@ -0,0 +1,341 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import com.google.gson.JsonObject;
+
+import junit.framework.TestCase;
+import tv.hd3g.divergentframework.taskjob.events.JobEventObserver;
+import tv.hd3g.divergentframework.taskjob.queue.LocalQueue;
+import tv.hd3g.divergentframework.taskjob.worker.Engine;
+
+public class TestRemoteBroker extends TestCase {
+	
+	private InMemoryBroker broker;
+	private BrokerServer server;
+	
+	protected void setUp() throws Exception {
+		broker = new InMemoryBroker(10_000, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		server = new BrokerServer(broker, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 2);
+		broker.addJobObserver(server.getEventStreamer());
+	}
+	
+	protected void tearDown() throws Exception {
+		server.close();
+		broker.cancelPostponedJobsTask();
+	}
+	
+	public void testRequests() throws Exception {
+		try (RemoteBroker remote = new RemoteBroker(server.getLocalAddress())) {
+			CopyOnWriteArrayList<String> events = new CopyOnWriteArrayList<>();
+			remote.addJobObserver(new JobEventObserver() {
+				public void brokerOnCreateJobs(List<Job> jobs) {
+					events.add("create " + jobs.size());
+				}
+				
+				public void onJobUpdate(Job job, JobUpdateSubject cause) {
+					events.add(cause + " " + job.getStatus());
+				}
+			});
+			AtomicInteger activity = new AtomicInteger(0);
+			remote.registerCallbackOnNewLocalJobsActivity(activity::incrementAndGet);
+			
+			JsonObject context = new JsonObject();
+			context.addProperty("value", "é");
+			JobSpec first = new JobSpec("First", "remote", context).setExternalReference("ext").setContextRequirementTags(Arrays.asList("tag"));
+			JobSpec second = new JobSpec("Second", "remote", null).setPriority(5).addDependency(first);
+			List<Job> jobs = remote.createJobs(Arrays.asList(first, second));
+			
+			assertEquals(2, jobs.size());
+			assertEquals(2, broker.storeSize());
+			Job job = jobs.get(0);
+			assertEquals("First", job.getDescription());
+			assertEquals("ext", job.getExternalReference());
+			assertEquals("é", job.getContextContent().get("value").getAsString());
+			assertEquals(Arrays.asList("tag"), job.getContextRequirementTags());
+			assertEquals(5, jobs.get(1).getPriority());
+			assertEquals(Arrays.asList(job.getKey()), jobs.get(1).getDependencies());
+			
+			Job sub_job = remote.addSubJob(job, "Sub", null, "remote", null, null);
+			assertEquals(job.getKey(), sub_job.getLinkedJob());
+			assertEquals(Arrays.asList(sub_job.getKey()), remote.getJobsByUUID(Arrays.asList(job.getKey())).get(0).getRelativesJobsUUID());
+			assertEquals(3, remote.getAllJobs().size());
+			
+			/**
+			 * Claim with a tags filter checked by the client.
+			 */
+			ArrayList<Job> started = new ArrayList<>();
+			remote.getNextJobs(Arrays.asList("remote"), () -> 10, (context_type, tags) -> false, j -> started.add(j));
+			assertTrue(started.isEmpty());
+			assertEquals(TaskStatus.WAITING, broker.getJobByUUID(job.getKey()).getStatus());
+			
+			remote.getNextJobs(Arrays.asList("remote"), () -> 10, (context_type, tags) -> true, j -> started.add(j));
+			assertEquals(Arrays.asList(job), started);
+			job = started.get(0);
+			assertEquals(TaskStatus.PREPARING, job.getStatus());
+			
+			remote.switchStatus(job, TaskStatus.PROCESSING);
+			assertEquals(TaskStatus.PROCESSING, job.getStatus());
+			assertEquals(1, job.getAttemptCount());
+			assertEquals(TaskStatus.PROCESSING, broker.getJobByUUID(job.getKey()).getStatus());
+			
+			/**
+			 * Pipelined, then processed before the next request
+			 */
+			remote.updateProgression(job, 5, 10);
+			assertEquals(5, remote.getJobsByUUID(Arrays.asList(job.getKey())).get(0).getActualProgressionValue());
+			
+			remote.switchToError(job, new Exception("Remote error"));
+			assertEquals(TaskStatus.ERROR, job.getStatus());
+			assertEquals("Remote error", job.getLastErrorMessage());
+			assertEquals("Remote error", broker.getJobByUUID(job.getKey()).getLastErrorMessage());
+			
+			try {
+				remote.switchStatus(job, TaskStatus.PROCESSING);
+				fail();
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage().contains("Can't switch status"));
+			}
+			try {
+				remote.createJob(new JobSpec("Unknown", "remote", null).addDependency(UUID.randomUUID()));
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+			
+			while (events.contains("SWITCH_TO_ERROR ERROR") == false) {
+				Thread.sleep(1);
+			}
+			assertEquals("create 2", events.get(0));
+			assertTrue(events.contains("SWITCH_STATUS PROCESSING"));
+			assertTrue(activity.get() > 0);
+		}
+	}
+	
+	public void testDisconnect() throws Exception {
+		Job job = broker.createJob("D", null, "remote", null, null);
+		RemoteBroker remote = new RemoteBroker(server.getLocalAddress());
+		remote.getNextJobs(Arrays.asList("remote"), () -> 1, (context_type, tags) -> true, j -> true);
+		assertEquals(TaskStatus.PREPARING, job.getStatus());
+		assertEquals(1, server.getConnectionCount());
+		
+		remote.close();
+		long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+		while (job.getStatus() != TaskStatus.WAITING) {
+			assertTrue("Too long", System.currentTimeMillis() < end);
+			Thread.sleep(1);
+		}
+		assertEquals(0, server.getConnectionCount());
+		
+		try {
+			remote.getAllJobs();
+			fail();
+		} catch (IllegalStateException e) {
+		}
+	}
+	
+	/**
+	 * The server skips the jobs refused by a ContextTagsFilter, and only the lease owner connection can update a claimed job.
+	 */
+	public void testTagsFilterAndLeaseOwner() throws Exception {
+		Job gpu_job = broker.createJob(new JobSpec("GPU", "remote", null).setPriority(10).setContextRequirementTags(Arrays.asList("gpu")));
+		Job cpu_job = broker.createJob(new JobSpec("CPU", "remote", null).setContextRequirementTags(Arrays.asList("cpu")));
+		
+		try (RemoteBroker remote = new RemoteBroker(server.getLocalAddress()); RemoteBroker other_remote = new RemoteBroker(server.getLocalAddress())) {
+			ArrayList<Job> started = new ArrayList<>();
+			ContextTagsFilter tags_filter = new ContextTagsFilter().add("remote", Arrays.asList("local")).add("remote", Arrays.asList("cpu", "local"));
+			remote.getNextJobs(Arrays.asList("remote"), () -> 1, tags_filter, j -> started.add(j));
+			assertEquals(1, started.size());
+			assertEquals(cpu_job.getKey(), started.get(0).getKey());
+			assertEquals(TaskStatus.WAITING, gpu_job.getStatus());
+			
+			try {
+				other_remote.switchStatus(started.get(0), TaskStatus.PROCESSING);
+				fail();
+			} catch (IllegalStateException e) {
+				assertTrue(e.getMessage().contains("is leased by"));
+			}
+			assertEquals(TaskStatus.PREPARING, cpu_job.getStatus());
+			
+			remote.switchStatus(started.get(0), TaskStatus.PROCESSING);
+			assertEquals(TaskStatus.PROCESSING, cpu_job.getStatus());
+		}
+	}
+	
+	/**
+	 * A worker without heartbeats loses its job, and can't update it after the lease expiry.
+	 */
+	public void testLeaseLost() throws Exception {
+		broker.setLeaseDuration(200, TimeUnit.MILLISECONDS);
+		Job job = broker.createJob("L", null, "remote", null, null);
+		
+		try (RemoteBroker remote = new RemoteBroker(server.getLocalAddress())) {
+			ArrayList<Job> started = new ArrayList<>();
+			remote.getNextJobs(Arrays.asList("remote"), () -> 1, (context_type, tags) -> true, j -> started.add(j));
+			assertEquals(1, started.size());
+			assertNotNull(job.getLeaseOwner());
+			
+			Job remote_job = started.get(0);
+			remote.switchStatus(remote_job, TaskStatus.PROCESSING);
+			assertEquals(job.getLeaseOwner(), broker.getJobByUUID(job.getKey()).getLeaseOwner());
+			
+			long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+			while (job.getStatus() != TaskStatus.ERROR) {
+				assertTrue("Too long", System.currentTimeMillis() < end);
+				Thread.sleep(10);
+			}
+			assertNull(job.getLeaseOwner());
+			
+			try {
+				remote.switchStatus(remote_job, TaskStatus.DONE);
+				fail();
+			} catch (IllegalStateException e) {
+				assertTrue(e.getMessage().startsWith("Lease lost"));
+			}
+			assertEquals(TaskStatus.ERROR, job.getStatus());
+			
+			/**
+			 * Not claimed any more by this connection: like any other client.
+			 */
+			remote.switchStatus(remote_job, TaskStatus.DONE);
+			assertEquals(TaskStatus.DONE, job.getStatus());
+		} finally {
+			broker.setLeaseDuration(0, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * A claimed job is updated with its claim lease epoch: after a new claim, even by the same lease owner, the previous claim can't update it.
+	 */
+	public void testClaimLeaseEpoch() throws Exception {
+		broker.setLeaseDuration(200, TimeUnit.MILLISECONDS);
+		Job job = broker.createJob("E", null, "remote", null, null);
+		
+		try (RemoteBroker remote = new RemoteBroker(server.getLocalAddress())) {
+			ArrayList<Job> started = new ArrayList<>();
+			remote.getNextJobs(Arrays.asList("remote"), () -> 1, (context_type, tags) -> true, j -> started.add(j));
+			assertEquals(1, started.size());
+			String lease_owner = job.getLeaseOwner();
+			
+			long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+			while (job.getStatus() != TaskStatus.WAITING) {
+				assertTrue("Too long", System.currentTimeMillis() < end);
+				Thread.sleep(10);
+			}
+			broker.getNextJobs(Arrays.asList("remote"), () -> 1, (context_type, tags) -> true, j -> {
+				j.setLeaseOwner(lease_owner);
+				return true;
+			});
+			assertEquals(TaskStatus.PREPARING, job.getStatus());
+			
+			try {
+				remote.switchStatus(started.get(0), TaskStatus.PROCESSING);
+				fail();
+			} catch (IllegalStateException e) {
+				assertTrue(e.getMessage().startsWith("Lease lost"));
+			}
+			assertEquals(TaskStatus.PREPARING, job.getStatus());
+		} finally {
+			broker.setLeaseDuration(0, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * The remote worker renews the lease of its job, without progression updates.
+	 */
+	public void testLeaseRenewal() throws Exception {
+		broker.setLeaseDuration(200, TimeUnit.MILLISECONDS);
+		
+		try (RemoteBroker remote = new RemoteBroker(server.getLocalAddress())) {
+			LocalQueue queue = new LocalQueue(remote);
+			queue.registerEngine(new Engine(1, "Slow", Arrays.asList("remote"), context_type -> {
+				return (referer, bkr, shouldStopProcessing) -> {
+					Thread.sleep(600);
+				};
+			}));
+			Job job = remote.createJob(new JobSpec("Slow", "remote", null));
+			
+			long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+			while (broker.getJobByUUID(job.getKey()).getStatus() != TaskStatus.DONE) {
+				assertTrue("Too long", System.currentTimeMillis() < end);
+				assertNotSame(TaskStatus.ERROR, broker.getJobByUUID(job.getKey()).getStatus());
+				Thread.sleep(10);
+			}
+			assertEquals(200, remote.getLeaseDuration());
+			assertEquals(1, broker.getJobByUUID(job.getKey()).getAttemptCount());
+		} finally {
+			broker.setLeaseDuration(0, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * Several LocalQueues, each with its RemoteBroker, feeded by the same server.
+	 */
+	public void testQueues() throws Exception {
+		Configurator.setLevel(tv.hd3g.divergentframework.taskjob.worker.Worker.WorkerThread_class_name, Level.WARN);
+		ConcurrentHashMap<String, AtomicInteger> processed = new ConcurrentHashMap<>();
+		ArrayList<RemoteBroker> remotes = new ArrayList<>();
+		
+		for (int pos = 0; pos < 3; pos++) {
+			String queue_name = "Q" + pos;
+			RemoteBroker remote = new RemoteBroker(server.getLocalAddress());
+			remotes.add(remote);
+			LocalQueue queue = new LocalQueue(remote);
+			queue.registerEngine(new Engine(2, queue_name, Arrays.asList("remote"), context_type -> {
+				return (referer, bkr, shouldStopProcessing) -> {
+					processed.computeIfAbsent(referer.getDescription(), d -> new AtomicInteger()).incrementAndGet();
+					bkr.updateProgression(referer, 1, 1);
+				};
+			}));
+		}
+		
+		List<Job> jobs = remotes.get(0).createJobs(IntStream.range(0, 200).mapToObj(i -> {
+			return new JobSpec("Job" + i, "remote", null);
+		}).collect(Collectors.toList()));
+		
+		long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(60);
+		while (broker.getAllJobs().stream().allMatch(job -> job.getStatus() == TaskStatus.DONE) == false) {
+			assertTrue("Too long", System.currentTimeMillis() < end);
+			Thread.sleep(10);
+		}
+		assertEquals(200, processed.size());
+		assertTrue(processed.values().stream().allMatch(count -> count.get() == 1));
+		assertEquals(jobs.size(), broker.getAllJobs().size());
+		assertFalse(broker.checkStoreConsistency().isPresent());
+		
+		for (RemoteBroker remote : remotes) {
+			remote.close();
+		}
+	}
+	
+}
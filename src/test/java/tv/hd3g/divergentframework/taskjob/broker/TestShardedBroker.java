@@ -0,0 +1,169 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import junit.framework.TestCase;
+
+public class TestShardedBroker extends TestCase {
+	
+	private static ShardedBroker createBroker(int shard_count) {
+		ShardedBroker broker = new ShardedBroker(shard_count, i -> new InMemoryBroker(1_000_000, 1, 1, 1, TimeUnit.HOURS));
+		broker.cancelCleanUpTask();
+		return broker;
+	}
+	
+	public void testDispatch() throws Exception {
+		ShardedBroker broker = createBroker(4);
+		List<String> context_types = IntStream.range(0, 8).mapToObj(i -> "context" + i).collect(Collectors.toList());
+		
+		List<Job> jobs = broker.createJobs(context_types.stream().map(context_type -> {
+			return new JobSpec("D", context_type, null);
+		}).collect(Collectors.toList()));
+		assertEquals(context_types, jobs.stream().map(Job::getContextType).collect(Collectors.toList()));
+		jobs.forEach(job -> assertSame(broker.getShardByKey(job.getKey()), broker.getShardOf(job)));
+		assertTrue(broker.getShards().stream().filter(shard -> shard.storeSize() > 0).count() > 1);
+		
+		Job sub_job = broker.addSubJob(jobs.get(0), "Sub", null, "context1", null, null);
+		assertSame(broker.getShardOf(jobs.get(0)), broker.getShardOf(sub_job));
+		Job dependent = broker.createJob(new JobSpec("Dependent", "context2", null).addDependency(jobs.get(0)));
+		assertSame(broker.getShardOf(jobs.get(0)), broker.getShardOf(dependent));
+		assertEquals(Arrays.asList(sub_job, jobs.get(3)), broker.getJobsByUUID(Arrays.asList(sub_job.getKey(), jobs.get(3).getKey())));
+		assertEquals(10, broker.storeSize());
+		
+		/**
+		 * One job by shard, merged by priority, then by creation date (the batch jobs have the same creation date)
+		 */
+		Thread.sleep(2);
+		Job high = broker.createJob(new JobSpec("High", "context5", null).setPriority(10));
+		ArrayList<Job> selected = new ArrayList<>();
+		broker.getNextJobs(context_types, () -> 4, (c, t) -> true, job -> {
+			selected.add(job);
+			return true;
+		});
+		assertEquals(4, selected.size());
+		assertSame(high, selected.get(0));
+		assertTrue(jobs.containsAll(selected.subList(1, 4)));
+		assertTrue(selected.stream().allMatch(job -> job.getStatus() == TaskStatus.PREPARING));
+		assertEquals(5, jobs.stream().filter(job -> job.getStatus() == TaskStatus.WAITING).count());
+		
+		/**
+		 * Sub and dependent jobs are ready when their predecessor is DONE, in their shard.
+		 */
+		broker.switchStatus(jobs.get(0), TaskStatus.PREPARING);
+		broker.switchStatus(jobs.get(0), TaskStatus.PROCESSING);
+		broker.switchStatus(jobs.get(0), TaskStatus.DONE);
+		long waiting = jobs.stream().filter(job -> job.getStatus() == TaskStatus.WAITING).count();
+		selected.clear();
+		broker.getNextJobs(context_types, () -> 100, (c, t) -> true, job -> {
+			selected.add(job);
+			return job != dependent;
+		});
+		assertEquals(waiting + 2, selected.size());
+		assertTrue(selected.containsAll(Arrays.asList(sub_job, dependent)));
+		assertEquals(TaskStatus.PREPARING, sub_job.getStatus());
+		assertEquals(TaskStatus.WAITING, dependent.getStatus());
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
+	public void testCapacitySplit() throws Exception {
+		ShardedBroker broker = createBroker(4);
+		List<Job> jobs = broker.createJobs(IntStream.range(0, 100).mapToObj(i -> {
+			return new JobSpec("D" + i, "context", null);
+		}).collect(Collectors.toList()));
+		
+		/**
+		 * Only the offered jobs are claimed.
+		 */
+		ArrayList<Job> selected = new ArrayList<>();
+		for (int pass = 0; pass < 4; pass++) {
+			broker.getNextJobs(Arrays.asList("context"), () -> 1, (c, t) -> true, job -> {
+				selected.add(job);
+				return true;
+			});
+		}
+		assertEquals(4, selected.size());
+		assertEquals(4, selected.stream().map(broker::getShardOf).distinct().count());
+		assertTrue(jobs.stream().filter(job -> selected.contains(job) == false).allMatch(job -> {
+			return job.getStatus() == TaskStatus.WAITING && job.getLeaseEpoch() == 0;
+		}));
+		
+		/**
+		 * The capacity of the shards without WAITING jobs is given to the others.
+		 */
+		Job last = broker.createJob(new JobSpec("Last", "other", null));
+		selected.clear();
+		broker.getNextJobs(Arrays.asList("other"), () -> 4, (c, t) -> true, job -> {
+			selected.add(job);
+			return true;
+		});
+		assertEquals(Arrays.asList(last), selected);
+		selected.clear();
+		broker.getNextJobs(Arrays.asList("context"), () -> 10, (c, t) -> true, job -> {
+			selected.add(job);
+			return true;
+		});
+		assertEquals(10, selected.size());
+		assertEquals(86, jobs.stream().filter(job -> job.getStatus() == TaskStatus.WAITING).count());
+	}
+	
+	public void testDependenciesInDifferentShards() throws Exception {
+		ShardedBroker broker = createBroker(4);
+		Job predecessor_1 = broker.createJob(new JobSpec("P1", "context", null));
+		Job predecessor_2;
+		do {
+			predecessor_2 = broker.createJob(new JobSpec("P2", "context", null));
+		} while (broker.getShardOf(predecessor_2) == broker.getShardOf(predecessor_1));
+		Job sub_job = broker.addSubJob(predecessor_1, "Sub", null, "context", null, null);
+		Job dependent = broker.createJob(new JobSpec("Dependent", "context", null).addDependency(predecessor_2));
+		int store_size = broker.storeSize();
+		
+		Job last = broker.createJob(new JobSpec("Last", "context", null).addDependency(predecessor_1).addDependency(predecessor_2));
+		assertEquals(store_size + 1, broker.storeSize());
+		InMemoryBroker shard = broker.getShardOf(last);
+		Arrays.asList(predecessor_1, predecessor_2, sub_job, dependent).forEach(job -> assertSame(shard, broker.getShardOf(job)));
+		assertFalse(broker.checkStoreConsistency().isPresent());
+		
+		ArrayList<Job> selected = new ArrayList<>();
+		broker.getNextJobs(Arrays.asList("context"), () -> 10, (c, t) -> true, job -> {
+			selected.add(job);
+			return true;
+		});
+		assertTrue(selected.containsAll(Arrays.asList(predecessor_1, predecessor_2)));
+		assertFalse(selected.contains(last));
+		
+		Arrays.asList(predecessor_1, predecessor_2).forEach(job -> {
+			broker.switchStatus(job, TaskStatus.PROCESSING);
+			broker.switchStatus(job, TaskStatus.DONE);
+		});
+		selected.clear();
+		broker.getNextJobs(Arrays.asList("context"), () -> 10, (c, t) -> true, job -> {
+			selected.add(job);
+			return true;
+		});
+		assertEquals(3, selected.size());
+		assertTrue(selected.containsAll(Arrays.asList(sub_job, dependent, last)));
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
+}
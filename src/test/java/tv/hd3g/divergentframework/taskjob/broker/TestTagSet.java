@@ -0,0 +1,88 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import junit.framework.TestCase;
+
+public class TestTagSet extends TestCase {
+	
+	public void testListView() {
+		TagSet tags = TagSet.of(Arrays.asList("b", "a", "b", "c"));
+		assertEquals(Arrays.asList("b", "a", "b", "c"), tags);
+		assertEquals(4, tags.size());
+		assertEquals("a", tags.get(1));
+		assertTrue(tags.contains("c"));
+		assertTrue(tags.containsAll(TagSet.of(Arrays.asList("a", "b", "c"))));
+		assertTrue(TagSet.of(Arrays.asList("a", "b", "c")).containsAll(tags));
+		assertFalse(tags.contains("d"));
+		assertFalse(tags.contains(null));
+		assertSame(tags, TagSet.of(tags));
+		
+		assertSame(TagSet.EMPTY, TagSet.of(null));
+		assertSame(TagSet.EMPTY, TagSet.of(new ArrayList<>()));
+		assertTrue(TagSet.EMPTY.isEmpty());
+		
+		UnsupportedOperationException uoe = null;
+		try {
+			tags.add("d");
+		} catch (UnsupportedOperationException e) {
+			uoe = e;
+		}
+		assertNotNull(uoe);
+	}
+	
+	public void testContainsAll() {
+		List<String> many_tags = IntStream.range(0, 200).mapToObj(i -> "tag" + i).collect(Collectors.toList());
+		TagSet all = TagSet.of(many_tags);
+		TagSet some = TagSet.of(Arrays.asList("tag199", "tag3", "tag70"));
+		TagSet other = TagSet.of(Arrays.asList("tag3", "other"));
+		
+		assertTrue(all.containsAll(some));
+		assertFalse(some.containsAll(all));
+		assertFalse(all.containsAll(other));
+		assertTrue(all.containsAll(TagSet.EMPTY));
+		assertTrue(TagSet.EMPTY.containsAll(TagSet.EMPTY));
+		assertFalse(TagSet.EMPTY.containsAll(some));
+		
+		assertTrue(all.containsAll(Arrays.asList("tag10", "tag150")));
+		assertFalse(all.containsAll(Arrays.asList("tag10", "nope")));
+	}
+	
+	public void testJobAndEngineTags() {
+		Job job = JobUtilityTest.createJob("D", "context", new JsonObject(), new ArrayList<>(Arrays.asList("r0", "r1")));
+		assertTrue(job.getContextRequirementTags() instanceof TagSet);
+		assertEquals(Arrays.asList("r0", "r1"), job.getContextRequirementTags());
+		assertSame(job.getContextRequirementTagSet(), job.getContextRequirementTagSet());
+		
+		job.setContextRequirementTags(new ArrayList<>(Arrays.asList("r2")));
+		assertEquals(Arrays.asList("r2"), job.getContextRequirementTags());
+		
+		Job copy = Job.fromJson(new Gson(), job.toJson(new Gson()));
+		assertEquals(job.getContextRequirementTags(), copy.getContextRequirementTags());
+		assertTrue(copy.getContextRequirementTagSet().containsAll(job.getContextRequirementTagSet()));
+	}
+	
+}
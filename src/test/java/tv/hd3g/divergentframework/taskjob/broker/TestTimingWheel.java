@@ -0,0 +1,105 @@
+/*
+ * This file is part of Divergent Framework Taskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.broker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestTimingWheel extends TestCase {
+	
+	public void testOrder() {
+		long start = 1_000_003;
+		TimingWheel<String> wheel = new TimingWheel<>(10, 4, start);
+		
+		assertFalse(wheel.add("passed", start - 10));
+		assertTrue(wheel.add("now", start));
+		assertTrue(wheel.add("soon", start + 25));
+		assertTrue(wheel.add("later", start + 1000));
+		assertEquals(3, wheel.size());
+		
+		ArrayList<String> due = new ArrayList<>();
+		assertEquals(0, wheel.advance(start + 5, due::add));
+		assertEquals(1, wheel.advance(start + 10, due::add));
+		assertEquals(List.of("now"), due);
+		assertEquals(0, wheel.advance(start + 20, due::add));
+		assertEquals(1, wheel.advance(start + 40, due::add));
+		assertEquals(List.of("now", "soon"), due);
+		assertEquals(0, wheel.advance(start + 990, due::add));
+		assertEquals(1, wheel.advance(start + 5000, due::add));
+		assertEquals(List.of("now", "soon", "later"), due);
+		assertEquals(0, wheel.size());
+		
+		/**
+		 * Empty: jump directly
+		 */
+		assertEquals(0, wheel.advance(start + TimeUnit.DAYS.toMillis(1000), due::add));
+		assertFalse(wheel.add("passed", start + TimeUnit.DAYS.toMillis(999)));
+	}
+	
+	/**
+	 * Never before the deadline, and never later than one tick after it.
+	 */
+	public void testRandomDeadlines() {
+		Random random = new Random(0);
+		long tick = 100;
+		long start = System.currentTimeMillis();
+		long range = TimeUnit.DAYS.toMillis(40);
+		
+		TimingWheel<Integer> wheel = new TimingWheel<>(tick, 64, start);
+		HashMap<Integer, Long> deadlines = new HashMap<>();
+		for (int pos = 0; pos < 100_000; pos++) {
+			long deadline = start + (long) (random.nextDouble() * range);
+			deadlines.put(pos, deadline);
+			assertTrue(wheel.add(pos, deadline));
+		}
+		
+		long now = start;
+		while (wheel.size() > 0) {
+			now += 1 + random.nextInt((int) TimeUnit.MINUTES.toMillis(10));
+			long check_now = now;
+			wheel.advance(now, item -> {
+				long deadline = deadlines.remove(item);
+				assertTrue(deadline <= check_now);
+				assertTrue(item + " is late: " + (check_now - deadline), check_now - deadline <= TimeUnit.MINUTES.toMillis(10) + tick);
+			});
+		}
+		assertTrue(deadlines.isEmpty());
+	}
+	
+	public void testPrecision() {
+		long tick = 100;
+		long start = System.currentTimeMillis();
+		TimingWheel<Long> wheel = new TimingWheel<>(tick, 16, start);
+		
+		for (long deadline = start; deadline < start + 100_000; deadline += 7) {
+			assertTrue(wheel.add(deadline, deadline));
+		}
+		for (long now = start; wheel.size() > 0; now += tick / 4) {
+			long check_now = now;
+			wheel.advance(now, deadline -> {
+				assertTrue(deadline <= check_now);
+				assertTrue(check_now - deadline < tick + tick / 4);
+			});
+		}
+	}
+	
+}
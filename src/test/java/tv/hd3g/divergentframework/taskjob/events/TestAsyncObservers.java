@@ -0,0 +1,167 @@
+/*
+ * This file is part of DivergentFameworkTaskjob.
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * Copyright (C) hdsdi3g for hd3g.tv 2018
+ * 
+*/
+package tv.hd3g.divergentframework.taskjob.events;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import tv.hd3g.divergentframework.taskjob.broker.InMemoryBroker;
+import tv.hd3g.divergentframework.taskjob.broker.Job;
+import tv.hd3g.divergentframework.taskjob.broker.TaskStatus;
+import tv.hd3g.divergentframework.taskjob.worker.Engine;
+
+public class TestAsyncObservers extends TestCase {
+	
+	private static InMemoryBroker createBroker() {
+		return new InMemoryBroker(100, 1, 1, 1, TimeUnit.HOURS).cancelCleanUpTask();
+	}
+	
+	public void testSlowObserver() throws Exception {
+		InMemoryBroker broker = createBroker();
+		
+		List<TaskStatus> seen_status = Collections.synchronizedList(new ArrayList<>());
+		AsyncJobEventObserver observer = new AsyncJobEventObserver(new JobEventObserver() {
+			public void onJobUpdate(Job job, JobUpdateSubject cause) {
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				seen_status.add(job.getStatus());
+			}
+		}, 100, OverflowPolicy.BLOCK);
+		broker.addJobObserver(observer);
+		
+		long start = System.currentTimeMillis();
+		Job job = broker.createJob("D", null, "context", null, null);
+		broker.switchStatus(job, TaskStatus.PREPARING);
+		broker.switchStatus(job, TaskStatus.PROCESSING);
+		broker.switchStatus(job, TaskStatus.DONE);
+		assertTrue(System.currentTimeMillis() - start < 500);
+		
+		observer.close();
+		assertEquals(3, seen_status.size());
+		assertEquals(0, observer.getDroppedCount());
+		
+		/**
+		 * Closed
+		 */
+		broker.switchStatus(job, TaskStatus.WAITING);
+		assertEquals(1, observer.getDroppedCount());
+	}
+	
+	public void testDrop() throws Exception {
+		InMemoryBroker broker = createBroker();
+		
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger created_count = new AtomicInteger();
+		AsyncJobEventObserver observer = new AsyncJobEventObserver(new JobEventObserver() {
+			public void brokerOnCreateJob(Job job) {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				created_count.incrementAndGet();
+			}
+		}, 5, OverflowPolicy.DROP);
+		broker.addJobObserver(observer);
+		
+		for (int pos = 0; pos < 20; pos++) {
+			broker.createJob("D" + pos, null, "context", null, null);
+		}
+		assertTrue(observer.getPendingCount() <= 5);
+		assertTrue(observer.getDroppedCount() >= 14);
+		
+		release.countDown();
+		observer.close();
+		assertEquals(20, created_count.get() + observer.getDroppedCount());
+	}
+	
+	public void testCoalesce() throws Exception {
+		InMemoryBroker broker = createBroker();
+		
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch create_started = new CountDownLatch(1);
+		List<String> progressions = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger created_count = new AtomicInteger();
+		AsyncJobEventObserver observer = new AsyncJobEventObserver(new JobEventObserver() {
+			public void brokerOnCreateJob(Job job) {
+				create_started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				created_count.incrementAndGet();
+			}
+			
+			public void onJobUpdateProgression(Job job) {
+				progressions.add(job.getProgression(""));
+			}
+		}, 10, OverflowPolicy.COALESCE);
+		broker.addJobObserver(observer);
+		
+		Job job = broker.createJob("D", null, "context", null, null);
+		assertTrue(create_started.await(10, TimeUnit.SECONDS));
+		for (int pos = 1; pos <= 5; pos++) {
+			broker.updateProgression(job, pos, 1000);
+		}
+		/**
+		 * Not full: nothing is coalesced.
+		 */
+		assertEquals(5, observer.getPendingCount());
+		
+		for (int pos = 6; pos <= 1000; pos++) {
+			broker.updateProgression(job, pos, 1000);
+		}
+		assertEquals(10, observer.getPendingCount());
+		
+		release.countDown();
+		observer.close();
+		assertEquals(1, created_count.get());
+		assertEquals(10, progressions.size());
+		assertEquals("1000/1000", progressions.get(9));
+		assertEquals(0, observer.getDroppedCount());
+	}
+	
+	public void testEngineObserver() throws Exception {
+		CountDownLatch tags_changed = new CountDownLatch(1);
+		Thread caller = Thread.currentThread();
+		AsyncEngineEventObserver observer = new AsyncEngineEventObserver(new EngineEventObserver() {
+			public void onEngineChangeContextRequirementTags(Engine engine) {
+				assertNotSame(caller, Thread.currentThread());
+				tags_changed.countDown();
+			}
+		}, 10, OverflowPolicy.COALESCE);
+		
+		Engine engine = new Engine(1, "Test", List.of("context"), c_type -> {
+			return (referer, broker, shouldStopProcessing) -> {
+			};
+		});
+		engine.setObserver(observer);
+		engine.setContextRequirementTags(List.of("tag"));
+		assertTrue(tags_changed.await(10, TimeUnit.SECONDS));
+		observer.close();
+	}
+	
+}
@@ -23,6 +23,7 @@ import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiPredicate;
 import java.util.function.IntSupplier;
 import java.util.function.Predicate;
@@ -46,6 +47,7 @@ public class TestLiveQueue extends TestCase {
 	private class TestBroker implements Broker {
 		
 		private final List<Job> all_jobs;
+		private final AtomicInteger get_next_jobs_count;
 		// private volatile Runnable local_jobs_activity_callback;
 		
 		public TestBroker(List<Job> all_jobs) {
@@ -53,7 +55,7 @@ public class TestLiveQueue extends TestCase {
 			if (all_jobs == null) {
 				throw new NullPointerException("\"all_jobs\" can't to be null");
 			}
-			
+			get_next_jobs_count = new AtomicInteger(0);
 		}
 		
 		public void updateProgression(Job action, int actual_value, int max_value) {
@@ -89,6 +91,7 @@ public class TestLiveQueue extends TestCase {
 		}
 		
 		public void getNextJobs(List<String> list_to_context_types, IntSupplier queue_capacity, BiPredicate<String, List<String>> filterByContextTypeAndTags, Predicate<Job> onFoundActionReadyToStart) {
+			get_next_jobs_count.incrementAndGet();
 			all_jobs.stream().takeWhile(job -> {
 				return queue_capacity.getAsInt() > 0;
 			}).filter(job -> {
@@ -280,4 +283,69 @@ public class TestLiveQueue extends TestCase {
 		assertEquals(TaskStatus.DONE, job_5_duo_rct.getStatus());
 	}
 	
+	public void testRoutingUpdates() throws Exception {
+		Job job = createJob("context1", "r0");
+		ArrayList<Job> all_jobs = new ArrayList<>();
+		all_jobs.add(job);
+		TestBroker broker = new TestBroker(all_jobs);
+		
+		LocalQueue queue = new LocalQueue(broker);
+		
+		Engine engine_1 = new Engine(1, "E1", Arrays.asList("context1", "context3"), c_type -> {
+			return (referer, bkr, shouldStopProcessing) -> {
+			};
+		});
+		Engine engine_2 = new Engine(1, "E2", Arrays.asList("context2", "context1"), c_type -> {
+			return (referer, bkr, shouldStopProcessing) -> {
+			};
+		});
+		
+		queue.registerEngine(engine_1);
+		queue.registerEngine(engine_2);
+		assertEquals(Arrays.asList("context1", "context3", "context2"), queue.getActualEnginesContextTypes(false));
+		assertEquals(Arrays.asList(engine_1, engine_2), queue.getEnginesByContextType("context1"));
+		assertEquals(Arrays.asList(engine_2), queue.getEnginesByContextType("context2"));
+		assertTrue(queue.getEnginesByContextType("nope").isEmpty());
+		
+		Thread.sleep(50);
+		assertEquals(TaskStatus.WAITING, job.getStatus());
+		
+		engine_1.setContextRequirementTags(Arrays.asList("r1", "r0"));
+		engine_2.setContextRequirementTags(Arrays.asList("r0"));
+		queue.searchAndStartNewActions();
+		while (queue.isRunning()) {
+			Thread.onSpinWait();
+		}
+		Thread.sleep(50);
+		assertEquals(TaskStatus.DONE, job.getStatus());
+		
+		queue.unRegisterEngine(engine_1);
+		assertEquals(Arrays.asList(engine_2), queue.getEnginesByContextType("context1"));
+		assertFalse(queue.getActualEnginesContextTypes(false).contains("context3"));
+	}
+	
+	public void testCoalescedDispatch() throws Exception {
+		TestBroker broker = new TestBroker(new ArrayList<>());
+		LocalQueue queue = new LocalQueue(broker);
+		
+		IntStream.range(0, 1000).parallel().forEach(i -> {
+			queue.requestSearchAndStartNewActions();
+		});
+		
+		while (queue.isRunning()) {
+			Thread.onSpinWait();
+		}
+		Thread.sleep(50);
+		
+		assertEquals(1000, queue.getRequestedDispatchCount());
+		long executed = queue.getExecutedDispatchCount();
+		assertTrue(executed >= 1);
+		assertTrue(executed < 1000);
+		assertEquals(executed, broker.get_next_jobs_count.get());
+		
+		queue.prepareToStop(ForkJoinPool.commonPool()).get(1, TimeUnit.SECONDS);
+		queue.requestSearchAndStartNewActions();
+		assertEquals(1000, queue.getRequestedDispatchCount());
+	}
+	
 }
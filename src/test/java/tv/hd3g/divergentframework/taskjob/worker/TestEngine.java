@@ -18,6 +18,8 @@ package tv.hd3g.divergentframework.taskjob.worker;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ForkJoinPool;
@@ -180,6 +182,114 @@ public class TestEngine extends TestCase {
 		}));
 	}
 	
+	public void testPooledThreads() throws Exception {
+		Set<Thread> executing_threads = ConcurrentHashMap.newKeySet();
+		AtomicReference<AssertionFailedError> failure = new AtomicReference<>();
+		
+		Engine engine = new Engine(2, "Test", Arrays.asList("test"), c_type -> {
+			return (referer, broker, shouldStopProcessing) -> {
+				try {
+					WorkerThread w_t = WorkerThread.currentWorkerThread();
+					assertNotNull(w_t);
+					assertEquals(referer, w_t.getJob());
+					assertEquals(Thread.currentThread(), w_t.getExecutingThread());
+					assertTrue(w_t.isProcessing());
+					assertFalse(w_t.isAlive());
+					assertFalse(shouldStopProcessing.get());
+					executing_threads.add(Thread.currentThread());
+					JobUtilityTest.addPropertyInContext(referer, "done", true);
+				} catch (AssertionFailedError e) {
+					failure.set(e);
+				}
+			};
+		}, Engine.ExecutionMode.POOLED_THREADS);
+		assertEquals(Engine.ExecutionMode.POOLED_THREADS, engine.getExecutionMode());
+		
+		Configurator.setLevel(WorkerThread.class.getName(), Level.WARN);
+		
+		List<Job> all_jobs = IntStream.range(0, 500).mapToObj(i -> {
+			return JobUtilityTest.createJob("Test-" + i, "test", createContext(false), null);
+		}).collect(Collectors.toList());
+		
+		AtomicInteger trigger_after_process = new AtomicInteger(0);
+		all_jobs.forEach(job -> {
+			while (engine.addProcess(job, JobUtilityTest.broker, () -> trigger_after_process.getAndIncrement()) == false) {
+				Thread.onSpinWait();
+			}
+		});
+		
+		/**
+		 * onAfterProcess is called after the worker leaves the engine list.
+		 */
+		while (engine.isRunning() || trigger_after_process.get() < all_jobs.size()) {
+			Thread.onSpinWait();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		
+		assertEquals(all_jobs.size(), trigger_after_process.get());
+		assertTrue(all_jobs.stream().allMatch(job -> TaskStatus.DONE.equals(job.getStatus()) & job.getContextContent().has("done")));
+		assertTrue("Too many threads: " + executing_threads.size(), executing_threads.size() <= 2);
+		assertNull(WorkerThread.currentWorkerThread());
+		assertTrue(engine.stopCurrentAll(ForkJoinPool.commonPool()).isDone());
+	}
+	
+	public void testVirtualThreads() throws Exception {
+		if (Engine.ExecutionMode.isVirtualThreadsSupported() == false) {
+			UnsupportedOperationException expected = null;
+			try {
+				new Engine(1, "Test", Arrays.asList("test"), c_type -> {
+					return (referer, broker, shouldStopProcessing) -> {
+					};
+				}, Engine.ExecutionMode.VIRTUAL_THREADS);
+			} catch (UnsupportedOperationException e) {
+				expected = e;
+			}
+			assertNotNull(expected);
+			return;
+		}
+		
+		int job_count = 5000;
+		AtomicReference<AssertionFailedError> failure = new AtomicReference<>();
+		
+		Engine engine = new Engine(job_count, "Test", Arrays.asList("test"), c_type -> {
+			return (referer, broker, shouldStopProcessing) -> {
+				try {
+					assertEquals(referer, WorkerThread.currentWorkerThread().getJob());
+				} catch (AssertionFailedError e) {
+					failure.set(e);
+				}
+				/**
+				 * Like an I/O wait
+				 */
+				Thread.sleep(200);
+			};
+		}, Engine.ExecutionMode.VIRTUAL_THREADS);
+		
+		Configurator.setLevel(WorkerThread.class.getName(), Level.WARN);
+		
+		List<Job> all_jobs = IntStream.range(0, job_count).mapToObj(i -> {
+			return JobUtilityTest.createJob("Test-" + i, "test", createContext(false), null);
+		}).collect(Collectors.toList());
+		
+		long start = System.currentTimeMillis();
+		all_jobs.forEach(job -> {
+			assertTrue(engine.addProcess(job, JobUtilityTest.broker, () -> {
+			}));
+		});
+		while (engine.isRunning()) {
+			Thread.sleep(1);
+		}
+		long duration = System.currentTimeMillis() - start;
+		
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		assertTrue(all_jobs.stream().allMatch(job -> TaskStatus.DONE.equals(job.getStatus())));
+		assertTrue(duration < TimeUnit.SECONDS.toMillis(20));
+	}
+	
 	public void testStop() throws Exception {
 		
 		AtomicBoolean stopped = new AtomicBoolean(false);
@@ -16,8 +16,11 @@
 */
 package tv.hd3g.divergentframework.taskjob.worker;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
@@ -25,6 +28,7 @@ import com.google.gson.JsonObject;
 
 import junit.framework.TestCase;
 import tv.hd3g.divergentframework.taskjob.broker.Broker;
+import tv.hd3g.divergentframework.taskjob.broker.InMemoryBroker;
 import tv.hd3g.divergentframework.taskjob.broker.Job;
 import tv.hd3g.divergentframework.taskjob.broker.JobUtilityTest;
 import tv.hd3g.divergentframework.taskjob.broker.TaskStatus;
@@ -120,6 +124,27 @@ public class TestWorkerThread extends TestCase {
 		assertEquals(TaskStatus.STOPPED, job.getStatus());
 	}
 	
+	public void testStopTimeout() throws Exception {
+		Job job = JobUtilityTest.createJob("test", "test", createContext(0), null);
+		JobUtilityTest.switchStatus(job, TaskStatus.PREPARING);
+		
+		WorkerThread w_t = new WorkerThread("Test", job, JobUtilityTest.broker, (referer, brkr, shouldStopProcessing) -> {
+			/**
+			 * Don't care about shouldStopProcessing
+			 */
+			Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+		});
+		w_t.start();
+		
+		long start = System.currentTimeMillis();
+		w_t.waitToStop(ForkJoinPool.commonPool(), 50, TimeUnit.MILLISECONDS).get(5, TimeUnit.SECONDS);
+		assertTrue(System.currentTimeMillis() - start < TimeUnit.SECONDS.toMillis(5));
+		
+		assertFalse(w_t.isAlive());
+		assertFalse(w_t.isProcessing());
+		assertEquals(TaskStatus.STOPPED, job.getStatus());
+	}
+	
 	public void testAfterProcess() {
 		Job job = JobUtilityTest.createJob("test", "test", createContext(10), null);
 		JobUtilityTest.switchStatus(job, TaskStatus.PREPARING);
@@ -172,4 +197,52 @@ public class TestWorkerThread extends TestCase {
 		assertEquals(1, trigger_after_process.get());
 	}
 	
+	/**
+	 * The job lease expires between its PREPARING and PROCESSING switches: the worker is not started, and afterProcess is called, in a Thread and in a pool thread.
+	 */
+	public void testLeaseLostBeforeStart() throws Exception {
+		InMemoryBroker broker = new InMemoryBroker(10, 1, 1, 1, TimeUnit.HOURS);
+		broker.cancelCleanUpTask();
+		broker.setLeaseDuration(50, TimeUnit.MILLISECONDS);
+		
+		for (boolean pooled : Arrays.asList(false, true)) {
+			String context_type = pooled ? "pooled" : "thread";
+			Job job = broker.createJob("test", null, context_type, createContext(0), null);
+			ArrayList<WorkerThread> workers = new ArrayList<>();
+			AtomicInteger processed = new AtomicInteger(0);
+			broker.getNextJobs(Arrays.asList(context_type), () -> 1, (c_t, tags) -> true, claimed_job -> {
+				return workers.add(new WorkerThread("Test", claimed_job, broker, (referer, brkr, shouldStopProcessing) -> {
+					processed.incrementAndGet();
+				}));
+			});
+			assertEquals(1, workers.size());
+			WorkerThread w_t = workers.get(0);
+			AtomicInteger trigger_after_process = new AtomicInteger(0);
+			w_t.setAfterProcess(trigger_after_process::incrementAndGet);
+			
+			long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+			while (job.getStatus() != TaskStatus.WAITING) {
+				assertTrue("Too long", System.currentTimeMillis() < end);
+				Thread.sleep(10);
+			}
+			
+			if (pooled) {
+				w_t.run();
+			} else {
+				w_t.start();
+				w_t.join();
+			}
+			w_t.waitToStop(ForkJoinPool.commonPool()).get(5, TimeUnit.SECONDS);
+			
+			assertEquals(0, processed.get());
+			assertEquals(1, trigger_after_process.get());
+			assertFalse(w_t.isProcessing());
+			assertEquals(TaskStatus.WAITING, job.getStatus());
+		}
+		
+		broker.setLeaseDuration(0, TimeUnit.MILLISECONDS);
+		broker.cancelPostponedJobsTask();
+		assertFalse(broker.checkStoreConsistency().isPresent());
+	}
+	
 }